@@ -0,0 +1,128 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * generates pairs of synthetic archives with class-file like entries. Half of
+ * the entries of each nesting level are put into embedded archives. In the
+ * changed archive, the given ratio of entries is modified, removed or added
+ * in equal parts.
+ *
+ * @author Hendrik Brummermann
+ */
+public class ArchiveGenerator {
+
+	private static final int EMBEDDED_ARCHIVES = 4;
+
+	private static final int UNCHANGED = 0;
+
+	private static final int MODIFIED = 1;
+
+	private static final int REMOVED = 2;
+
+	private static final int ADDED = 3;
+
+	private final int numberOfEntries;
+
+	private final int depth;
+
+	private final double changeRatio;
+
+	/**
+	 * creates a new ArchiveGenerator
+	 *
+	 * @param numberOfEntries number of entries, which are not archives themselves
+	 * @param depth maximal nesting depth of embedded archives, 0 for none
+	 * @param changeRatio ratio of the entries which differ in the changed archive
+	 */
+	public ArchiveGenerator(int numberOfEntries, int depth, double changeRatio) {
+		this.numberOfEntries = numberOfEntries;
+		this.depth = depth;
+		this.changeRatio = changeRatio;
+	}
+
+	/**
+	 * writes an archive
+	 *
+	 * @param file file to write
+	 * @param changed false for the original archive, true for the changed one
+	 * @throws IOException in case of an input/output error
+	 */
+	public void write(File file, boolean changed) throws IOException {
+		ZipOutputStream os = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			writeEntries(os, numberOfEntries, depth, changed, new int[1]);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * writes the entries of one nesting level
+	 *
+	 * @param os archive to write to
+	 * @param count number of entries including the ones of embedded archives
+	 * @param level remaining nesting depth
+	 * @param changed true for the changed archive
+	 * @param counter number of the next entry
+	 * @throws IOException in case of an input/output error
+	 */
+	private void writeEntries(ZipOutputStream os, int count, int level, boolean changed, int[] counter) throws IOException {
+		int embedded = (level > 0) ? count / 2 : 0;
+		byte[] data = new byte[1024];
+		for (int i = 0; i < count - embedded; i++) {
+			int n = counter[0]++;
+			int change = changed ? getChange(n) : UNCHANGED;
+			if (change == REMOVED) {
+				continue;
+			}
+
+			String name = "pkg" + (n / 1000) + "/Class" + n + ((change == ADDED) ? "$Added" : "") + ".class";
+			new Random(n).nextBytes(data);
+			if (change == MODIFIED) {
+				data[0]++;
+			}
+			os.putNextEntry(new ZipEntry(name));
+			os.write(data, 0, 64 + (n % 512));
+			os.closeEntry();
+		}
+
+		for (int i = 0; (i < EMBEDDED_ARCHIVES) && (embedded > 0); i++) {
+			int share = embedded / EMBEDDED_ARCHIVES + ((i < embedded % EMBEDDED_ARCHIVES) ? 1 : 0);
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ZipOutputStream nested = new ZipOutputStream(buffer);
+			writeEntries(nested, share, level - 1, changed, counter);
+			nested.close();
+
+			os.putNextEntry(new ZipEntry("lib/module" + i + ".jar"));
+			buffer.writeTo(os);
+			os.closeEntry();
+		}
+	}
+
+	/**
+	 * decides how an entry differs in the changed archive, independent of the nesting
+	 *
+	 * @param n number of the entry
+	 * @return UNCHANGED, MODIFIED, REMOVED or ADDED
+	 */
+	private int getChange(int n) {
+		double position = ((n * 0x9E3779B1L) & 0xFFFFFFL) / (double) 0x1000000;
+		if (position >= changeRatio) {
+			return UNCHANGED;
+		}
+		return MODIFIED + (n % 3);
+	}
+}
@@ -0,0 +1,87 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zipdiff.DifferenceCalculator;
+import zipdiff.Differences;
+import zipdiff.output.Builder;
+import zipdiff.output.BuilderFactory;
+
+/**
+ * measures writing the differences of two synthetic archives with each output Builder.
+ *
+ * @author Hendrik Brummermann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BuilderBenchmark {
+
+	@Param({"txt", "xml", "html", "zip", "zdelta"})
+	public String format;
+
+	@Param({"100000"})
+	public int entries;
+
+	@Param({"0.01", "0.5"})
+	public double changeRatio;
+
+	private File file1;
+
+	private File file2;
+
+	private File output;
+
+	private Differences differences;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file1 = File.createTempFile("zipdiff-benchmark", ".zip");
+		file2 = File.createTempFile("zipdiff-benchmark", ".zip");
+		output = File.createTempFile("zipdiff-benchmark", "." + format);
+		ArchiveGenerator generator = new ArchiveGenerator(entries, 0, changeRatio);
+		generator.write(file1, false);
+		generator.write(file2, true);
+		differences = new DifferenceCalculator(file1, file2).getDifferences();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file1.delete();
+		file2.delete();
+		output.delete();
+	}
+
+	/**
+	 * writes the differences, which have been calculated in advance
+	 */
+	@Benchmark
+	public void build() throws IOException {
+		Builder builder = BuilderFactory.create(output.getPath());
+		builder.build(output.getPath(), 0, differences);
+	}
+}
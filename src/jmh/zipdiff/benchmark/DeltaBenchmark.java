@@ -0,0 +1,115 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zipdiff.DeltaApplier;
+import zipdiff.DifferenceCalculator;
+import zipdiff.Differences;
+import zipdiff.output.DeltaBuilder;
+
+/**
+ * measures writing a .zdelta file for two synthetic archives and applying it
+ * to the first archive. The sizes of the archives and the delta are printed
+ * on setup, so the time can be converted into bytes per second.
+ *
+ * <pre>
+ * ant jmh -Djmh.lib.dir=... -Djmh.args="DeltaBenchmark -p entries=100000"
+ * </pre>
+ *
+ * @author Hendrik Brummermann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DeltaBenchmark {
+
+	@Param({"100000"})
+	public int entries;
+
+	@Param({"0.01", "0.5"})
+	public double changeRatio;
+
+	private File file1;
+
+	private File file2;
+
+	private File delta;
+
+	private File output;
+
+	private Differences differences;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file1 = File.createTempFile("zipdiff-benchmark", ".zip");
+		file2 = File.createTempFile("zipdiff-benchmark", ".zip");
+		delta = File.createTempFile("zipdiff-benchmark", ".zdelta");
+		output = File.createTempFile("zipdiff-benchmark", ".zip");
+		ArchiveGenerator generator = new ArchiveGenerator(entries, 0, changeRatio);
+		generator.write(file1, false);
+		generator.write(file2, true);
+		differences = new DifferenceCalculator(file1, file2).getDifferences();
+		build();
+		System.out.println("file1: " + file1.length() + " bytes, file2: " + file2.length() + " bytes, delta: " + delta.length() + " bytes");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file1.delete();
+		file2.delete();
+		delta.delete();
+		output.delete();
+	}
+
+	/**
+	 * writes the delta of the differences, which have been calculated in advance
+	 */
+	@Benchmark
+	public void build() throws IOException {
+		new DeltaBuilder().build(delta.getPath(), 0, differences);
+	}
+
+	/**
+	 * reconstructs the second archive from the first one and the delta
+	 */
+	@Benchmark
+	public int apply() throws IOException {
+		InputStream is = new FileInputStream(delta);
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(output));
+		try {
+			return new DeltaApplier().apply(file1, is, os);
+		} finally {
+			is.close();
+			os.close();
+		}
+	}
+}
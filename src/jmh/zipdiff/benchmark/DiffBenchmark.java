@@ -0,0 +1,145 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zipdiff.DifferenceCalculator;
+import zipdiff.Differences;
+import zipdiff.archive.MappedArchiveReader;
+
+/**
+ * measures scanning and comparing synthetic archives with the DifferenceCalculator.
+ * The archive reader and the number of iterations are selected by the
+ * jmh.reader and jmh.iterations properties of the jmh target, e.g. to scan
+ * two archives with the same 200000 entries using the MappedArchiveReader:
+ *
+ * <pre>
+ * ant jmh -Djmh.lib.dir=... -Djmh.reader=mapped -Djmh.iterations=10
+ *     -Djmh.args="DiffBenchmark.getDifferences -p entries=200000 -p depth=0 -p changeRatio=0.0"
+ * </pre>
+ *
+ * @author Hendrik Brummermann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DiffBenchmark {
+
+	@Param({"10000", "100000"})
+	public int entries;
+
+	@Param({"0", "2"})
+	public int depth;
+
+	@Param({"0.0", "0.01", "0.5"})
+	public double changeRatio;
+
+	@Param({"zipfile", "mapped"})
+	public String reader;
+
+	private File file1;
+
+	private File file2;
+
+	private Map map1;
+
+	private Map map2;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file1 = File.createTempFile("zipdiff-benchmark", ".zip");
+		file2 = File.createTempFile("zipdiff-benchmark", ".zip");
+		ArchiveGenerator generator = new ArchiveGenerator(entries, depth, changeRatio);
+		generator.write(file1, false);
+		generator.write(file2, true);
+
+		BenchmarkCalculator calculator = createCalculator();
+		map1 = calculator.buildZipEntryMap(file1);
+		map2 = calculator.buildZipEntryMap(file2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file1.delete();
+		file2.delete();
+	}
+
+	/**
+	 * scans one archive into a map of ZipEntries
+	 */
+	@Benchmark
+	public Map buildZipEntryMap() throws IOException {
+		return createCalculator().buildZipEntryMap(file1);
+	}
+
+	/**
+	 * compares two maps of ZipEntries which have been built in advance
+	 */
+	@Benchmark
+	public Differences calculateDifferences() throws IOException {
+		return createCalculator().calculateDifferences(map1, map2);
+	}
+
+	/**
+	 * scans and compares both archives
+	 */
+	@Benchmark
+	public Differences getDifferences() throws IOException {
+		return createCalculator().getDifferences();
+	}
+
+	private BenchmarkCalculator createCalculator() throws IOException {
+		BenchmarkCalculator calculator = new BenchmarkCalculator(file1, file2);
+		// unchanged archives have the same entries, they should be scanned anyway
+		calculator.setCheckingIdenticalFiles(false);
+		calculator.setCheckingCentralDirectories(false);
+		if (reader.equals("mapped")) {
+			calculator.setArchiveReader(new MappedArchiveReader());
+		}
+		return calculator;
+	}
+
+	/**
+	 * makes the map based methods of the DifferenceCalculator accessible
+	 */
+	static class BenchmarkCalculator extends DifferenceCalculator {
+
+		BenchmarkCalculator(File file1, File file2) throws IOException {
+			super(file1, file2);
+		}
+
+		Map buildZipEntryMap(File file) throws IOException {
+			return buildZipEntryMap(new ZipFile(file), 0);
+		}
+
+		@Override
+		public Differences calculateDifferences(Map m1, Map m2) {
+			return super.calculateDifferences(m1, m2);
+		}
+	}
+}
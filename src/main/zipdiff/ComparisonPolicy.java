@@ -0,0 +1,127 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.util.StringTokenizer;
+
+/**
+ * Defines which properties of two entries with the same name have to be equal
+ * for the entries to be considered unchanged. The type (file or directory) is
+ * always compared.
+ *
+ * @author Hendrik Brummermann
+ */
+public class ComparisonPolicy {
+
+	/** uncompressed size */
+	public static final int SIZE = 1;
+
+	/** compressed size, which depends on the compression level */
+	public static final int COMPRESSED_SIZE = 2;
+
+	/** CRC of the uncompressed content */
+	public static final int CRC = 4;
+
+	/** modification time */
+	public static final int TIME = 8;
+
+	/** uncompressed content */
+	public static final int CONTENT = 16;
+
+	/** uncompressed size and CRC, which identify the content without reading it */
+	public static final int DEFAULT = SIZE | CRC;
+
+	private static final String[] NAMES = {"size", "compressedsize", "crc", "time", "content"};
+
+	private static final int[] FIELDS = {SIZE, COMPRESSED_SIZE, CRC, TIME, CONTENT};
+
+	private int fields;
+
+	/**
+	 * creates a ComparisonPolicy which compares the uncompressed size and the CRC
+	 */
+	public ComparisonPolicy() {
+		this(DEFAULT);
+	}
+
+	/**
+	 * creates a ComparisonPolicy
+	 *
+	 * @param fields combination of SIZE, COMPRESSED_SIZE, CRC, TIME and CONTENT
+	 */
+	public ComparisonPolicy(int fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * parses a comma separated list of the properties to compare,
+	 * e. g. "size,crc,time".
+	 *
+	 * @param list list of size, compressedsize, crc, time and content
+	 * @return ComparisonPolicy
+	 * @throws IllegalArgumentException in case of an unknown property
+	 */
+	public static ComparisonPolicy parse(String list) {
+		int fields = 0;
+		StringTokenizer st = new StringTokenizer(list, ", ");
+		while (st.hasMoreTokens()) {
+			fields = fields | parseField(st.nextToken());
+		}
+		return new ComparisonPolicy(fields);
+	}
+
+	private static int parseField(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name)) {
+				return FIELDS[i];
+			}
+		}
+		throw new IllegalArgumentException("unknown comparison property: " + name);
+	}
+
+	/**
+	 * @param field SIZE, COMPRESSED_SIZE, CRC, TIME or CONTENT
+	 * @return true, if the property is compared
+	 */
+	public boolean isComparing(int field) {
+		return (fields & field) != 0;
+	}
+
+	/**
+	 * adds or removes a property
+	 *
+	 * @param field SIZE, COMPRESSED_SIZE, CRC, TIME or CONTENT
+	 * @param b true to compare the property
+	 */
+	public void setComparing(int field, boolean b) {
+		if (b) {
+			fields = fields | field;
+		} else {
+			fields = fields & ~field;
+		}
+	}
+
+	/**
+	 * @return combination of SIZE, COMPRESSED_SIZE, CRC, TIME and CONTENT
+	 */
+	public int getFields() {
+		return fields;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < NAMES.length; i++) {
+			if (isComparing(FIELDS[i])) {
+				if (sb.length() > 0) {
+					sb.append(",");
+				}
+				sb.append(NAMES[i]);
+			}
+		}
+		return sb.toString();
+	}
+}
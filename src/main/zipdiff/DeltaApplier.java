@@ -0,0 +1,232 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import zipdiff.archive.RawEntryCopier;
+import zipdiff.output.DeltaBuilder;
+import zipdiff.util.BinaryDelta;
+
+/**
+ * applies a .zdelta file written by the DeltaBuilder to the first zip file, so
+ * the files of the second zip file are reconstructed. The unchanged entries of
+ * the first zip file are copied without compressing them again, unless zip64
+ * records are required, followed by the modified and added files. The crc of
+ * every source and result is checked.
+ *
+ * @author Hendrik Brummermann
+ */
+public class DeltaApplier {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * applies a delta
+	 *
+	 * @param base first zip file, which the delta was created for
+	 * @param delta InputStream of the .zdelta file, it is not closed
+	 * @param out OutputStream of the new zip file, it is not closed
+	 * @return number of entries written
+	 * @throws IOException in case of an input/output error, an invalid delta or
+	 * a first zip file, which does not match the delta
+	 */
+	public int apply(File base, InputStream delta, OutputStream out) throws IOException {
+		Inflater inflater = new Inflater();
+		ZipFile zipFile = new ZipFile(base);
+		try {
+			DataInputStream is = new DataInputStream(new InflaterInputStream(new BufferedInputStream(delta, BUFFER_SIZE), inflater, BUFFER_SIZE));
+			if (is.readInt() != DeltaBuilder.MAGIC) {
+				throw new ZipException("not a delta file");
+			}
+			int version = is.readUnsignedByte();
+			if (version != DeltaBuilder.VERSION) {
+				throw new ZipException("unsupported delta version " + version);
+			}
+
+			Set dropped = new HashSet();
+			int count = is.readInt();
+			for (int i = 0; i < count; i++) {
+				dropped.add(is.readUTF());
+			}
+			Map entryNames = new HashMap();
+			Enumeration entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				String name = ((ZipEntry) entries.nextElement()).getName();
+				if (!dropped.contains(name)) {
+					entryNames.put(name, name);
+				}
+			}
+			int records = is.readInt();
+
+			RawEntryCopier copier = null;
+			ZipOutputStream zos = null;
+			int written;
+			if (RawEntryCopier.isSupported(base, entryNames.size() + records)) {
+				copier = new RawEntryCopier(out);
+				written = copier.copy(base, entryNames);
+			} else {
+				zos = new ZipOutputStream(out);
+				written = copyEntries(zipFile, entryNames, zos);
+			}
+
+			int type = is.readUnsignedByte();
+			while (type != DeltaBuilder.END) {
+				if (type == DeltaBuilder.ADDED) {
+					applyAdded(is, copier, zos);
+				} else if (type == DeltaBuilder.CHANGED) {
+					applyChanged(is, zipFile, copier, zos);
+				} else {
+					throw new ZipException("invalid delta record " + type);
+				}
+				written++;
+				type = is.readUnsignedByte();
+			}
+			if (copier != null) {
+				copier.finish();
+			} else {
+				zos.finish();
+			}
+			return written;
+		} finally {
+			zipFile.close();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * writes a file, which is part of the delta
+	 */
+	private void applyAdded(DataInputStream is, RawEntryCopier copier, ZipOutputStream zos) throws IOException {
+		String name = is.readUTF();
+		long time = is.readLong();
+		long size = is.readLong();
+		if ((size < 0) || (size > Integer.MAX_VALUE)) {
+			throw new ZipException("entry too large: " + name);
+		}
+		byte[] data = new byte[(int) size];
+		is.readFully(data);
+		if (crc(data) != is.readInt()) {
+			throw new ZipException("invalid crc: " + name);
+		}
+		write(name, data, time, copier, zos);
+	}
+
+	/**
+	 * writes a file, which is reconstructed from a delta against the first zip file
+	 */
+	private void applyChanged(DataInputStream is, ZipFile zipFile, RawEntryCopier copier, ZipOutputStream zos) throws IOException {
+		String name = is.readUTF();
+		String sourceName = is.readUTF();
+		long time = is.readLong();
+		int sourceCrc = is.readInt();
+		int crc = is.readInt();
+		byte[] delta = new byte[is.readInt()];
+		is.readFully(delta);
+
+		ZipEntry zipEntry = zipFile.getEntry(sourceName);
+		if (zipEntry == null) {
+			throw new ZipException("entry not found: " + sourceName + " in " + zipFile.getName());
+		}
+		byte[] source = read(zipFile, zipEntry);
+		if (crc(source) != sourceCrc) {
+			throw new ZipException("entry does not match the delta: " + sourceName + " in " + zipFile.getName());
+		}
+		byte[] data = BinaryDelta.decode(source, new ByteArrayInputStream(delta));
+		if (crc(data) != crc) {
+			throw new ZipException("invalid crc: " + name);
+		}
+		write(name, data, time, copier, zos);
+	}
+
+	/**
+	 * writes an entry with the RawEntryCopier, or the ZipOutputStream if it is null
+	 */
+	private static void write(String name, byte[] data, long time, RawEntryCopier copier, ZipOutputStream zos) throws IOException {
+		if (copier != null) {
+			copier.add(name, data, RawEntryCopier.toDosTime(time), true);
+		} else {
+			ZipEntry zipEntry = new ZipEntry(name);
+			if (time != -1) {
+				zipEntry.setTime(time);
+			}
+			zos.putNextEntry(zipEntry);
+			zos.write(data);
+			zos.closeEntry();
+		}
+	}
+
+	/**
+	 * uncompresses the unchanged entries of the first zip file and compresses them into the ZipOutputStream
+	 *
+	 * @return number of entries copied
+	 */
+	private static int copyEntries(ZipFile zipFile, Map entryNames, ZipOutputStream zos) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count = 0;
+		Enumeration entries = zipFile.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry zipEntry = (ZipEntry) entries.nextElement();
+			if (!entryNames.containsKey(zipEntry.getName())) {
+				continue;
+			}
+			ZipEntry z = new ZipEntry(zipEntry.getName());
+			z.setTime(zipEntry.getTime());
+			zos.putNextEntry(z);
+			InputStream is = zipFile.getInputStream(zipEntry);
+			try {
+				int n = is.read(buffer);
+				while (n > -1) {
+					zos.write(buffer, 0, n);
+					n = is.read(buffer);
+				}
+			} finally {
+				is.close();
+			}
+			zos.closeEntry();
+			count++;
+		}
+		return count;
+	}
+
+	private static int crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] read(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
+		if (zipEntry.getSize() > Integer.MAX_VALUE) {
+			throw new ZipException("entry too large: " + zipEntry.getName());
+		}
+		byte[] data = new byte[(int) zipEntry.getSize()];
+		DataInputStream is = new DataInputStream(zipFile.getInputStream(zipEntry));
+		try {
+			is.readFully(data);
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+}
@@ -6,22 +6,39 @@
 package zipdiff;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
 
+import zipdiff.archive.ArchiveReader;
+import zipdiff.archive.ContentComparator;
+import zipdiff.archive.DirectoryArchiveReader;
+import zipdiff.archive.EntryIndex;
+import zipdiff.archive.MappedArchiveReader;
+import zipdiff.archive.ScanContext;
+import zipdiff.archive.SpillArea;
+import zipdiff.archive.StreamArchiveReader;
+import zipdiff.archive.ZipFileArchiveReader;
+import zipdiff.util.GlobFilter;
+import zipdiff.util.NameFilter;
 import zipdiff.util.StringUtil;
 
 /**
@@ -33,26 +50,64 @@ import zipdiff.util.StringUtil;
  */
 public class DifferenceCalculator {
 
+	private static final int IDENTICAL_CHECK_BUFFER_SIZE = 1024 * 1024;
+
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
+	private final File archive1;
+
+	private final File archive2;
+
+	/** streams to read the archives from instead of the files, null if the files are read */
+	private InputStream stream1;
+
+	private InputStream stream2;
+
+	/** ZipFiles passed to the constructor, null if the archives are opened by the ArchiveReader */
 	private final ZipFile file1;
 
 	private final ZipFile file2;
 
+	private ArchiveReader archiveReader = new ZipFileArchiveReader();
+
+	private SpillArea spillArea = new SpillArea();
+
 	private int numberOfPrefixesToSkip1 = 0;
 
 	private int numberOfPrefixesToSkip2 = 0;
 
-	private boolean ignoreTimestamps = false;
-
 	private boolean ignoreCVSFiles = false;
 
-	private boolean compareCRCValues = true;
+	private ComparisonPolicy comparisonPolicy = new ComparisonPolicy();
 
-	private Pattern filesToIgnorePattern;
+	private NameFilter filesToIgnoreFilter;
+
+	private Set includes = new HashSet();
+
+	private Set excludes = new HashSet();
+
+	/** include and exclude patterns, null if there are none */
+	private GlobFilter globFilter;
 
 	private boolean bVerbose = false;
 
+	private int numberOfThreads = 1;
+
+	private ExecutorService executor;
+
+	private boolean checkingIdenticalFiles = true;
+
+	private boolean checkingCentralDirectories = true;
+
+	private int maximumNestingDepth = -1;
+
+	/** extensions of archives in lower case without dot, null for the default ones */
+	private Set archiveExtensions;
+
+	private boolean detectingArchivesByContent = false;
+
+	private boolean stoppingAtFirstDifference = false;
+
 	protected void debug(Object msg) {
 		if (isVerboseEnabled()) {
 			System.out.println("[" + DifferenceCalculator.class.getName() + "] " + String.valueOf(msg));
@@ -84,13 +139,41 @@ public class DifferenceCalculator {
 	 * @throws java.io.IOException
 	 */
 	public DifferenceCalculator(File f1, File f2) throws java.io.IOException {
-		this(new ZipFile(f1), new ZipFile(f2));
+		archive1 = f1;
+		archive2 = f2;
+		file1 = null;
+		file2 = null;
+	}
+
+	/**
+	 * reads the first zip file sequentially from a stream, e.g. stdin or a
+	 * download, instead of the file passed to the constructor, which is only
+	 * used as name in the output. The stream is consumed by the next comparison,
+	 * but not closed.
+	 *
+	 * @param is InputStream of the first zip file
+	 */
+	public void setInputStream1(InputStream is) {
+		stream1 = is;
 	}
 
 	/**
-	 * Constructor taking 2 ZipFiles to compare
+	 * reads the second zip file sequentially from a stream instead of the file
+	 * passed to the constructor, see setInputStream1()
+	 *
+	 * @param is InputStream of the second zip file
+	 */
+	public void setInputStream2(InputStream is) {
+		stream2 = is;
+	}
+
+	/**
+	 * Constructor taking 2 ZipFiles to compare. ZipFiles are always read
+	 * using a ZipFileArchiveReader.
 	 */
 	public DifferenceCalculator(ZipFile zf1, ZipFile zf2) {
+		archive1 = new File(zf1.getName());
+		archive2 = new File(zf2.getName());
 		file1 = zf1;
 		file2 = zf2;
 	}
@@ -103,27 +186,77 @@ public class DifferenceCalculator {
 	 */
 	public void setFilenameRegexToIgnore(Set patterns) {
 		if (patterns == null) {
-			filesToIgnorePattern = null;
+			filesToIgnoreFilter = null;
 		} else if (patterns.isEmpty()) {
-			filesToIgnorePattern = null;
+			filesToIgnoreFilter = null;
 		} else {
-			String regex = "";
+			filesToIgnoreFilter = new NameFilter(patterns);
+			logger.log(Level.FINE, "Regular expression is : " + filesToIgnoreFilter.getPattern());
+		}
+	}
 
-			Iterator iter = patterns.iterator();
-			while (iter.hasNext()) {
-				String pattern = (String) iter.next();
-				if (regex.length() > 0) {
-					regex += "|";
-				}
-				regex += "(" + pattern + ")";
-			}
-			filesToIgnorePattern = Pattern.compile(regex);
-			logger.log(Level.FINE, "Regular expression is : " + regex);
+	/**
+	 * sets Ant-style patterns of the entries to compare, e.g. WEB-INF/classes/**.
+	 * Embedded archives are matched like directories, e.g. **&#47;lib/*.jar/**&#47;*.class.
+	 * If no include pattern is set, all entries are compared.
+	 *
+	 * @param patterns include patterns
+	 */
+	public void setIncludes(Set patterns) {
+		includes = (patterns == null) ? new HashSet() : patterns;
+		updateGlobFilter();
+	}
+
+	/**
+	 * @return Ant-style patterns of the entries to compare
+	 */
+	public Set getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * sets Ant-style patterns of the entries to ignore, e.g. WEB-INF/lib/. Directories
+	 * and embedded archives below excluded paths are neither listed nor scanned.
+	 *
+	 * @param patterns exclude patterns
+	 */
+	public void setExcludes(Set patterns) {
+		excludes = (patterns == null) ? new HashSet() : patterns;
+		updateGlobFilter();
+	}
+
+	/**
+	 * @return Ant-style patterns of the entries to ignore
+	 */
+	public Set getExcludes() {
+		return excludes;
+	}
+
+	private void updateGlobFilter() {
+		GlobFilter filter = new GlobFilter(includes, excludes);
+		globFilter = filter.isEmpty() ? null : filter;
+	}
+
+	/**
+	 * checks the include and exclude patterns while scanning an archive
+	 *
+	 * @param key key of the entry
+	 * @param entryName name of the entry inside its archive
+	 * @return true, if the entry is ignored; directories and archives are only
+	 * ignored, if nothing below them can be included
+	 */
+	private boolean isExcludedWhileScanning(String key, String entryName) {
+		if (entryName.endsWith("/")) {
+			return globFilter.isPruned(key);
 		}
+		if (isArchiveName(entryName) && isExpandedAtDepth(key)) {
+			return globFilter.isExcluded(key) || globFilter.isPruned(key);
+		}
+		return !globFilter.isIncluded(key);
 	}
 
 	/**
-	 * returns true if fileToIgnorePattern matches the filename given.
+	 * returns true if one of the patterns to ignore matches the filename given.
 	 * @param filepath
 	 * @param filename The name of the file to check to see if it should be ignored.
 	 * @return true if the file should be ignored.
@@ -133,11 +266,10 @@ public class DifferenceCalculator {
 			return false;
 		} else if (isCVSFile(filepath, entryName) && (ignoreCVSFiles())) {
 			return true;
-		} else if (filesToIgnorePattern == null) {
+		} else if (filesToIgnoreFilter == null) {
 			return false;
 		} else {
-			Matcher m = filesToIgnorePattern.matcher(entryName);
-			boolean match = m.matches();
+			boolean match = filesToIgnoreFilter.matches(entryName);
 			if (match) {
 				logger.log(Level.FINEST, "Found a match against : " + entryName + " so excluding");
 			}
@@ -160,14 +292,47 @@ public class DifferenceCalculator {
 	 * @param b true ensures that CRCs will be checked
 	 */
 	public void setCompareCRCValues(boolean b) {
-		compareCRCValues = b;
+		comparisonPolicy.setComparing(ComparisonPolicy.CRC, b);
 	}
 
 	/**
 	 * @return true if this instance will check the CRCs of each ZipEntry
 	 */
 	public boolean getCompareCRCValues() {
-		return compareCRCValues;
+		return comparisonPolicy.isComparing(ComparisonPolicy.CRC);
+	}
+
+	/**
+	 * Compare the uncompressed content of entries with the same size instead of
+	 * their compressed sizes and CRCs. Entries of the zip files are read side by side,
+	 * entries of embedded archives are compared by a digest computed during the scan.
+	 * @param b true ensures that the content will be compared
+	 */
+	public void setCompareContent(boolean b) {
+		comparisonPolicy.setComparing(ComparisonPolicy.CONTENT, b);
+	}
+
+	/**
+	 * @return true if this instance will compare the content of entries
+	 */
+	public boolean getCompareContent() {
+		return comparisonPolicy.isComparing(ComparisonPolicy.CONTENT);
+	}
+
+	/**
+	 * sets which properties of the entries are compared. The default is
+	 * to compare the uncompressed size and the CRC.
+	 * @param policy ComparisonPolicy
+	 */
+	public void setComparisonPolicy(ComparisonPolicy policy) {
+		comparisonPolicy = policy;
+	}
+
+	/**
+	 * @return the properties of the entries which are compared
+	 */
+	public ComparisonPolicy getComparisonPolicy() {
+		return comparisonPolicy;
 	}
 
 	/**
@@ -202,6 +367,220 @@ public class DifferenceCalculator {
 		return numberOfPrefixesToSkip2;
 	}
 
+	/**
+	 * sets the number of threads used to scan the zip files. With more than
+	 * one thread both zip files are scanned at the same time and embedded zip
+	 * files are processed concurrently. This setting is ignored if an executor
+	 * has been set.
+	 *
+	 * @param numberOfThreads number of threads, 1 scans on the calling thread
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	/**
+	 * @return number of threads used to scan the zip files
+	 */
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * sets the executor used to scan the zip files in parallel. The executor
+	 * is not shut down by this class.
+	 *
+	 * @param executor executor, or null to use numberOfThreads
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return executor used to scan the zip files in parallel, or null
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * sets the ArchiveReader used to read the zip files, for example a
+	 * MappedArchiveReader for very large archives.
+	 *
+	 * @param archiveReader ArchiveReader
+	 */
+	public void setArchiveReader(ArchiveReader archiveReader) {
+		this.archiveReader = archiveReader;
+	}
+
+	/**
+	 * @return ArchiveReader used to read the zip files
+	 */
+	public ArchiveReader getArchiveReader() {
+		return archiveReader;
+	}
+
+	/**
+	 * sets the SpillArea which holds the uncompressed data of embedded archives
+	 *
+	 * @param spillArea SpillArea
+	 */
+	public void setSpillArea(SpillArea spillArea) {
+		this.spillArea = spillArea;
+	}
+
+	/**
+	 * @return SpillArea which holds the uncompressed data of embedded archives
+	 */
+	public SpillArea getSpillArea() {
+		return spillArea;
+	}
+
+
+	/**
+	 * sets whether the zip files are compared byte by byte first. Byte identical
+	 * files have no differences, so they are not scanned at all. This is enabled
+	 * by default.
+	 *
+	 * @param b true to check for identical files
+	 */
+	public void setCheckingIdenticalFiles(boolean b) {
+		checkingIdenticalFiles = b;
+	}
+
+	/**
+	 * @return true if byte identical zip files are not scanned
+	 */
+	public boolean isCheckingIdenticalFiles() {
+		return checkingIdenticalFiles;
+	}
+
+	/**
+	 * sets whether digests of the central directories of the zip files are
+	 * compared first. If the names, sizes and crcs of the entries, which are not
+	 * ignored, are the same, the zip files are not scanned and compared entry by
+	 * entry. This is enabled by default.
+	 *
+	 * @param b true to compare the central directories first
+	 */
+	public void setCheckingCentralDirectories(boolean b) {
+		checkingCentralDirectories = b;
+	}
+
+	/**
+	 * @return true if zip files with matching central directories are not scanned
+	 */
+	public boolean isCheckingCentralDirectories() {
+		return checkingCentralDirectories;
+	}
+
+	/**
+	 * sets how deep embedded archives are scanned: 0 to compare embedded archives
+	 * like other files, 1 to scan only the archives in the zip files, -1 for no
+	 * limit, which is the default
+	 *
+	 * @param depth maximum nesting depth
+	 */
+	public void setMaximumNestingDepth(int depth) {
+		maximumNestingDepth = depth;
+	}
+
+	/**
+	 * @return maximum nesting depth of scanned archives, -1 for no limit
+	 */
+	public int getMaximumNestingDepth() {
+		return maximumNestingDepth;
+	}
+
+	/**
+	 * sets the extensions of embedded archives, e.g. "jar" or "aar"
+	 *
+	 * @param extensions extensions without dot, or null for zip, ear, war, rar and jar
+	 */
+	public void setArchiveExtensions(Set extensions) {
+		if (extensions == null) {
+			archiveExtensions = null;
+			return;
+		}
+		archiveExtensions = new HashSet();
+		Iterator iter = extensions.iterator();
+		while (iter.hasNext()) {
+			String extension = ((String) iter.next()).trim().toLowerCase(Locale.ENGLISH);
+			if (extension.startsWith(".")) {
+				extension = extension.substring(1);
+			}
+			if (extension.length() > 0) {
+				archiveExtensions.add(extension);
+			}
+		}
+	}
+
+	/**
+	 * @return extensions of embedded archives, or null for the default ones
+	 */
+	public Set getArchiveExtensions() {
+		return archiveExtensions;
+	}
+
+	/**
+	 * sets whether entries with other extensions are checked for the signature
+	 * of a zip file and scanned as archives. This requires reading the first
+	 * bytes of every entry.
+	 *
+	 * @param b true to detect archives by their content
+	 */
+	public void setDetectingArchivesByContent(boolean b) {
+		detectingArchivesByContent = b;
+	}
+
+	/**
+	 * @return true, if archives are detected by their content, too
+	 */
+	public boolean isDetectingArchivesByContent() {
+		return detectingArchivesByContent;
+	}
+
+	/**
+	 * sets whether the comparison stops at the first difference, e.g. if only
+	 * a yes/no answer is required. The top level entries of zip files are
+	 * compared first, so embedded archives are not scanned at all, if a top
+	 * level entry differs already. Then the embedded archives are compared one
+	 * pair at a time. At most one difference is reported.
+	 *
+	 * @param b true to stop at the first difference
+	 */
+	public void setStoppingAtFirstDifference(boolean b) {
+		stoppingAtFirstDifference = b;
+	}
+
+	/**
+	 * @return true, if the comparison stops at the first difference
+	 */
+	public boolean isStoppingAtFirstDifference() {
+		return stoppingAtFirstDifference;
+	}
+
+	/**
+	 * checks whether an entry is an archive by its extension
+	 *
+	 * @param name name of the entry
+	 * @return true if it has one of the archive extensions
+	 */
+	protected boolean isArchiveName(String name) {
+		if (archiveExtensions == null) {
+			return isZipFile(name);
+		}
+		int dot = name.lastIndexOf('.');
+		return (dot > -1) && (name.indexOf('/', dot) < 0) && archiveExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * @param key key of an archive
+	 * @return true, if an archive with this key is scanned at its nesting depth
+	 */
+	private boolean isExpandedAtDepth(String key) {
+		return (maximumNestingDepth < 0) || (ScanContext.getDepth(key) < maximumNestingDepth);
+	}
 
 	/**
 	 * Opens the ZipFile and builds up a map of all the entries. The key is the name of
@@ -224,26 +603,111 @@ public class DifferenceCalculator {
 	 * @throws java.io.IOException
 	 */
 	protected Map buildZipEntryMap(ZipFile zf, int p) throws java.io.IOException {
-		Map zipEntryMap = new HashMap();
-		try {
-			Enumeration entries = zf.entries();
-			while (entries.hasMoreElements()) {
-				ZipEntry entry = (ZipEntry) entries.nextElement();
-				InputStream is = null;
-				try {
-					is = zf.getInputStream(entry);
-					processZipEntry("", entry, is, zipEntryMap, p);
-				} finally {
-					if (is != null) {
-						is.close();
-					}
-				}
+		return new ZipFileArchiveReader().read(zf, createScanContext(p, executor)).toMap();
+	}
+
+	/**
+	 * creates the ScanContext which is used by ArchiveReaders to decide which entries to ignore
+	 *
+	 * @param p number of directory prefixes to skip
+	 * @param scanExecutor executor for parallel scanning, or null
+	 * @return ScanContext
+	 */
+	protected ScanContext createScanContext(int p, ExecutorService scanExecutor) {
+		return new CalculatorScanContext(p, scanExecutor);
+	}
+
+	/**
+	 * ScanContext which delegates to ignoreThisFile() and isArchiveName()
+	 */
+	private class CalculatorScanContext extends ScanContext {
+
+		CalculatorScanContext(int numberOfPrefixesToSkip, ExecutorService executor) {
+			super(numberOfPrefixesToSkip, executor, spillArea);
+		}
+
+		@Override
+		public boolean isFiltering() {
+			return ignoreCVSFiles() || (filesToIgnoreFilter != null) || (globFilter != null);
+		}
+
+		@Override
+		public boolean ignore(String prefix, String entryName) {
+			if (ignoreThisFile(prefix, entryName)) {
+				return true;
 			}
-		} finally {
-			zf.close();
+			if (globFilter == null) {
+				return false;
+			}
+
+			// the prefix of embedded entries is the key of their archive
+			String key = (prefix.length() == 0) ? StringUtil.removeDirectoryPrefix(entryName, getNumberOfPrefixesToSkip()) : prefix + entryName;
+			return (key != null) && (key.length() > 0) && isExcludedWhileScanning(key, entryName);
+		}
+
+		@Override
+		public boolean isArchive(CharSequence name) {
+			// avoids converting the name to a String for the default extensions
+			return (archiveExtensions == null) ? super.isArchive(name) : isArchiveName(name.toString());
+		}
+
+		@Override
+		public int getMaximumDepth() {
+			return maximumNestingDepth;
+		}
+
+		@Override
+		public boolean isDetectingArchivesByContent() {
+			return detectingArchivesByContent;
+		}
+
+		@Override
+		public boolean isDigesting() {
+			return getCompareContent();
+		}
+
+		@Override
+		public String getSignature() {
+			String pattern = (filesToIgnoreFilter == null) ? "" : filesToIgnoreFilter.getPattern();
+			String globs = (globFilter == null) ? "" : "," + globFilter;
+			String archives = ",depth=" + maximumNestingDepth + ",sniff=" + detectingArchivesByContent + ((archiveExtensions == null) ? "" : ",extensions=" + new TreeSet(archiveExtensions));
+			return "skip=" + getNumberOfPrefixesToSkip() + ",cvs=" + ignoreCVSFiles() + ",digest=" + isDigesting() + archives + ",ignore=" + pattern + globs;
+		}
+	}
+
+	/**
+	 * reads one of the archives into an EntryIndex
+	 */
+	private class ArchiveScan implements Callable {
+		private final File file;
+
+		private final ZipFile zipFile;
+
+		private final InputStream stream;
+
+		private final ScanContext context;
+
+		ArchiveScan(File file, ZipFile zipFile, InputStream stream, ScanContext context) {
+			this.file = file;
+			this.zipFile = zipFile;
+			this.stream = stream;
+			this.context = context;
 		}
 
-		return zipEntryMap;
+		public Object call() throws IOException {
+			EntryIndex index;
+			if (stream != null) {
+				index = new StreamArchiveReader().read(stream, context);
+			} else if (zipFile != null) {
+				index = new ZipFileArchiveReader().read(zipFile, context);
+			} else if (file.isDirectory()) {
+				index = new DirectoryArchiveReader().read(file, context);
+			} else {
+				index = getArchiveReader().read(file, context);
+			}
+			index.sort();
+			return index;
+		}
 	}
 
 	/**
@@ -275,7 +739,8 @@ public class DifferenceCalculator {
 	 * all the embedded ZipEntries.
 	 * @param zipEntry The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
 	 * will also be placed in the Map.
-	 * @param is The InputStream of the corresponding ZipEntry.
+	 * @param is The InputStream of the corresponding ZipEntry. It is only read if the
+	 * ZipEntry is a ZipFile and may be null otherwise.
 	 * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
 	 * be the name of the ZipEntry.
 	 * @param p number of directory prefixes to skip
@@ -301,17 +766,22 @@ public class DifferenceCalculator {
 
 
 
+	/**
+	 * Places the ZipEntries of an embedded ZipFile into the given Map. The entries are
+	 * read from the central directory of the embedded ZipFile, because the local headers
+	 * of entries with a data descriptor do not contain their sizes and crc.
+	 * @param prefix The name of the embedded ZipFile followed by "!"
+	 * @param is The InputStream of the embedded ZipFile
+	 * @param m The Map in which to place all the ZipEntries into
+	 * @throws java.io.IOException
+	 */
 	protected void processEmbeddedZipFile(String prefix, InputStream is, Map m) throws java.io.IOException {
-		ZipInputStream zis = new ZipInputStream(is);
-
-		ZipEntry entry = zis.getNextEntry();
-
-		while (entry != null) {
-			processZipEntry(prefix, entry, zis, m);
-			zis.closeEntry();
-			entry = zis.getNextEntry();
+		ByteBuffer archive = spillArea.read(is, -1);
+		try {
+			m.putAll(new MappedArchiveReader().read(archive, prefix, createScanContext(0, null)).toMap());
+		} finally {
+			spillArea.release(archive);
 		}
-
 	}
 
 	/**
@@ -321,28 +791,7 @@ public class DifferenceCalculator {
 	 * @return true if it has a valid extension.
 	 */
 	public static boolean isZipFile(String filename) {
-		boolean result;
-
-		if (filename == null) {
-			result = false;
-		} else {
-			String lowercaseName = filename.toLowerCase();
-			if (lowercaseName.endsWith(".zip")) {
-				result = true;
-			} else if (lowercaseName.endsWith(".ear")) {
-				result = true;
-			} else if (lowercaseName.endsWith(".war")) {
-				result = true;
-			} else if (lowercaseName.endsWith(".rar")) {
-				result = true;
-			} else if (lowercaseName.endsWith(".jar")) {
-				result = true;
-			} else {
-				result = false;
-			}
-		}
-
-		return result;
+		return (filename != null) && ScanContext.hasArchiveExtension(filename);
 	}
 
 	/**
@@ -371,10 +820,77 @@ public class DifferenceCalculator {
 	 * @throws java.io.IOException
 	 */
 	protected Differences calculateDifferences(ZipFile zf1, ZipFile zf2, int p1, int p2) throws java.io.IOException {
-		Map map1 = buildZipEntryMap(zf1, p1);
-		Map map2 = buildZipEntryMap(zf2, p2);
+		File f1 = new File(zf1.getName());
+		File f2 = new File(zf2.getName());
+		EntryIndex[] indexes = readArchives(f1, zf1, p1, f2, zf2, p2);
+		Differences d = new Differences();
+		calculateDifferences(f1, indexes[0], f2, indexes[1], d);
+		return d;
+	}
+
+	/**
+	 * Reads two archives into sorted EntryIndexes. The archives are read
+	 * at the same time, if an executor or more than one thread is configured.
+	 *
+	 * @return the EntryIndexes of the first and the second archive
+	 * @throws java.io.IOException
+	 */
+	private EntryIndex[] readArchives(File f1, ZipFile zf1, int p1, File f2, ZipFile zf2, int p2) throws java.io.IOException {
+		return readArchives(new File[] {f1, f2}, new ZipFile[] {zf1, zf2}, new InputStream[2], new int[] {p1, p2});
+	}
+
+	/**
+	 * Reads archives into sorted EntryIndexes. The archives are read at the
+	 * same time, if an executor or more than one thread is configured.
+	 *
+	 * @param files archives to read
+	 * @param zipFiles open ZipFiles of the archives or null elements
+	 * @param streams streams to read the archives from or null elements
+	 * @param prefixes number of directory prefixes to skip for each archive
+	 * @return the EntryIndexes of the archives in the same order
+	 * @throws java.io.IOException
+	 */
+	private EntryIndex[] readArchives(File[] files, ZipFile[] zipFiles, InputStream[] streams, int[] prefixes) throws java.io.IOException {
+		ExecutorService ownExecutor = null;
+		ExecutorService scanExecutor = executor;
+		if ((scanExecutor == null) && (numberOfThreads > 1)) {
+			ownExecutor = Executors.newFixedThreadPool(numberOfThreads);
+			scanExecutor = ownExecutor;
+		}
+
+		try {
+			// all archives but the last one are forked, the last one is read on this thread
+			int last = files.length - 1;
+			FutureTask[] scans = new FutureTask[last];
+			EntryIndex[] indexes = new EntryIndex[files.length];
+			boolean completed = false;
+			try {
+				for (int i = 0; i < last; i++) {
+					ScanContext context = createScanContext(prefixes[i], scanExecutor);
+					scans[i] = context.fork(new ArchiveScan(files[i], zipFiles[i], streams[i], context));
+				}
+				ScanContext context = createScanContext(prefixes[last], scanExecutor);
+				indexes[last] = (EntryIndex) new ArchiveScan(files[last], zipFiles[last], streams[last], context).call();
+				for (int i = 0; i < last; i++) {
+					indexes[i] = (EntryIndex) ScanContext.join(scans[i]);
+				}
+				completed = true;
+			} finally {
+				if (!completed) {
+					for (int i = 0; i < last; i++) {
+						if (scans[i] != null) {
+							scans[i].cancel(false);
+						}
+					}
+				}
+			}
 
-		return calculateDifferences(map1, map2);
+			return indexes;
+		} finally {
+			if (ownExecutor != null) {
+				ownExecutor.shutdown();
+			}
+		}
 	}
 
 	/**
@@ -385,30 +901,44 @@ public class DifferenceCalculator {
 	protected Differences calculateDifferences(Map m1, Map m2) {
 		Differences d = new Differences();
 
-		Set names1 = m1.keySet();
-		Set names2 = m2.keySet();
-
-		Set allNames = new HashSet();
-		allNames.addAll(names1);
-		allNames.addAll(names2);
+		String[] names1 = (String[]) m1.keySet().toArray(new String[m1.size()]);
+		String[] names2 = (String[]) m2.keySet().toArray(new String[m2.size()]);
+		Arrays.sort(names1);
+		Arrays.sort(names2);
+
+		// both name lists are walked in order, so each name is visited exactly once
+		int i = 0;
+		int j = 0;
+		while ((i < names1.length) || (j < names2.length)) {
+			int cmp;
+			if (i >= names1.length) {
+				cmp = 1;
+			} else if (j >= names2.length) {
+				cmp = -1;
+			} else {
+				cmp = names1[i].compareTo(names2[j]);
+			}
 
-		Iterator iterAllNames = allNames.iterator();
-		while (iterAllNames.hasNext()) {
-			String name = (String) iterAllNames.next();
+			String name = (cmp <= 0) ? names1[i] : names2[j];
 			if (ignoreThisFile("", name)) {
 				// do nothing
-			} else if (names1.contains(name) && (!names2.contains(name))) {
+			} else if (cmp < 0) {
 				d.fileRemoved(name, (ZipEntry) m1.get(name));
-			} else if (names2.contains(name) && (!names1.contains(name))) {
+			} else if (cmp > 0) {
 				d.fileAdded(name, (ZipEntry) m2.get(name));
-			} else if (names1.contains(name) && (names2.contains(name))) {
+			} else {
 				ZipEntry entry1 = (ZipEntry) m1.get(name);
 				ZipEntry entry2 = (ZipEntry) m2.get(name);
 				if (!entriesMatch(entry1, entry2)) {
 					d.fileChanged(name, entry1, entry2);
 				}
-			} else {
-				throw new IllegalStateException("unexpected state");
+			}
+
+			if (cmp <= 0) {
+				i++;
+			}
+			if (cmp >= 0) {
+				j++;
 			}
 		}
 
@@ -416,33 +946,283 @@ public class DifferenceCalculator {
 	}
 
 	/**
-	 * returns true if the two entries are equivalent in type, name, size, compressed size
-	 * and time or CRC.
+	 * compares the EntryIndexes of two archives, comparing the content of the
+	 * entries if configured.
+	 * @return number of differences reported
+	 * @throws java.io.IOException
+	 */
+	private int calculateDifferences(File f1, EntryIndex index1, File f2, EntryIndex index2, DifferenceListener listener) throws java.io.IOException {
+		// the crc of files in directories is unknown, so it may need to be computed
+		if (!getCompareContent() && !f1.isDirectory() && !f2.isDirectory()) {
+			return calculateDifferences(index1, index2, listener, null);
+		}
+		ContentComparator comparator = new ContentComparator(f1, f2);
+		try {
+			return calculateDifferences(index1, index2, listener, comparator);
+		} finally {
+			comparator.close();
+		}
+	}
+
+	/**
+	 * @return true, if the entry is a directory or archive, which is not included
+	 * itself, but was scanned because entries below it may be included
+	 */
+	private boolean isOnlyScannedForEntriesBelow(EntryIndex index, int i) {
+		String name = index.getName(i);
+		return (index.isDirectory(i) || isArchive(index, i)) && !globFilter.isIncluded(name);
+	}
+
+	/**
+	 * Given two EntryIndexes it will report all the differences found between
+	 * them to a DifferenceListener. The indexes are sorted, if they are not
+	 * sorted already, and merged in a single pass.
+	 * @param comparator compares the content of entries, or null
+	 * @return number of differences reported
+	 * @throws java.io.IOException if the listener or the content comparison fails
+	 */
+	protected int calculateDifferences(EntryIndex index1, EntryIndex index2, DifferenceListener listener, ContentComparator comparator) throws java.io.IOException {
+		int count = 0;
+		boolean filtering = ignoreCVSFiles() || (filesToIgnoreFilter != null);
+		index1.sort();
+		index2.sort();
+
+		int i = 0;
+		int j = 0;
+		while ((i < index1.size()) || (j < index2.size())) {
+			int cmp;
+			if (i >= index1.size()) {
+				cmp = 1;
+			} else if (j >= index2.size()) {
+				cmp = -1;
+			} else {
+				cmp = EntryIndex.compareKeys(index1, i, index2, j);
+			}
+
+			EntryIndex index = (cmp <= 0) ? index1 : index2;
+			int k = (cmp <= 0) ? i : j;
+
+			// top level entries, whose key is their entry name, have already been filtered by
+			// the ScanContext with the same arguments; only other keys are checked again
+			if (filtering && !index.isKeyEntryName(k) && ignoreThisFile("", index.getName(k))) {
+				// do nothing
+			} else if ((globFilter != null) && isOnlyScannedForEntriesBelow(index, k)) {
+				// do nothing
+			} else if (cmp < 0) {
+				listener.fileRemoved(index1.getName(i), index1.toZipEntry(i));
+				count++;
+			} else if (cmp > 0) {
+				listener.fileAdded(index2.getName(j), index2.toZipEntry(j));
+				count++;
+			} else if (!entriesMatch(index1, i, index2, j) || !contentMatches(index1, i, index2, j, comparator)) {
+				listener.fileChanged(index1.getName(i), index1.toZipEntry(i), index2.toZipEntry(j));
+				count++;
+			}
+
+			if (cmp <= 0) {
+				i++;
+			}
+			if (cmp >= 0) {
+				j++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * returns true if the two entries are equivalent in type and in the properties
+	 * selected by the ComparisonPolicy, except for the content.
+	 * @param index1 EntryIndex of the first entry
+	 * @param i index of the first entry
+	 * @param index2 EntryIndex of the second entry
+	 * @param j index of the second entry
+	 * @return true if the entries are equivalent.
+	 */
+	protected boolean entriesMatch(EntryIndex index1, int i, EntryIndex index2, int j) {
+		ComparisonPolicy policy = comparisonPolicy;
+		boolean result;
+
+		result = (index1.isDirectory(i) == index2.isDirectory(j));
+
+		if (policy.isComparing(ComparisonPolicy.TIME)) {
+			result = result && valuesMatch(index1.getTime(i), index2.getTime(j));
+		}
+
+		// the data of archives, whose entries are compared, depends on the compression level
+		if (policy.isComparing(ComparisonPolicy.CONTENT) && isArchive(index1, i)) {
+			return result;
+		}
+
+		if (policy.isComparing(ComparisonPolicy.SIZE) || policy.isComparing(ComparisonPolicy.CONTENT)) {
+			result = result && valuesMatch(index1.getSize(i), index2.getSize(j));
+		}
+
+		if (policy.isComparing(ComparisonPolicy.COMPRESSED_SIZE)) {
+			result = result && compressedSizesMatch(index1.getCompressedSize(i), index2.getCompressedSize(j));
+		}
+
+		// an unknown crc is checked by contentMatches()
+		if (policy.isComparing(ComparisonPolicy.CRC) && !isCrcUnknown(index1, i, index2, j)) {
+			result = result && valuesMatch(index1.getCrc(i), index2.getCrc(j));
+		}
+		return result;
+	}
+
+	/**
+	 * compares the content of two entries, which match according to entriesMatch(),
+	 * if the content is compared. Otherwise unknown crcs are computed, if the crc is compared.
+	 * @param comparator reads the content of entries in the zip files, may be null
+	 * @return true if the content is identical or does not need to be compared
+	 * @throws java.io.IOException
+	 */
+	private boolean contentMatches(EntryIndex index1, int i, EntryIndex index2, int j, ContentComparator comparator) throws java.io.IOException {
+		if (index1.isDirectory(i)) {
+			return true;
+		}
+		if (!getCompareContent()) {
+			return !getCompareCRCValues() || !isCrcUnknown(index1, i, index2, j) || crcMatches(index1, i, index2, j, comparator);
+		}
+		if (isArchive(index1, i)) {
+			return true;
+		}
+		if (index1.isEmbedded(i) || index2.isEmbedded(j) || index1.hasDigest(i) || index2.hasDigest(j)) {
+			return digestsMatch(index1, i, index2, j, comparator);
+		}
+		if (comparator == null) {
+			return false;
+		}
+		return comparator.contentEquals(index1.getEntryName(i), index2.getEntryName(j));
+	}
+
+	/**
+	 * compares the digests of two entries. Entries read from a stream cannot be
+	 * read again, so the digest of a top level entry of the other archive is
+	 * computed, if it is compared with one of them.
+	 * @param comparator reads the content of entries in the zip files, may be null
+	 * @return true if the digests are equal
+	 * @throws java.io.IOException
+	 */
+	private boolean digestsMatch(EntryIndex index1, int i, EntryIndex index2, int j, ContentComparator comparator) throws java.io.IOException {
+		if (comparator != null) {
+			if (!index1.hasDigest(i) && !index1.isEmbedded(i)) {
+				index1.setDigest(i, comparator.computeDigest1(index1.getEntryName(i)));
+			}
+			if (!index2.hasDigest(j) && !index2.isEmbedded(j)) {
+				index2.setDigest(j, comparator.computeDigest2(index2.getEntryName(j)));
+			}
+		}
+		return EntryIndex.digestEquals(index1, i, index2, j);
+	}
+
+	/**
+	 * computes unknown crcs of two top level entries and compares them. The crcs
+	 * are only computed for entries whose name and size match already, and they
+	 * are stored in the EntryIndexes, so later comparisons with the same index
+	 * and the output reuse them.
+	 * @param comparator reads the content of entries in the zip files, may be null
+	 * @return true if the crcs are equal
+	 * @throws java.io.IOException
+	 */
+	private boolean crcMatches(EntryIndex index1, int i, EntryIndex index2, int j, ContentComparator comparator) throws java.io.IOException {
+		if ((comparator == null) || index1.isEmbedded(i) || index2.isEmbedded(j)) {
+			return false;
+		}
+		if (index1.getCrc(i) == EntryIndex.UNKNOWN) {
+			index1.setCrc(i, comparator.computeCrc1(index1.getEntryName(i)));
+		}
+		if (index2.getCrc(j) == EntryIndex.UNKNOWN) {
+			index2.setCrc(j, comparator.computeCrc2(index2.getEntryName(j)));
+		}
+		return index1.getCrc(i) == index2.getCrc(j);
+	}
+
+	/**
+	 * @return true if the crc of one of the entries is unknown, e.g. for files in a directory
+	 */
+	private static boolean isCrcUnknown(EntryIndex index1, int i, EntryIndex index2, int j) {
+		return (index1.getCrc(i) == EntryIndex.UNKNOWN) || (index2.getCrc(j) == EntryIndex.UNKNOWN);
+	}
+
+	/**
+	 * Embedded archives are compared by their entries, when comparing the content.
+	 * Their own content depends on the compression level of the embedded entries.
+	 * Archives below the maximum nesting depth are compared like other files.
+	 * @return true if the entry is an archive whose entries are compared
+	 */
+	private boolean isArchive(EntryIndex index, int i) {
+		if (index.isDirectory(i)) {
+			return false;
+		}
+		String name = index.getName(i);
+		return isArchiveName(name) && isExpandedAtDepth(name);
+	}
+
+	/**
+	 * returns true if the two entries are equivalent in type and in the properties
+	 * selected by the ComparisonPolicy. The content is not compared.
 	 * @param entry1 The first ZipEntry to compare
 	 * @param entry2 The second ZipEntry to compare
 	 * @return true if the entries are equivalent.
 	 */
 	protected boolean entriesMatch(ZipEntry entry1, ZipEntry entry2) {
+		ComparisonPolicy policy = comparisonPolicy;
 		boolean result;
 
-		result = (entry1.isDirectory() == entry2.isDirectory()) && (entry1.getSize() == entry2.getSize()) && (entry1.getCompressedSize() == entry2.getCompressedSize());
+		result = (entry1.isDirectory() == entry2.isDirectory());
+
+		if (policy.isComparing(ComparisonPolicy.SIZE)) {
+			result = result && valuesMatch(entry1.getSize(), entry2.getSize());
+		}
+
+		if (policy.isComparing(ComparisonPolicy.COMPRESSED_SIZE)) {
+			result = result && compressedSizesMatch(entry1.getCompressedSize(), entry2.getCompressedSize());
+		}
 
-		if (!isIgnoringTimestamps()) {
-			result = result && (entry1.getTime() == entry2.getTime());
+		if (policy.isComparing(ComparisonPolicy.TIME)) {
+			result = result && valuesMatch(entry1.getTime(), entry2.getTime());
 		}
 
-		if (getCompareCRCValues()) {
-			result = result && (entry1.getCrc() == entry2.getCrc());
+		if (policy.isComparing(ComparisonPolicy.CRC)) {
+			result = result && valuesMatch(entry1.getCrc(), entry2.getCrc());
 		}
 		return result;
 	}
 
+	/**
+	 * compares two metadata values. Unknown values never match, so entries
+	 * with incomplete metadata are reported as changed instead of being
+	 * silently treated as equal.
+	 *
+	 * @param value1 value of the first entry or EntryIndex.UNKNOWN
+	 * @param value2 value of the second entry or EntryIndex.UNKNOWN
+	 * @return true, if both values are known and equal
+	 */
+	private static boolean valuesMatch(long value1, long value2) {
+		return (value1 == value2) && (value1 != EntryIndex.UNKNOWN);
+	}
+
+	/**
+	 * compares two compressed sizes. Files in a directory have no compressed
+	 * size, so it is not compared, if it is unknown on either side.
+	 *
+	 * @param size1 compressed size of the first entry or EntryIndex.UNKNOWN
+	 * @param size2 compressed size of the second entry or EntryIndex.UNKNOWN
+	 * @return true, if the sizes are equal or one of them is unknown
+	 */
+	private static boolean compressedSizesMatch(long size1, long size2) {
+		if ((size1 == EntryIndex.UNKNOWN) || (size2 == EntryIndex.UNKNOWN)) {
+			return true;
+		}
+		return size1 == size2;
+	}
+
 	public void setIgnoreTimestamps(boolean b) {
-		ignoreTimestamps = b;
+		comparisonPolicy.setComparing(ComparisonPolicy.TIME, !b);
 	}
 
 	public boolean isIgnoringTimestamps() {
-		return ignoreTimestamps;
+		return !comparisonPolicy.isComparing(ComparisonPolicy.TIME);
 	}
 
 	public boolean ignoreCVSFiles() {
@@ -459,10 +1239,376 @@ public class DifferenceCalculator {
 	 * @throws java.io.IOException
 	 */
 	public Differences getDifferences() throws java.io.IOException {
-		Differences d = calculateDifferences(file1, file2, numberOfPrefixesToSkip1, numberOfPrefixesToSkip2);
-		d.setFilename1(file1.getName());
-		d.setFilename2(file2.getName());
-
+		Differences d = new Differences();
+		reportDifferences(d);
 		return d;
 	}
+
+	/**
+	 * reports the differences between the two zip files to a listener as soon
+	 * as they are found, instead of collecting them first.
+	 *
+	 * @param listener DifferenceListener
+	 * @return number of differences reported
+	 * @throws java.io.IOException
+	 */
+	public int reportDifferences(DifferenceListener listener) throws java.io.IOException {
+		// streams can only be read once, they are scanned right away
+		boolean streaming = (stream1 != null) || (stream2 != null);
+		if (!streaming && checkingIdenticalFiles && (numberOfPrefixesToSkip1 == numberOfPrefixesToSkip2) && isIdentical(archive1, archive2)) {
+			logger.log(Level.FINE, archive1 + " and " + archive2 + " are identical");
+			listener.start(archive1.getPath(), archive2.getPath());
+			listener.end();
+			return 0;
+		}
+		if (!streaming && checkingCentralDirectories && centralDirectoriesMatch()) {
+			logger.log(Level.FINE, "the central directories of " + archive1 + " and " + archive2 + " match");
+			listener.start(archive1.getPath(), archive2.getPath());
+			listener.end();
+			return 0;
+		}
+		InputStream[] streams = {stream1, stream2};
+		stream1 = null;
+		stream2 = null;
+		if (stoppingAtFirstDifference) {
+			listener.start(archive1.getPath(), archive2.getPath());
+			int count = reportFirstDifference(streaming, streams, listener);
+			listener.end();
+			return count;
+		}
+		EntryIndex[] indexes = readArchives(new File[] {archive1, archive2}, new ZipFile[] {file1, file2}, streams, new int[] {numberOfPrefixesToSkip1, numberOfPrefixesToSkip2});
+		listener.start(archive1.getPath(), archive2.getPath());
+		int count = calculateDifferences(archive1, indexes[0], archive2, indexes[1], listener);
+		listener.end();
+		return count;
+	}
+
+	/**
+	 * reports the first difference. If both zip files are files, their top
+	 * level entries are compared first. Then the embedded archives, which are
+	 * part of both zip files, are read and compared one pair at a time, so no
+	 * archive is read after the first difference. Streams and directories are
+	 * read completely before they are compared. The comparison is aborted by an
+	 * exception.
+	 *
+	 * @return 1 if a difference was found, 0 otherwise
+	 * @throws java.io.IOException
+	 */
+	private int reportFirstDifference(boolean streaming, InputStream[] streams, DifferenceListener listener) throws java.io.IOException {
+		DifferenceListener first = new FirstDifferenceListener(listener);
+		try {
+			EntryIndex[] indexes = null;
+			if (!streaming && (file1 == null) && archive1.isFile() && archive2.isFile()) {
+				indexes = readTopLevelEntries();
+			}
+			if (indexes != null) {
+				calculateDifferences(archive1, indexes[0], archive2, indexes[1], first);
+				compareEmbeddedArchives(indexes[0], indexes[1], first);
+			} else {
+				indexes = readArchives(new File[] {archive1, archive2}, new ZipFile[] {file1, file2}, streams, new int[] {numberOfPrefixesToSkip1, numberOfPrefixesToSkip2});
+				calculateDifferences(archive1, indexes[0], archive2, indexes[1], first);
+			}
+			return 0;
+		} catch (FirstDifferenceFound e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * compares the entries of the embedded archives, which are part of both zip
+	 * files, one pair at a time. Archives with the same size and crc have the
+	 * same entries, so they are only read if the content is compared.
+	 *
+	 * @param index1 sorted top level entries of the first zip file
+	 * @param index2 sorted top level entries of the second zip file
+	 * @param listener DifferenceListener
+	 * @throws java.io.IOException
+	 */
+	private void compareEmbeddedArchives(EntryIndex index1, EntryIndex index2, DifferenceListener listener) throws java.io.IOException {
+		ZipFile zipFile1 = new ZipFile(archive1);
+		try {
+			ZipFile zipFile2 = new ZipFile(archive2);
+			try {
+				int i = 0;
+				int j = 0;
+				while ((i < index1.size()) && (j < index2.size())) {
+					int cmp = EntryIndex.compareKeys(index1, i, index2, j);
+					if ((cmp == 0) && isEmbeddedArchiveCandidate(index1, i, index2, j)) {
+						String prefix = index1.getName(i) + "!";
+						EntryIndex embedded1 = readEmbeddedArchive(zipFile1, index1.getEntryName(i), prefix);
+						EntryIndex embedded2 = readEmbeddedArchive(zipFile2, index2.getEntryName(j), prefix);
+						if ((embedded1 != null) && (embedded2 != null)) {
+							calculateDifferences(embedded1, embedded2, listener, null);
+						}
+					}
+					if (cmp <= 0) {
+						i++;
+					}
+					if (cmp >= 0) {
+						j++;
+					}
+				}
+			} finally {
+				zipFile2.close();
+			}
+		} finally {
+			zipFile1.close();
+		}
+	}
+
+	/**
+	 * @return true, if the entries may be embedded archives with different entries
+	 */
+	private boolean isEmbeddedArchiveCandidate(EntryIndex index1, int i, EntryIndex index2, int j) {
+		if (index1.isDirectory(i) || index2.isDirectory(j)) {
+			return false;
+		}
+		if (!isArchive(index1, i) && !(detectingArchivesByContent && isExpandedAtDepth(index1.getName(i)))) {
+			return false;
+		}
+		return getCompareContent() || (index1.getSize(i) != index2.getSize(j)) || (index1.getCrc(i) != index2.getCrc(j));
+	}
+
+	/**
+	 * reads the entries of an embedded archive
+	 *
+	 * @param zipFile zip file containing the embedded archive
+	 * @param entryName name of the embedded archive in the zip file
+	 * @param prefix key of the embedded archive followed by "!"
+	 * @return EntryIndex, or null if the entry is not an archive
+	 * @throws java.io.IOException
+	 */
+	private EntryIndex readEmbeddedArchive(ZipFile zipFile, String entryName, String prefix) throws java.io.IOException {
+		ZipEntry zipEntry = zipFile.getEntry(entryName);
+		if (zipEntry == null) {
+			throw new ZipException("entry " + entryName + " not found in " + zipFile.getName());
+		}
+		if (!isArchiveName(entryName)) {
+			InputStream is = zipFile.getInputStream(zipEntry);
+			try {
+				if (!ScanContext.hasZipSignature(is)) {
+					return null;
+				}
+			} finally {
+				is.close();
+			}
+		}
+		InputStream is = zipFile.getInputStream(zipEntry);
+		try {
+			ByteBuffer archive = spillArea.read(is, zipEntry.getSize());
+			try {
+				return new MappedArchiveReader().read(archive, prefix, createScanContext(0, null));
+			} finally {
+				spillArea.release(archive);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * reads the top level entries from the central directories of the zip files
+	 *
+	 * @return sorted EntryIndexes, or null if the central directories cannot be read this way
+	 */
+	private EntryIndex[] readTopLevelEntries() {
+		MappedArchiveReader reader = new MappedArchiveReader();
+		try {
+			EntryIndex index1 = reader.readCentralDirectory(archive1, createScanContext(numberOfPrefixesToSkip1, null));
+			EntryIndex index2 = reader.readCentralDirectory(archive2, createScanContext(numberOfPrefixesToSkip2, null));
+			index1.sort();
+			index2.sort();
+			return new EntryIndex[] {index1, index2};
+		} catch (IOException e) {
+			logger.log(Level.FINE, "cannot read the central directories: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * passes the first difference on and aborts the comparison
+	 */
+	private static class FirstDifferenceListener implements DifferenceListener {
+		private final DifferenceListener listener;
+
+		FirstDifferenceListener(DifferenceListener listener) {
+			this.listener = listener;
+		}
+
+		public void start(String filename1, String filename2) {
+			// the wrapped listener is started by reportDifferences()
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) throws IOException {
+			listener.fileAdded(fqn, ze);
+			throw new FirstDifferenceFound();
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) throws IOException {
+			listener.fileRemoved(fqn, ze);
+			throw new FirstDifferenceFound();
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) throws IOException {
+			listener.fileChanged(fqn, z1, z2);
+			throw new FirstDifferenceFound();
+		}
+
+		public void end() {
+			// the wrapped listener is ended by reportDifferences()
+		}
+	}
+
+	/**
+	 * thrown by the FirstDifferenceListener to abort the comparison
+	 */
+	private static class FirstDifferenceFound extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * checks whether two files have the same content. The files are compared
+	 * in large sequential reads and the comparison stops at the first difference.
+	 *
+	 * @param f1 first file
+	 * @param f2 second file
+	 * @return true, if both are files with the same content
+	 * @throws java.io.IOException
+	 */
+	protected boolean isIdentical(File f1, File f2) throws java.io.IOException {
+		if (!f1.isFile() || !f2.isFile() || (f1.length() != f2.length())) {
+			return false;
+		}
+		if (f1.getCanonicalFile().equals(f2.getCanonicalFile())) {
+			return true;
+		}
+
+		FileInputStream is1 = new FileInputStream(f1);
+		try {
+			FileInputStream is2 = new FileInputStream(f2);
+			try {
+				FileChannel channel1 = is1.getChannel();
+				FileChannel channel2 = is2.getChannel();
+				ByteBuffer buffer1 = ByteBuffer.allocateDirect(IDENTICAL_CHECK_BUFFER_SIZE);
+				ByteBuffer buffer2 = ByteBuffer.allocateDirect(IDENTICAL_CHECK_BUFFER_SIZE);
+				while (true) {
+					int n1 = readFully(channel1, buffer1);
+					int n2 = readFully(channel2, buffer2);
+					if ((n1 != n2) || !buffer1.equals(buffer2)) {
+						return false;
+					}
+					if (n1 < IDENTICAL_CHECK_BUFFER_SIZE) {
+						return true;
+					}
+				}
+			} finally {
+				is2.close();
+			}
+		} finally {
+			is1.close();
+		}
+	}
+
+	/**
+	 * compares digests of the central directories of both zip files. They cover
+	 * the names, sizes and crcs of the entries, which are not ignored, and the
+	 * compressed sizes and times, if they are compared. Embedded archives with
+	 * the same size and crc have the same entries, so they are not read. The
+	 * digests are not compared, if the content is compared, because equal
+	 * sizes and crcs do not prove equal content.
+	 *
+	 * @return true, if the digests are equal; false if they differ, the content
+	 * is compared or the zip files cannot be read this way, e.g. because they
+	 * are directories
+	 */
+	protected boolean centralDirectoriesMatch() {
+		if (comparisonPolicy.isComparing(ComparisonPolicy.CONTENT)) {
+			return false;
+		}
+		if (!archive1.isFile() || !archive2.isFile()) {
+			return false;
+		}
+		boolean compressedSizes = comparisonPolicy.isComparing(ComparisonPolicy.COMPRESSED_SIZE);
+		boolean times = comparisonPolicy.isComparing(ComparisonPolicy.TIME);
+		MappedArchiveReader reader = new MappedArchiveReader();
+		try {
+			byte[] digest1 = reader.readCentralDirectory(archive1, createScanContext(numberOfPrefixesToSkip1, null)).digest(compressedSizes, times);
+			byte[] digest2 = reader.readCentralDirectory(archive2, createScanContext(numberOfPrefixesToSkip2, null)).digest(compressedSizes, times);
+			return Arrays.equals(digest1, digest2);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "not comparing the central directories: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * fills a buffer from a channel and flips it
+	 *
+	 * @return number of bytes read, less than the capacity only at the end of the channel
+	 */
+	private static int readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining() && (channel.read(buffer) >= 0)) {
+			// keep reading
+		}
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * compares the second zip file with several baselines, e.g. previous releases.
+	 * The second zip file is read only once. The baselines take the place of the
+	 * first zip file, which is not read, and are read at the same time, if an
+	 * executor or more than one thread is configured.
+	 *
+	 * @param baselines baseline archives
+	 * @return the differences between each baseline and the second zip file
+	 * @throws java.io.IOException
+	 */
+	public Differences[] getDifferences(File[] baselines) throws java.io.IOException {
+		Differences[] differences = new Differences[baselines.length];
+		for (int i = 0; i < baselines.length; i++) {
+			differences[i] = new Differences();
+		}
+		reportDifferences(baselines, differences);
+		return differences;
+	}
+
+	/**
+	 * compares the second zip file with several baselines and reports the
+	 * differences to one listener per baseline.
+	 *
+	 * @param baselines baseline archives
+	 * @param listeners DifferenceListener for each baseline
+	 * @return number of differences reported for each baseline
+	 * @throws java.io.IOException
+	 */
+	public int[] reportDifferences(File[] baselines, DifferenceListener[] listeners) throws java.io.IOException {
+		if (baselines.length != listeners.length) {
+			throw new IllegalArgumentException("one listener per baseline is required");
+		}
+		int last = baselines.length;
+		File[] files = new File[last + 1];
+		ZipFile[] zipFiles = new ZipFile[last + 1];
+		int[] prefixes = new int[last + 1];
+		for (int i = 0; i < last; i++) {
+			files[i] = baselines[i];
+			prefixes[i] = numberOfPrefixesToSkip1;
+		}
+		files[last] = archive2;
+		zipFiles[last] = file2;
+		prefixes[last] = numberOfPrefixesToSkip2;
+		InputStream[] streams = new InputStream[last + 1];
+		streams[last] = stream2;
+		stream2 = null;
+
+		EntryIndex[] indexes = readArchives(files, zipFiles, streams, prefixes);
+		int[] counts = new int[last];
+		for (int i = 0; i < last; i++) {
+			listeners[i].start(baselines[i].getPath(), archive2.getPath());
+			counts[i] = calculateDifferences(baselines[i], indexes[i], archive2, indexes[last], listeners[i]);
+			listeners[i].end();
+		}
+		return counts;
+	}
 }
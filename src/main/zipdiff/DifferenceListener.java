@@ -0,0 +1,62 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff;
+
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+
+/**
+ * Receives the differences from a DifferenceCalculator as soon as they are
+ * found. The differences are reported in the order of their names.
+ *
+ * @author Hendrik Brummermann
+ */
+public interface DifferenceListener {
+
+	/**
+	 * called before the first difference is reported
+	 *
+	 * @param filename1 name of the first file
+	 * @param filename2 name of the second file
+	 * @throws IOException in case of an input/output error
+	 */
+	public void start(String filename1, String filename2) throws IOException;
+
+	/**
+	 * an entry exists only in the second file
+	 *
+	 * @param fqn name of the entry including the names of embedded archives
+	 * @param ze entry of the second file
+	 * @throws IOException in case of an input/output error
+	 */
+	public void fileAdded(String fqn, ZipEntry ze) throws IOException;
+
+	/**
+	 * an entry exists only in the first file
+	 *
+	 * @param fqn name of the entry including the names of embedded archives
+	 * @param ze entry of the first file
+	 * @throws IOException in case of an input/output error
+	 */
+	public void fileRemoved(String fqn, ZipEntry ze) throws IOException;
+
+	/**
+	 * an entry exists in both files but is different
+	 *
+	 * @param fqn name of the entry including the names of embedded archives
+	 * @param z1 entry of the first file
+	 * @param z2 entry of the second file
+	 * @throws IOException in case of an input/output error
+	 */
+	public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) throws IOException;
+
+	/**
+	 * called after the last difference has been reported
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	public void end() throws IOException;
+}
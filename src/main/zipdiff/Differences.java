@@ -13,10 +13,11 @@ import java.util.zip.ZipEntry;
 
 /**
  * Used to keep track of difference between 2 zip files.
+ * Collects all differences reported to it as DifferenceListener.
  *
  * @author Sean C. Sullivan
  */
-public class Differences {
+public class Differences implements DifferenceListener {
 	private final Map added = new TreeMap();
 
 	private final Map removed = new TreeMap();
@@ -49,6 +50,15 @@ public class Differences {
 		return filename2;
 	}
 
+	public void start(String filename1, String filename2) {
+		setFilename1(filename1);
+		setFilename2(filename2);
+	}
+
+	public void end() {
+		// nothing to do
+	}
+
 	public void fileAdded(String fqn, ZipEntry ze) {
 		added.put(fqn, ze);
 	}
@@ -5,9 +5,26 @@
  */
 package zipdiff;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -17,8 +34,11 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import zipdiff.archive.CachingArchiveReader;
+import zipdiff.archive.MappedArchiveReader;
 import zipdiff.output.Builder;
 import zipdiff.output.BuilderFactory;
+import zipdiff.output.StreamingBuilder;
 
 /**
  * Provides a command line interface to zipdiff
@@ -34,6 +54,10 @@ public class Main {
 
 	private static final String OPTION_COMPARE_TIMESTAMPS = "comparetimestamps";
 
+	private static final String OPTION_COMPARE_CONTENT = "comparecontent";
+
+	private static final String OPTION_COMPARE = "compare";
+
 	private static final String OPTION_IGNORE_CVS_FILES = "ignorecvsfiles";
 
 	private static final String OPTION_OUTPUT_FILE = "outputfile";
@@ -42,6 +66,9 @@ public class Main {
 
 	private static final String OPTION_FILE2 = "file2";
 
+	/** file name to read a zip file from stdin */
+	private static final String STDIN = "-";
+
 	private static final String OPTION_SKIP_OUTPUT_PREFIXES = "skipoutputprefixes";
 
 	private static final String OPTION_SKIP_PREFIX1 = "skipprefixes1";
@@ -50,10 +77,38 @@ public class Main {
 
 	private static final String OPTION_REGEX = "regex";
 
+	private static final String OPTION_INCLUDE = "include";
+
+	private static final String OPTION_EXCLUDE = "exclude";
+
 	private static final String OPTION_EXIT_WITH_ERROR_ON_DIFF = "exitwitherrorondifference";
 
 	private static final String OPTION_VERBOSE = "verbose";
 
+	private static final String OPTION_THREADS = "threads";
+
+	private static final String OPTION_MEMORY_MAPPED = "memorymapped";
+
+	private static final String OPTION_INDEX_CACHE = "indexcache";
+
+	private static final String OPTION_BASELINES = "baselines";
+
+	private static final String OPTION_BATCH = "batch";
+
+	private static final String OPTION_NO_IDENTICAL_CHECK = "noidenticalcheck";
+
+	private static final String OPTION_NO_CENTRAL_DIRECTORY_CHECK = "nocentraldirectorycheck";
+
+	private static final String OPTION_MAX_DEPTH = "maxdepth";
+
+	private static final String OPTION_ARCHIVE_EXTENSIONS = "archiveextensions";
+
+	private static final String OPTION_DETECT_ARCHIVES = "detectarchives";
+
+	private static final String OPTION_QUICK_CHECK = "quickcheck";
+
+	private static final String OPTION_APPLY_DELTA = "applydelta";
+
 	private static final Options options;
 
 	// static initializer
@@ -66,11 +121,17 @@ public class Main {
 		Option compareCRC = new Option(OPTION_COMPARE_CRC_VALUES, OPTION_COMPARE_CRC_VALUES, false, "Compare CRC values");
 		compareCRC.setRequired(false);
 
-		Option file1 = new Option(OPTION_FILE1, OPTION_FILE1, true, "<filename> first file to compare");
-		file1.setRequired(true);
+		Option compareContent = new Option(OPTION_COMPARE_CONTENT, OPTION_COMPARE_CONTENT, false, "Compare the uncompressed content instead of compressed sizes and CRC values");
+		compareContent.setRequired(false);
 
-		Option file2 = new Option(OPTION_FILE2, OPTION_FILE2, true, "<filename> second file to compare");
-		file2.setRequired(true);
+		Option compare = new Option(OPTION_COMPARE, OPTION_COMPARE, true, "<list> comma separated list of the properties to compare: size, compressedsize, crc, time, content (default: size,crc), the other compare options add to this list");
+		compare.setRequired(false);
+
+		Option file1 = new Option(OPTION_FILE1, OPTION_FILE1, true, "<filename> first file to compare (- for stdin)");
+		file1.setRequired(false);
+
+		Option file2 = new Option(OPTION_FILE2, OPTION_FILE2, true, "<filename> second file to compare (- for stdin)");
+		file2.setRequired(false);
 
 		Option numberOfOutputPrefixesToSkip = new Option(OPTION_SKIP_OUTPUT_PREFIXES, OPTION_SKIP_OUTPUT_PREFIXES, true, "<n> number of directory prefix to skip in the output file (if supported by outputter");
 		numberOfOutputPrefixesToSkip.setRequired(false);
@@ -88,6 +149,12 @@ public class Main {
 		Option regex = new Option(OPTION_REGEX, OPTION_REGEX, true, "regular expression to match files to exclude e.g. (?i)meta-inf.*");
 		regex.setRequired(false);
 
+		Option includeOption = new Option(OPTION_INCLUDE, OPTION_INCLUDE, true, "<patterns> comma separated list of Ant-style patterns of the files to compare e.g. WEB-INF/classes/**");
+		includeOption.setRequired(false);
+
+		Option excludeOption = new Option(OPTION_EXCLUDE, OPTION_EXCLUDE, true, "<patterns> comma separated list of Ant-style patterns of the files to exclude e.g. WEB-INF/lib/");
+		excludeOption.setRequired(false);
+
 		Option ignoreCVSFilesOption = new Option(OPTION_IGNORE_CVS_FILES, OPTION_IGNORE_CVS_FILES, false, "ignore CVS files");
 		ignoreCVSFilesOption.setRequired(false);
 
@@ -95,18 +162,70 @@ public class Main {
 
 		Option verboseOption = new Option(OPTION_VERBOSE, OPTION_VERBOSE, false, "verbose mode");
 
+		Option threadsOption = new Option(OPTION_THREADS, OPTION_THREADS, true, "<n> number of threads used to scan the files");
+		threadsOption.setRequired(false);
+
+		Option memoryMappedOption = new Option(OPTION_MEMORY_MAPPED, OPTION_MEMORY_MAPPED, false, "read the central directory of the files using memory mapped i/o");
+		memoryMappedOption.setRequired(false);
+
+		Option indexCacheOption = new Option(OPTION_INDEX_CACHE, OPTION_INDEX_CACHE, true, "<dir> directory to cache the indexes of the files, so unchanged files are not read again");
+		indexCacheOption.setRequired(false);
+
+		Option baselinesOption = new Option(OPTION_BASELINES, OPTION_BASELINES, true, "<filenames> comma separated list of further files to compare with the second file, in addition to the first file");
+		baselinesOption.setRequired(false);
+
+		Option batchOption = new Option(OPTION_BATCH, OPTION_BATCH, true, "<filename> manifest with one pair of files and an optional output filename per line (- for stdin), used instead of file1 and file2");
+		batchOption.setRequired(false);
+
+		Option noIdenticalCheckOption = new Option(OPTION_NO_IDENTICAL_CHECK, OPTION_NO_IDENTICAL_CHECK, false, "scan the files even if they are byte identical");
+		noIdenticalCheckOption.setRequired(false);
+
+		Option noCentralDirectoryCheckOption = new Option(OPTION_NO_CENTRAL_DIRECTORY_CHECK, OPTION_NO_CENTRAL_DIRECTORY_CHECK, false, "scan the files even if their central directories describe the same entries");
+		noCentralDirectoryCheckOption.setRequired(false);
+
+		Option maxDepthOption = new Option(OPTION_MAX_DEPTH, OPTION_MAX_DEPTH, true, "<n> maximum nesting depth of embedded archives to scan, 0 to compare them like other files (default: no limit)");
+		maxDepthOption.setRequired(false);
+
+		Option archiveExtensionsOption = new Option(OPTION_ARCHIVE_EXTENSIONS, OPTION_ARCHIVE_EXTENSIONS, true, "<list> comma separated list of the extensions of embedded archives (default: zip,ear,war,rar,jar)");
+		archiveExtensionsOption.setRequired(false);
+
+		Option detectArchivesOption = new Option(OPTION_DETECT_ARCHIVES, OPTION_DETECT_ARCHIVES, false, "scan embedded files with other extensions as archives, if they start with a zip signature");
+		detectArchivesOption.setRequired(false);
+
+		Option quickCheckOption = new Option(OPTION_QUICK_CHECK, OPTION_QUICK_CHECK, false, "stop at the first difference, only this difference is reported");
+		quickCheckOption.setRequired(false);
+
+		Option applyDeltaOption = new Option(OPTION_APPLY_DELTA, OPTION_APPLY_DELTA, true, "<filename> .zdelta file to apply to the first file (- for stdin), the result is written to the output file");
+		applyDeltaOption.setRequired(false);
+
 		options.addOption(compareTS);
 		options.addOption(compareCRC);
+		options.addOption(compareContent);
+		options.addOption(compare);
 		options.addOption(file1);
 		options.addOption(file2);
 		options.addOption(numberOfOutputPrefixesToSkip);
 		options.addOption(numberOfPrefixesToSkip1);
 		options.addOption(numberOfPrefixesToSkip2);
 		options.addOption(regex);
+		options.addOption(includeOption);
+		options.addOption(excludeOption);
 		options.addOption(ignoreCVSFilesOption);
 		options.addOption(exitWithError);
 		options.addOption(verboseOption);
 		options.addOption(outputFileOption);
+		options.addOption(threadsOption);
+		options.addOption(memoryMappedOption);
+		options.addOption(indexCacheOption);
+		options.addOption(baselinesOption);
+		options.addOption(batchOption);
+		options.addOption(noIdenticalCheckOption);
+		options.addOption(noCentralDirectoryCheckOption);
+		options.addOption(maxDepthOption);
+		options.addOption(archiveExtensionsOption);
+		options.addOption(detectArchivesOption);
+		options.addOption(quickCheckOption);
+		options.addOption(applyDeltaOption);
 	}
 
 	private static void checkFile(java.io.File f) {
@@ -122,16 +241,422 @@ public class Main {
 			System.exit(EXITCODE_ERROR);
 		}
 
-		if (f.isDirectory()) {
-			System.err.println("'" + filename + "' is a directory");
-			System.exit(EXITCODE_ERROR);
+	}
+
+	/**
+	 * checks that the compared files can be read by the builder of the output file
+	 *
+	 * @param outputFilename name of the output file or null
+	 * @param filename1 name of the first file
+	 * @param filename2 name of the second file
+	 * @throws ParseException if the builder cannot read one of the files
+	 */
+	static void checkOutputFile(String outputFilename, String filename1, String filename2) throws ParseException {
+		if (!BuilderFactory.isReadingInputFiles(outputFilename)) {
+			return;
+		}
+		if (filename1.equals(STDIN) || filename2.equals(STDIN)) {
+			throw new ParseException("zip and zdelta output cannot be written, if a file is read from stdin");
+		}
+		if (new File(filename1).isDirectory() || new File(filename2).isDirectory()) {
+			throw new ParseException("zip and zdelta output cannot be written, if a directory is compared");
+		}
+	}
+
+	/**
+	 * parses an optional numeric option
+	 *
+	 * @return value of the option or 0, if it is not set
+	 */
+	private static int getNumber(CommandLine line, String option) {
+		if (line.getOptionValue(option) == null) {
+			return 0;
+		}
+		return Integer.parseInt(line.getOptionValue(option));
+	}
+
+	/**
+	 * applies the command line options to a DifferenceCalculator
+	 *
+	 * @param calc DifferenceCalculator
+	 * @param line command line
+	 * @throws ParseException if an option has an invalid value
+	 */
+	private static void configure(DifferenceCalculator calc, CommandLine line) throws ParseException {
+		calc.setNumberOfPrefixesToSkip1(getNumber(line, OPTION_SKIP_PREFIX1));
+		calc.setNumberOfPrefixesToSkip2(getNumber(line, OPTION_SKIP_PREFIX2));
+
+		if (line.getOptionValue(OPTION_THREADS) != null) {
+			calc.setNumberOfThreads(Integer.parseInt(line.getOptionValue(OPTION_THREADS)));
+		}
+
+		if (line.hasOption(OPTION_NO_IDENTICAL_CHECK)) {
+			calc.setCheckingIdenticalFiles(false);
+		}
+
+		if (line.hasOption(OPTION_NO_CENTRAL_DIRECTORY_CHECK)) {
+			calc.setCheckingCentralDirectories(false);
+		}
+
+		if (line.getOptionValue(OPTION_MAX_DEPTH) != null) {
+			calc.setMaximumNestingDepth(getNumber(line, OPTION_MAX_DEPTH));
+		}
+
+		if (line.hasOption(OPTION_ARCHIVE_EXTENSIONS)) {
+			calc.setArchiveExtensions(getPatterns(line.getOptionValue(OPTION_ARCHIVE_EXTENSIONS)));
+		}
+
+		if (line.hasOption(OPTION_DETECT_ARCHIVES)) {
+			calc.setDetectingArchivesByContent(true);
+		}
+
+		if (line.hasOption(OPTION_QUICK_CHECK)) {
+			calc.setStoppingAtFirstDifference(true);
+		}
+
+		if (line.hasOption(OPTION_MEMORY_MAPPED)) {
+			calc.setArchiveReader(new MappedArchiveReader());
+		}
+
+		if (line.getOptionValue(OPTION_INDEX_CACHE) != null) {
+			calc.setArchiveReader(new CachingArchiveReader(calc.getArchiveReader(), new File(line.getOptionValue(OPTION_INDEX_CACHE))));
+		}
+
+		// todo - calc.setFilenamesToIgnore();
+
+		if (line.hasOption(OPTION_COMPARE)) {
+			try {
+				calc.setComparisonPolicy(ComparisonPolicy.parse(line.getOptionValue(OPTION_COMPARE)));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException(e.getMessage());
+			}
+		}
+
+		// the other compare options add properties to the compare list
+		if (line.hasOption(OPTION_COMPARE_CRC_VALUES)) {
+			calc.setCompareCRCValues(true);
+		}
+
+		if (line.hasOption(OPTION_COMPARE_CONTENT)) {
+			calc.setCompareContent(true);
+		}
+
+		if (line.hasOption(OPTION_IGNORE_CVS_FILES)) {
+			calc.setIgnoreCVSFiles(true);
+		} else {
+			calc.setIgnoreCVSFiles(false);
+		}
+
+		if (line.hasOption(OPTION_COMPARE_TIMESTAMPS)) {
+			calc.setIgnoreTimestamps(false);
+		}
+
+		if (line.hasOption(OPTION_REGEX)) {
+			Set regexSet = new HashSet();
+			regexSet.add(line.getOptionValue(OPTION_REGEX));
+
+			calc.setFilenameRegexToIgnore(regexSet);
+		}
+
+		if (line.hasOption(OPTION_INCLUDE)) {
+			calc.setIncludes(getPatterns(line.getOptionValue(OPTION_INCLUDE)));
+		}
+
+		if (line.hasOption(OPTION_EXCLUDE)) {
+			calc.setExcludes(getPatterns(line.getOptionValue(OPTION_EXCLUDE)));
+		}
+	}
+
+	/**
+	 * splits a comma separated list of patterns
+	 *
+	 * @param patternList comma separated list
+	 * @return set of patterns
+	 */
+	private static Set getPatterns(String patternList) {
+		Set patterns = new HashSet();
+		StringTokenizer st = new StringTokenizer(patternList, ",");
+		while (st.hasMoreTokens()) {
+			patterns.add(st.nextToken().trim());
+		}
+		return patterns;
+	}
+
+	/**
+	 * compares the pairs of files listed in a manifest. The pairs are compared
+	 * in a pool of -threads threads, each pair is scanned by a single thread.
+	 *
+	 * @param line command line
+	 * @return exit code
+	 * @throws Exception in case of an error, which affects all pairs
+	 */
+	private static int compareBatch(CommandLine line) throws Exception {
+		String manifest = line.getOptionValue(OPTION_BATCH);
+		List pairs;
+		if (manifest.equals("-")) {
+			pairs = readBatchManifest(new BufferedReader(new InputStreamReader(System.in)));
+		} else {
+			BufferedReader reader = new BufferedReader(new FileReader(manifest));
+			try {
+				pairs = readBatchManifest(reader);
+			} finally {
+				reader.close();
+			}
+		}
+
+		// the calculators are configured up front, so invalid options are reported once
+		int numberOfOutputPrefixesToSkip = getNumber(line, OPTION_SKIP_OUTPUT_PREFIXES);
+		List comparisons = new ArrayList();
+		for (int i = 0; i < pairs.size(); i++) {
+			String[] pair = (String[]) pairs.get(i);
+			if (pair.length > 2) {
+				checkOutputFile(pair[2], pair[0], pair[1]);
+			}
+			DifferenceCalculator calc = new DifferenceCalculator(pair[0], pair[1]);
+			configure(calc, line);
+			calc.setNumberOfThreads(1);
+			comparisons.add(new BatchComparison(calc, (pair.length > 2) ? pair[2] : null, numberOfOutputPrefixesToSkip));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, getNumber(line, OPTION_THREADS)));
+		int differing = 0;
+		int failed = 0;
+		try {
+			List futures = executor.invokeAll(comparisons);
+			for (int i = 0; i < futures.size(); i++) {
+				String[] pair = (String[]) pairs.get(i);
+				try {
+					int count = ((Integer) ((Future) futures.get(i)).get()).intValue();
+					System.out.println(pair[0] + " and " + pair[1] + ": " + count + " differences");
+					if (count > 0) {
+						differing++;
+					}
+				} catch (ExecutionException e) {
+					System.err.println(pair[0] + " and " + pair[1] + ": " + e.getCause());
+					if (line.hasOption(OPTION_VERBOSE)) {
+						e.getCause().printStackTrace();
+					}
+					failed++;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		System.out.println(pairs.size() + " pairs compared, " + differing + " with differences, " + failed + " failed");
+		if (failed > 0) {
+			return EXITCODE_ERROR;
+		}
+		if ((differing > 0) && line.hasOption(OPTION_EXIT_WITH_ERROR_ON_DIFF)) {
+			return EXITCODE_DIFF;
+		}
+		return 0;
+	}
+
+	/**
+	 * reads a batch manifest. Each line contains the first file, the second file
+	 * and optionally the output file, separated by tabs or, if there is no tab,
+	 * by spaces. Empty lines and lines starting with # are ignored.
+	 *
+	 * @param reader manifest
+	 * @return list of String arrays with two or three elements
+	 * @throws IOException in case of an input/output error or an invalid line
+	 */
+	static List readBatchManifest(BufferedReader reader) throws IOException {
+		List pairs = new ArrayList();
+		int lineNumber = 0;
+		String line = reader.readLine();
+		while (line != null) {
+			lineNumber++;
+			String trimmed = line.trim();
+			if ((trimmed.length() > 0) && !trimmed.startsWith("#")) {
+				StringTokenizer st = new StringTokenizer(trimmed, (trimmed.indexOf('\t') > -1) ? "\t" : " ");
+				List fields = new ArrayList();
+				while (st.hasMoreTokens()) {
+					String field = st.nextToken().trim();
+					if (field.length() > 0) {
+						fields.add(field);
+					}
+				}
+				if ((fields.size() < 2) || (fields.size() > 3)) {
+					throw new IOException("invalid line " + lineNumber + " in batch manifest: " + line);
+				}
+				pairs.add(fields.toArray(new String[fields.size()]));
+			}
+			line = reader.readLine();
+		}
+		return pairs;
+	}
+
+	/**
+	 * compares two files and writes the differences to an output file
+	 *
+	 * @param calc DifferenceCalculator
+	 * @param outputFilename name of the output file or null
+	 * @param numberOfOutputPrefixesToSkip number of path segments to skip in the output file
+	 * @return number of differences
+	 * @throws IOException in case of an input/output error
+	 */
+	static int compare(DifferenceCalculator calc, String outputFilename, int numberOfOutputPrefixesToSkip) throws IOException {
+		Builder builder = null;
+		if (outputFilename != null) {
+			builder = BuilderFactory.create(outputFilename);
+		}
+		if (builder instanceof StreamingBuilder) {
+			return calc.reportDifferences(((StreamingBuilder) builder).createListener(outputFilename, numberOfOutputPrefixesToSkip));
 		}
+		Differences d = calc.getDifferences();
+		if (builder != null) {
+			builder.build(outputFilename, numberOfOutputPrefixesToSkip, d);
+		}
+		return countDifferences(d);
+	}
 
+	private static int countDifferences(Differences d) {
+		return d.getAdded().size() + d.getRemoved().size() + d.getChanged().size();
 	}
 
-	private static void writeOutputFile(String filename, int numberOfOutputPrefixesToSkip, Differences d) throws java.io.IOException {
-		Builder builder = BuilderFactory.create(filename);
-		builder.build(filename, numberOfOutputPrefixesToSkip, d);
+	/**
+	 * compares one pair of files of a batch
+	 */
+	private static class BatchComparison implements Callable {
+		private final DifferenceCalculator calc;
+
+		private final String outputFilename;
+
+		private final int numberOfOutputPrefixesToSkip;
+
+		BatchComparison(DifferenceCalculator calc, String outputFilename, int numberOfOutputPrefixesToSkip) {
+			this.calc = calc;
+			this.outputFilename = outputFilename;
+			this.numberOfOutputPrefixesToSkip = numberOfOutputPrefixesToSkip;
+		}
+
+		public Object call() throws IOException {
+			return Integer.valueOf(compare(calc, outputFilename, numberOfOutputPrefixesToSkip));
+		}
+	}
+
+	/**
+	 * applies a .zdelta file to the first file and writes the result to the output file
+	 *
+	 * @param line command line
+	 * @throws Exception in case of an error
+	 */
+	private static void applyDelta(CommandLine line) throws Exception {
+		String filename1 = line.getOptionValue(OPTION_FILE1);
+		String outputFilename = line.getOptionValue(OPTION_OUTPUT_FILE);
+		if ((filename1 == null) || (outputFilename == null)) {
+			throw new ParseException("Missing required options: " + OPTION_FILE1 + ", " + OPTION_OUTPUT_FILE);
+		}
+		if (filename1.equals(STDIN)) {
+			throw new ParseException("the first file cannot be read from stdin, if a delta is applied");
+		}
+		File f1 = new File(filename1);
+		checkFile(f1);
+
+		String deltaFilename = line.getOptionValue(OPTION_APPLY_DELTA);
+		InputStream delta;
+		if (deltaFilename.equals(STDIN)) {
+			delta = System.in;
+		} else {
+			checkFile(new File(deltaFilename));
+			delta = new FileInputStream(deltaFilename);
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFilename));
+		try {
+			int count = new DeltaApplier().apply(f1, delta, out);
+			System.out.println(count + " entries written to " + outputFilename);
+		} finally {
+			out.close();
+			if (delta != System.in) {
+				delta.close();
+			}
+		}
+	}
+
+	/**
+	 * creates the list of baselines
+	 *
+	 * @param f1 first file
+	 * @param baselineList comma separated list of further baselines
+	 * @return baselines starting with the first file
+	 */
+	private static File[] getBaselines(File f1, String baselineList) {
+		List baselines = new ArrayList();
+		baselines.add(f1);
+		StringTokenizer st = new StringTokenizer(baselineList, ",");
+		while (st.hasMoreTokens()) {
+			File baseline = new File(st.nextToken().trim());
+			checkFile(baseline);
+			baselines.add(baseline);
+		}
+		return (File[]) baselines.toArray(new File[baselines.size()]);
+	}
+
+	/**
+	 * compares the second file with several baselines. The output file name of
+	 * each baseline gets the number of the baseline in front of the extension.
+	 *
+	 * @return true, if there are differences to any of the baselines
+	 * @throws IOException in case of an input/output error
+	 */
+	private static boolean compareBaselines(DifferenceCalculator calc, File[] baselines, String outputFilename, int numberOfOutputPrefixesToSkip, boolean verbose) throws IOException {
+		int[] counts;
+		if (outputFilename == null) {
+			Differences[] differences = calc.getDifferences(baselines);
+			counts = new int[baselines.length];
+			for (int i = 0; i < baselines.length; i++) {
+				if (verbose) {
+					System.out.println(differences[i]);
+				}
+				counts[i] = countDifferences(differences[i]);
+			}
+		} else {
+			// builders which cannot stream the differences get them after all baselines have been compared
+			Builder[] builders = new Builder[baselines.length];
+			DifferenceListener[] listeners = new DifferenceListener[baselines.length];
+			for (int i = 0; i < baselines.length; i++) {
+				String filename = getBaselineOutputFilename(outputFilename, i + 1);
+				builders[i] = BuilderFactory.create(filename);
+				if (builders[i] instanceof StreamingBuilder) {
+					listeners[i] = ((StreamingBuilder) builders[i]).createListener(filename, numberOfOutputPrefixesToSkip);
+				} else {
+					listeners[i] = new Differences();
+				}
+			}
+			counts = calc.reportDifferences(baselines, listeners);
+			for (int i = 0; i < baselines.length; i++) {
+				if (listeners[i] instanceof Differences) {
+					builders[i].build(getBaselineOutputFilename(outputFilename, i + 1), numberOfOutputPrefixesToSkip, (Differences) listeners[i]);
+				}
+			}
+		}
+
+		boolean hasDifferences = false;
+		for (int i = 0; i < baselines.length; i++) {
+			System.out.println("Baseline " + (i + 1) + " = " + baselines[i] + ": " + counts[i] + " differences");
+			hasDifferences = hasDifferences || (counts[i] > 0);
+		}
+		return hasDifferences;
+	}
+
+	/**
+	 * inserts the number of a baseline into the name of the output file
+	 *
+	 * @param outputFilename name of the output file, e.g. diff.xml
+	 * @param number number of the baseline
+	 * @return name of the output file for the baseline, e.g. diff-2.xml
+	 */
+	static String getBaselineOutputFilename(String outputFilename, int number) {
+		if (outputFilename.equals("-")) {
+			return outputFilename;
+		}
+		int dot = outputFilename.lastIndexOf('.');
+		if ((dot < 0) || (dot < outputFilename.lastIndexOf(File.separatorChar))) {
+			return outputFilename + "-" + number;
+		}
+		return outputFilename.substring(0, dot) + "-" + number + outputFilename.substring(dot);
 	}
 
 	/**
@@ -147,6 +672,21 @@ public class Main {
 		try {
 			CommandLine line = parser.parse(options, args);
 
+			if (line.hasOption(OPTION_BATCH)) {
+				int exitCode = compareBatch(line);
+				if (exitCode != 0) {
+					System.exit(exitCode);
+				}
+				return;
+			}
+			if (line.hasOption(OPTION_APPLY_DELTA)) {
+				applyDelta(line);
+				return;
+			}
+			if (!line.hasOption(OPTION_FILE1) || !line.hasOption(OPTION_FILE2)) {
+				throw new ParseException("Missing required options: " + OPTION_FILE1 + ", " + OPTION_FILE2);
+			}
+
 			String filename1 = null;
 			String filename2 = null;
 
@@ -156,75 +696,66 @@ public class Main {
 			File f1 = new File(filename1);
 			File f2 = new File(filename2);
 
-			checkFile(f1);
-			checkFile(f2);
-
-			System.out.println("File 1 = " + f1);
-			System.out.println("File 2 = " + f2);
-
-			DifferenceCalculator calc = new DifferenceCalculator(f1, f2);
-
-			int numberOfPrefixesToSkip1 = 0;
-			if (line.getOptionValue(OPTION_SKIP_PREFIX1) != null) {
-				numberOfPrefixesToSkip1 = Integer.parseInt(line.getOptionValue(OPTION_SKIP_PREFIX1));
+			if (filename1.equals(STDIN) && filename2.equals(STDIN)) {
+				throw new ParseException("only one file can be read from stdin");
 			}
-			int numberOfPrefixesToSkip2 = 0;
-			if (line.getOptionValue(OPTION_SKIP_PREFIX2) != null) {
-				numberOfPrefixesToSkip2 = Integer.parseInt(line.getOptionValue(OPTION_SKIP_PREFIX2));
+			if (filename1.equals(STDIN) && (line.getOptionValue(OPTION_BASELINES) != null)) {
+				throw new ParseException("the first file cannot be read from stdin, if it is compared with baselines");
 			}
-			int numberOfOutputPrefixesToSkip = 0;
-			if (line.getOptionValue(OPTION_SKIP_OUTPUT_PREFIXES) != null) {
-				numberOfOutputPrefixesToSkip = Integer.parseInt(line.getOptionValue(OPTION_SKIP_OUTPUT_PREFIXES));
+			checkOutputFile(line.getOptionValue(OPTION_OUTPUT_FILE), filename1, filename2);
+			if (!filename1.equals(STDIN)) {
+				checkFile(f1);
 			}
-
-			calc.setNumberOfPrefixesToSkip1(numberOfPrefixesToSkip1);
-			calc.setNumberOfPrefixesToSkip2(numberOfPrefixesToSkip2);
-
-			String regularExpression = null;
-
-			// todo - calc.setFilenamesToIgnore();
-
-			if (line.hasOption(OPTION_COMPARE_CRC_VALUES)) {
-				calc.setCompareCRCValues(true);
-			} else {
-				calc.setCompareCRCValues(false);
+			if (!filename2.equals(STDIN)) {
+				checkFile(f2);
 			}
 
-			if (line.hasOption(OPTION_IGNORE_CVS_FILES)) {
-				calc.setIgnoreCVSFiles(true);
-			} else {
-				calc.setIgnoreCVSFiles(false);
-			}
+			System.out.println("File 1 = " + f1);
+			System.out.println("File 2 = " + f2);
 
-			if (line.hasOption(OPTION_COMPARE_TIMESTAMPS)) {
-				calc.setIgnoreTimestamps(false);
-			} else {
-				calc.setIgnoreTimestamps(true);
+			DifferenceCalculator calc = new DifferenceCalculator(f1, f2);
+			if (filename1.equals(STDIN)) {
+				calc.setInputStream1(System.in);
+			} else if (filename2.equals(STDIN)) {
+				calc.setInputStream2(System.in);
 			}
 
-			if (line.hasOption(OPTION_REGEX)) {
-				regularExpression = line.getOptionValue(OPTION_REGEX);
-				Set regexSet = new HashSet();
-				regexSet.add(regularExpression);
-
-				calc.setFilenameRegexToIgnore(regexSet);
-			}
+			configure(calc, line);
+			int numberOfOutputPrefixesToSkip = getNumber(line, OPTION_SKIP_OUTPUT_PREFIXES);
 
 			boolean exitWithErrorOnDiff = false;
 			if (line.hasOption(OPTION_EXIT_WITH_ERROR_ON_DIFF)) {
 				exitWithErrorOnDiff = true;
 			}
 
-			Differences d = calc.getDifferences();
-
-			if (line.hasOption(OPTION_OUTPUT_FILE)) {
-				String outputFilename = line.getOptionValue(OPTION_OUTPUT_FILE);
-				writeOutputFile(outputFilename, numberOfOutputPrefixesToSkip, d);
+			String outputFilename = line.getOptionValue(OPTION_OUTPUT_FILE);
+			Builder builder = null;
+			if (outputFilename != null) {
+				builder = BuilderFactory.create(outputFilename);
 			}
 
+			Differences d = null;
+			boolean hasDifferences;
+			if (line.getOptionValue(OPTION_BASELINES) != null) {
+				File[] baselines = getBaselines(f1, line.getOptionValue(OPTION_BASELINES));
+				for (int i = 1; i < baselines.length; i++) {
+					checkOutputFile(outputFilename, baselines[i].getPath(), filename2);
+				}
+				hasDifferences = compareBaselines(calc, baselines, outputFilename, numberOfOutputPrefixesToSkip, line.hasOption(OPTION_VERBOSE));
+			} else if ((builder instanceof StreamingBuilder) && !line.hasOption(OPTION_VERBOSE)) {
+				// write the differences while they are found instead of collecting them first
+				DifferenceListener listener = ((StreamingBuilder) builder).createListener(outputFilename, numberOfOutputPrefixesToSkip);
+				hasDifferences = calc.reportDifferences(listener) > 0;
+			} else {
+				d = calc.getDifferences();
+				if (builder != null) {
+					builder.build(outputFilename, numberOfOutputPrefixesToSkip, d);
+				}
+				hasDifferences = d.hasDifferences();
+			}
 
-			if (d.hasDifferences()) {
-				if (line.hasOption(OPTION_VERBOSE)) {
+			if (hasDifferences) {
+				if (line.hasOption(OPTION_VERBOSE) && (d != null)) {
 					System.out.println(d);
 					System.out.println(d.getFilename1() + " and " + d.getFilename2() + " are different.");
 				}
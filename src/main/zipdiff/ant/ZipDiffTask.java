@@ -5,15 +5,24 @@
  */
 package zipdiff.ant;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 
+import zipdiff.ComparisonPolicy;
 import zipdiff.DifferenceCalculator;
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
+import zipdiff.archive.CachingArchiveReader;
+import zipdiff.archive.MappedArchiveReader;
 import zipdiff.output.Builder;
 import zipdiff.output.BuilderFactory;
+import zipdiff.output.StreamingBuilder;
 
 /**
  * Ant task for running zipdiff from a build.xml file
@@ -34,11 +43,38 @@ public class ZipDiffTask extends Task {
 
 	private String destfile;
 
-	private boolean ignoreTimestamps = false;
+	/** the comparison attributes are null, unless they are set, so they only change the compare list if set */
+	private Boolean ignoreTimestamps;
 
 	private boolean ignoreCVSFiles = false;
 
-	private boolean compareCRCValues = true;
+	private Boolean compareCRCValues;
+
+	private Boolean compareContent;
+
+	private String compare;
+
+	private int threads = 1;
+
+	private boolean memoryMapped = false;
+
+	private String indexCacheDir;
+
+	private boolean checkIdentical = true;
+
+	private boolean checkCentralDirectories = true;
+
+	private String includes;
+
+	private String excludes;
+
+	private int maxDepth = -1;
+
+	private String archiveExtensions;
+
+	private boolean detectArchives = false;
+
+	private boolean quickCheck = false;
 
 	public void setFilename1(String name) {
 		filename1 = name;
@@ -75,11 +111,11 @@ public class ZipDiffTask extends Task {
 	}
 
 	public void setIgnoreTimestamps(boolean b) {
-		ignoreTimestamps = b;
+		ignoreTimestamps = Boolean.valueOf(b);
 	}
 
 	public boolean getIgnoreTimestamps() {
-		return ignoreTimestamps;
+		return (ignoreTimestamps == null) ? !getComparisonPolicy().isComparing(ComparisonPolicy.TIME) : ignoreTimestamps.booleanValue();
 	}
 
 	public void setIgnoreCVSFiles(boolean b) {
@@ -91,11 +127,155 @@ public class ZipDiffTask extends Task {
 	}
 
 	public void setCompareCRCValues(boolean b) {
-		compareCRCValues = b;
+		compareCRCValues = Boolean.valueOf(b);
 	}
 
 	public boolean getCompareCRCValues() {
-		return compareCRCValues;
+		return (compareCRCValues == null) ? getComparisonPolicy().isComparing(ComparisonPolicy.CRC) : compareCRCValues.booleanValue();
+	}
+
+	public void setCompareContent(boolean b) {
+		compareContent = Boolean.valueOf(b);
+	}
+
+	public boolean getCompareContent() {
+		return (compareContent == null) ? getComparisonPolicy().isComparing(ComparisonPolicy.CONTENT) : compareContent.booleanValue();
+	}
+
+	/**
+	 * sets the properties to compare, like the -compare option of the command
+	 * line (default: size,crc). The attributes compareCRCValues, ignoreTimestamps
+	 * and compareContent add or remove properties, if they are set.
+	 *
+	 * @param compare comma separated list of size, compressedsize, crc, time and content
+	 */
+	public void setCompare(String compare) {
+		this.compare = compare;
+	}
+
+	public String getCompare() {
+		return compare;
+	}
+
+	/**
+	 * @return the properties of the compare list, or the default properties
+	 */
+	private ComparisonPolicy getComparisonPolicy() {
+		return (compare == null) ? new ComparisonPolicy() : ComparisonPolicy.parse(compare);
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setMemoryMapped(boolean b) {
+		memoryMapped = b;
+	}
+
+	public boolean getMemoryMapped() {
+		return memoryMapped;
+	}
+
+	public void setIndexCacheDir(String indexCacheDir) {
+		this.indexCacheDir = indexCacheDir;
+	}
+
+	public String getIndexCacheDir() {
+		return indexCacheDir;
+	}
+
+	public void setCheckIdentical(boolean b) {
+		checkIdentical = b;
+	}
+
+	public boolean getCheckIdentical() {
+		return checkIdentical;
+	}
+
+	public void setCheckCentralDirectories(boolean b) {
+		checkCentralDirectories = b;
+	}
+
+	public boolean getCheckCentralDirectories() {
+		return checkCentralDirectories;
+	}
+
+	/**
+	 * sets the Ant-style patterns of the entries to compare
+	 *
+	 * @param includes comma- or space-separated list of patterns
+	 */
+	public void setIncludes(String includes) {
+		this.includes = includes;
+	}
+
+	public String getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * sets the Ant-style patterns of the entries to ignore
+	 *
+	 * @param excludes comma- or space-separated list of patterns
+	 */
+	public void setExcludes(String excludes) {
+		this.excludes = excludes;
+	}
+
+	public String getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * sets the maximum nesting depth of embedded archives to scan
+	 *
+	 * @param maxDepth 0 to compare embedded archives like other files, -1 for no limit
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * sets the extensions of embedded archives
+	 *
+	 * @param archiveExtensions comma- or space-separated list of extensions, e.g. "jar aar hpi"
+	 */
+	public void setArchiveExtensions(String archiveExtensions) {
+		this.archiveExtensions = archiveExtensions;
+	}
+
+	public String getArchiveExtensions() {
+		return archiveExtensions;
+	}
+
+	public void setDetectArchives(boolean b) {
+		detectArchives = b;
+	}
+
+	public boolean getDetectArchives() {
+		return detectArchives;
+	}
+
+	/**
+	 * sets whether the comparison stops at the first difference, so only
+	 * this difference is written to the destfile
+	 *
+	 * @param b true to stop at the first difference
+	 */
+	public void setQuickCheck(boolean b) {
+		quickCheck = b;
+	}
+
+	public boolean getQuickCheck() {
+		return quickCheck;
 	}
 
 	@Override
@@ -106,10 +286,15 @@ public class ZipDiffTask extends Task {
 		// this.log("Filename2=" + filename2, Project.MSG_DEBUG);
 		// this.log("destfile=" + getDestFile(), Project.MSG_DEBUG);
 
-		Differences d = calculateDifferences();
-
 		try {
-			writeDestFile(d);
+			Builder builder = BuilderFactory.create(getDestFile());
+			if (builder instanceof StreamingBuilder) {
+				// write the differences while they are found instead of collecting them first
+				DifferenceListener listener = ((StreamingBuilder) builder).createListener(getDestFile(), numberOfOutputPrefixesToSkip);
+				createCalculator().reportDifferences(listener);
+			} else {
+				writeDestFile(calculateDifferences());
+			}
 		} catch (java.io.IOException ex) {
 			throw new BuildException(ex);
 		}
@@ -153,21 +338,10 @@ public class ZipDiffTask extends Task {
 	 * @throws BuildException in case of an input/output error
 	 */
 	protected Differences calculateDifferences() throws BuildException {
-		DifferenceCalculator calculator;
-
 		Differences d = null;
 
 		try {
-			calculator = new DifferenceCalculator(filename1, filename2);
-			calculator.setNumberOfPrefixesToSkip1(skipPrefixes1);
-			calculator.setNumberOfPrefixesToSkip2(SkipPrefixes2);
-			calculator.setCompareCRCValues(getCompareCRCValues());
-			calculator.setIgnoreTimestamps(getIgnoreTimestamps());
-			calculator.setIgnoreCVSFiles(getIgnoreCVSFiles());
-
-			// todo : calculator.setFilenamesToIgnore(patterns);
-
-			d = calculator.getDifferences();
+			d = createCalculator().getDifferences();
 		} catch (IOException ex) {
 			throw new BuildException(ex);
 		}
@@ -175,6 +349,60 @@ public class ZipDiffTask extends Task {
 		return d;
 	}
 
+	/**
+	 * creates a DifferenceCalculator configured with the attributes of this task
+	 *
+	 * @return DifferenceCalculator
+	 * @throws IOException in case of an input/output error
+	 */
+	protected DifferenceCalculator createCalculator() throws IOException {
+		DifferenceCalculator calculator = new DifferenceCalculator(filename1, filename2);
+		calculator.setNumberOfPrefixesToSkip1(skipPrefixes1);
+		calculator.setNumberOfPrefixesToSkip2(SkipPrefixes2);
+		calculator.setComparisonPolicy(getComparisonPolicy());
+		calculator.setCompareCRCValues(getCompareCRCValues());
+		calculator.setCompareContent(getCompareContent());
+		calculator.setIgnoreTimestamps(getIgnoreTimestamps());
+		calculator.setIgnoreCVSFiles(getIgnoreCVSFiles());
+		calculator.setNumberOfThreads(getThreads());
+		calculator.setCheckingIdenticalFiles(getCheckIdentical());
+		calculator.setCheckingCentralDirectories(getCheckCentralDirectories());
+		if (getIncludes() != null) {
+			calculator.setIncludes(getPatterns(getIncludes()));
+		}
+		if (getExcludes() != null) {
+			calculator.setExcludes(getPatterns(getExcludes()));
+		}
+		calculator.setMaximumNestingDepth(getMaxDepth());
+		if (getArchiveExtensions() != null) {
+			calculator.setArchiveExtensions(getPatterns(getArchiveExtensions()));
+		}
+		calculator.setDetectingArchivesByContent(getDetectArchives());
+		calculator.setStoppingAtFirstDifference(getQuickCheck());
+		if (getMemoryMapped()) {
+			calculator.setArchiveReader(new MappedArchiveReader());
+		}
+		if (getIndexCacheDir() != null) {
+			calculator.setArchiveReader(new CachingArchiveReader(calculator.getArchiveReader(), new File(getIndexCacheDir())));
+		}
+
+		// todo : calculator.setFilenamesToIgnore(patterns);
+
+		return calculator;
+	}
+
+	/**
+	 * splits a comma- or space-separated list of patterns
+	 */
+	private Set getPatterns(String patternList) {
+		Set patterns = new HashSet();
+		StringTokenizer st = new StringTokenizer(patternList, ", ");
+		while (st.hasMoreTokens()) {
+			patterns.add(st.nextToken());
+		}
+		return patterns;
+	}
+
 	/**
 	 * validates the parameters
 	 *
@@ -194,6 +422,18 @@ public class ZipDiffTask extends Task {
 		if ((destinationfile == null) || (destinationfile.length() < 1)) {
 			throw new BuildException("destfile is required");
 		}
+
+		if (BuilderFactory.isReadingInputFiles(destinationfile) && (new File(filename1).isDirectory() || new File(filename2).isDirectory())) {
+			throw new BuildException("zip and zdelta output cannot be written, if a directory is compared");
+		}
+
+		if (getCompare() != null) {
+			try {
+				ComparisonPolicy.parse(getCompare());
+			} catch (IllegalArgumentException e) {
+				throw new BuildException(e.getMessage());
+			}
+		}
 	}
 
 }
@@ -0,0 +1,27 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the entries of an archive including all embedded archives.
+ *
+ * @author Hendrik Brummermann
+ */
+public interface ArchiveReader {
+
+	/**
+	 * reads the entries of an archive
+	 *
+	 * @param file archive to read
+	 * @param context decides which entries to ignore and which to scan recursively
+	 * @return index of all entries which are not ignored
+	 * @throws IOException in case of an input/output error
+	 */
+	public EntryIndex read(File file, ScanContext context) throws IOException;
+}
@@ -0,0 +1,186 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the indexes of archives in a cache directory, so archives which are
+ * compared again and again, e.g. the baselines of a build, are only read once.
+ * Indexes are keyed by the path, size and modification time of the archive or,
+ * optionally, by a digest of its content, together with the signature of the
+ * ScanContext. Archives are read by another ArchiveReader on a cache miss.
+ *
+ * @author Hendrik Brummermann
+ */
+public class CachingArchiveReader implements ArchiveReader {
+
+	private static final int MAGIC = 0x7A646978;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final ArchiveReader reader;
+
+	private final File cacheDirectory;
+
+	private boolean keyedByContent = false;
+
+	/**
+	 * creates a new CachingArchiveReader
+	 *
+	 * @param reader ArchiveReader used on a cache miss
+	 * @param cacheDirectory directory for the cached indexes, it is created if required
+	 */
+	public CachingArchiveReader(ArchiveReader reader, File cacheDirectory) {
+		this.reader = reader;
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * sets whether indexes are keyed by a digest of the archive content instead of
+	 * its path, size and modification time. This survives copying the archive, but
+	 * requires the archive to be read completely.
+	 *
+	 * @param keyedByContent true to key indexes by content
+	 */
+	public void setKeyedByContent(boolean keyedByContent) {
+		this.keyedByContent = keyedByContent;
+	}
+
+	/**
+	 * @return true, if indexes are keyed by a digest of the archive content
+	 */
+	public boolean isKeyedByContent() {
+		return keyedByContent;
+	}
+
+	/**
+	 * @return ArchiveReader used on a cache miss
+	 */
+	public ArchiveReader getReader() {
+		return reader;
+	}
+
+	public EntryIndex read(File file, ScanContext context) throws IOException {
+		String signature = context.getSignature();
+		if (signature == null) {
+			return reader.read(file, context);
+		}
+
+		String key = createKey(file, signature);
+		File cacheFile = new File(cacheDirectory, toHex(ScanContext.createDigest().digest(key.getBytes("UTF-8"))) + ".idx");
+		if (cacheFile.isFile()) {
+			try {
+				EntryIndex index = load(cacheFile, key);
+				if (index != null) {
+					logger.log(Level.FINE, "using cached index of " + file);
+					return index;
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "ignoring invalid cached index " + cacheFile + ": " + e);
+			}
+		}
+
+		EntryIndex index = reader.read(file, context);
+		try {
+			store(cacheFile, key, index);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not cache index of " + file + ": " + e);
+		}
+		return index;
+	}
+
+	/**
+	 * creates the cache key of an archive
+	 *
+	 * @param file archive
+	 * @param signature signature of the ScanContext
+	 * @return key
+	 * @throws IOException in case of an input/output error
+	 */
+	private String createKey(File file, String signature) throws IOException {
+		if (keyedByContent) {
+			InputStream is = new FileInputStream(file);
+			try {
+				byte[] digest = ScanContext.digest(is, ScanContext.createDigest(), new byte[BUFFER_SIZE]);
+				return "content=" + toHex(digest) + "\n" + signature;
+			} finally {
+				is.close();
+			}
+		}
+		return "path=" + file.getCanonicalPath() + "\nsize=" + file.length() + "\ntime=" + file.lastModified() + "\n" + signature;
+	}
+
+	/**
+	 * loads a cached index
+	 *
+	 * @return EntryIndex or null if the cache file belongs to another key
+	 */
+	private EntryIndex load(File cacheFile, String key) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), BUFFER_SIZE));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != FORMAT_VERSION)) {
+				throw new IOException("unsupported format");
+			}
+			if (!in.readUTF().equals(key)) {
+				return null;
+			}
+			return EntryIndex.readFrom(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * stores an index. It is written to a temporary file first, so concurrent
+	 * readers never see an incomplete index.
+	 */
+	private void store(File cacheFile, String key, EntryIndex index) throws IOException {
+		cacheDirectory.mkdirs();
+		File tempFile = File.createTempFile("index", ".tmp", cacheDirectory);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(key);
+				index.writeTo(out);
+			} finally {
+				out.close();
+			}
+			cacheFile.delete();
+			if (!tempFile.renameTo(cacheFile)) {
+				throw new IOException("could not rename " + tempFile + " to " + cacheFile);
+			}
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuffer sb = new StringBuffer(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,711 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A cursor over the central directory of a zip archive. The archive is either
+ * a file, whose central directory is memory mapped, or a ByteBuffer holding a
+ * complete archive, e.g. an embedded one. The records are parsed in place, so
+ * iterating over the entries does not create objects per entry.
+ *
+ * @author Hendrik Brummermann
+ */
+public class CentralDirectory {
+	/** compression method: stored */
+	public static final int STORED = 0;
+
+	/** compression method: deflated */
+	public static final int DEFLATED = 8;
+
+	static final int LOCSIG = 0x04034b50;
+
+	static final int CENSIG = 0x02014b50;
+
+	static final int ENDSIG = 0x06054b50;
+
+	private static final int ZIP64_ENDSIG = 0x06064b50;
+
+	private static final int ZIP64_LOCSIG = 0x07064b50;
+
+	static final int LOCHDR = 30;
+
+	static final int CENHDR = 46;
+
+	static final int ENDHDR = 22;
+
+	private static final int ZIP64_LOCHDR = 20;
+
+	private static final int ZIP64_ENDHDR = 56;
+
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	private static final int EXTID_ZIP64 = 0x0001;
+
+	private static final int EXTID_NTFS = 0x000a;
+
+	private static final int EXTID_EXTT = 0x5455;
+
+	/** difference between the windows epoch (1601) and the java epoch in milliseconds */
+	private static final long WINDOWS_EPOCH_OFFSET = 11644473600000L;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer archive;
+
+	private final long length;
+
+	/** offset of the first byte of the archive, usually 0 unless data was prepended */
+	private long base;
+
+	private ByteBuffer directory;
+
+	private int entryCount;
+
+	private int entryNumber;
+
+	/** position of the current record in the directory buffer */
+	private int record = -1;
+
+	private int nextRecord;
+
+	private long size;
+
+	private long compressedSize;
+
+	private long localHeaderOffset;
+
+	private char[] nameChars = new char[256];
+
+	private CharBuffer name = CharBuffer.wrap(nameChars);
+
+	private CharsetDecoder decoder;
+
+	private final Calendar calendar = new GregorianCalendar();
+
+	private long lastDosTime = -1;
+
+	private long lastJavaTime;
+
+	/** buffer for local headers read from the channel */
+	private ByteBuffer localHeader;
+
+	private CentralDirectory(FileChannel channel, ByteBuffer archive, long length) {
+		this.channel = channel;
+		this.archive = archive;
+		this.length = length;
+	}
+
+	/**
+	 * opens the central directory of an archive file
+	 *
+	 * @param channel FileChannel of the archive, which must stay open while the
+	 * data of entries is read
+	 * @return CentralDirectory
+	 * @throws IOException in case of an input/output error or an invalid archive
+	 */
+	public static CentralDirectory open(FileChannel channel) throws IOException {
+		CentralDirectory cd = new CentralDirectory(channel, null, channel.size());
+		cd.readEnd();
+		return cd;
+	}
+
+	/**
+	 * opens the central directory of an archive in memory
+	 *
+	 * @param archive complete archive from position to limit
+	 * @return CentralDirectory
+	 * @throws IOException in case of an invalid archive
+	 */
+	public static CentralDirectory open(ByteBuffer archive) throws IOException {
+		ByteBuffer buffer = archive.slice();
+		CentralDirectory cd = new CentralDirectory(null, buffer, buffer.remaining());
+		cd.readEnd();
+		return cd;
+	}
+
+	/**
+	 * @return number of entries in the archive
+	 */
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * moves to the next record
+	 *
+	 * @return true, if there is a next record; false if the end was reached
+	 * @throws ZipException in case of an invalid record
+	 */
+	public boolean next() throws ZipException {
+		if (entryNumber >= entryCount) {
+			return false;
+		}
+		entryNumber++;
+		record = nextRecord;
+		if ((record + CENHDR > directory.limit()) || (directory.getInt(record) != CENSIG)) {
+			throw new ZipException("invalid central directory header");
+		}
+		int nameLength = u16(record + 28);
+		int extraLength = u16(record + 30);
+		int commentLength = u16(record + 32);
+		nextRecord = record + CENHDR + nameLength + extraLength + commentLength;
+		if (nextRecord > directory.limit()) {
+			throw new ZipException("invalid central directory header");
+		}
+
+		size = u32(record + 24);
+		compressedSize = u32(record + 20);
+		localHeaderOffset = u32(record + 42);
+		if ((size == ZIP64_MAGIC) || (compressedSize == ZIP64_MAGIC) || (localHeaderOffset == ZIP64_MAGIC)) {
+			readZip64Extra(record + CENHDR + nameLength, extraLength);
+		}
+		decodeName(record + CENHDR, nameLength);
+		return true;
+	}
+
+	/**
+	 * @return name of the current entry, only valid until next() is called
+	 */
+	public CharSequence getName() {
+		return name;
+	}
+
+	/**
+	 * @return true, if the current entry is a directory
+	 */
+	public boolean isDirectory() {
+		int length = name.length();
+		return (length > 0) && (name.charAt(length - 1) == '/');
+	}
+
+	/**
+	 * @return compression method of the current entry
+	 */
+	public int getMethod() {
+		return u16(record + 10);
+	}
+
+	/**
+	 * @return general purpose flags of the current entry
+	 */
+	public int getFlags() {
+		return u16(record + 8);
+	}
+
+	/**
+	 * @return version of the zip specification needed to extract the current entry
+	 */
+	public int getVersionNeeded() {
+		return u16(record + 6);
+	}
+
+	/**
+	 * @return version and host system, which created the current entry
+	 */
+	public int getVersionMadeBy() {
+		return u16(record + 4);
+	}
+
+	/**
+	 * @return internal file attributes of the current entry
+	 */
+	public int getInternalAttributes() {
+		return u16(record + 36);
+	}
+
+	/**
+	 * @return external file attributes of the current entry, e.g. unix permissions
+	 */
+	public long getExternalAttributes() {
+		return u32(record + 38);
+	}
+
+	/**
+	 * @return modification time of the current entry in MS-DOS format
+	 */
+	public long getDosTime() {
+		return u32(record + 12);
+	}
+
+	/**
+	 * @return crc of the current entry
+	 */
+	public long getCrc() {
+		return u32(record + 16);
+	}
+
+	/**
+	 * @return uncompressed size of the current entry
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return compressed size of the current entry
+	 */
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * returns the modification time of the current entry the same way
+	 * java.util.zip.ZipEntry.getTime() does.
+	 *
+	 * @return modification time in milliseconds
+	 */
+	public long getTime() {
+		int nameLength = u16(record + 28);
+		int extraLength = u16(record + 30);
+		long time = readExtraTime(record + CENHDR + nameLength, extraLength);
+		if (time != EntryIndex.UNKNOWN) {
+			return time;
+		}
+		return dosToJavaTime(u32(record + 12));
+	}
+
+	/**
+	 * returns the compressed data of the current entry
+	 *
+	 * @return ByteBuffer containing the compressed data
+	 * @throws IOException in case of an input/output error or an invalid local header
+	 */
+	public ByteBuffer getData() throws IOException {
+		if (compressedSize > Integer.MAX_VALUE) {
+			throw new ZipException("entry too large: " + name);
+		}
+		return region(getDataOffset(), (int) compressedSize);
+	}
+
+	/**
+	 * returns the position of the compressed data of the current entry in the archive
+	 *
+	 * @return offset of the data
+	 * @throws IOException in case of an input/output error or an invalid local header
+	 */
+	public long getDataOffset() throws IOException {
+		long offset = base + localHeaderOffset;
+		ByteBuffer header = (channel != null) ? readLocalHeader(offset) : region(offset, LOCHDR);
+		if (header.getInt(0) != LOCSIG) {
+			throw new ZipException("invalid local header: " + name);
+		}
+		return offset + LOCHDR + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+	}
+
+	/**
+	 * uncompresses the data of an entry
+	 *
+	 * @param data compressed data as returned by getData()
+	 * @param method compression method
+	 * @param size uncompressed size
+	 * @return uncompressed data, or null if the compression method is not supported
+	 * @throws IOException in case of invalid compressed data
+	 */
+	public static ByteBuffer inflate(ByteBuffer data, int method, long size) throws IOException {
+		if (method == STORED) {
+			return data;
+		} else if ((method != DEFLATED) || (size > Integer.MAX_VALUE)) {
+			return null;
+		}
+
+		byte[] result = new byte[(int) size];
+		byte[] input = new byte[(int) Math.max(1, Math.min(data.remaining(), 64 * 1024))];
+		ByteBuffer in = data.duplicate();
+		Inflater inflater = new Inflater(true);
+		try {
+			int count = 0;
+			boolean endOfInput = false;
+			while (!inflater.finished() && (count < result.length)) {
+				endOfInput = prepareInflater(inflater, in, input, endOfInput);
+				count += inflater.inflate(result, count, result.length - count);
+			}
+			if (count != result.length) {
+				throw new ZipException("invalid entry size");
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(result);
+	}
+
+	/**
+	 * uncompresses the data of an entry into a stream
+	 *
+	 * @param data compressed data as returned by getData()
+	 * @param method compression method
+	 * @param out stream to write the uncompressed data to
+	 * @param input buffer for compressed data
+	 * @param output buffer for uncompressed data
+	 * @return false, if the compression method is not supported
+	 * @throws IOException in case of invalid compressed data or an input/output error
+	 */
+	public static boolean inflate(ByteBuffer data, int method, OutputStream out, byte[] input, byte[] output) throws IOException {
+		ByteBuffer in = data.duplicate();
+		if (method == STORED) {
+			while (in.hasRemaining()) {
+				int n = Math.min(output.length, in.remaining());
+				in.get(output, 0, n);
+				out.write(output, 0, n);
+			}
+			return true;
+		} else if (method != DEFLATED) {
+			return false;
+		}
+
+		Inflater inflater = new Inflater(true);
+		try {
+			boolean endOfInput = false;
+			while (!inflater.finished()) {
+				endOfInput = prepareInflater(inflater, in, input, endOfInput);
+				int count = inflater.inflate(output);
+				out.write(output, 0, count);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return true;
+	}
+
+	/**
+	 * computes the digest of the uncompressed data of an entry without
+	 * keeping the uncompressed data in memory
+	 *
+	 * @param data compressed data as returned by getData()
+	 * @param method compression method
+	 * @param digest MessageDigest
+	 * @param input buffer for compressed data
+	 * @param output buffer for uncompressed data
+	 * @return digest, or null if the compression method is not supported
+	 * @throws IOException in case of invalid compressed data
+	 */
+	public static byte[] digest(ByteBuffer data, int method, MessageDigest digest, byte[] input, byte[] output) throws IOException {
+		if (method == STORED) {
+			digest.update(data.duplicate());
+			return digest.digest();
+		} else if (method != DEFLATED) {
+			return null;
+		}
+
+		ByteBuffer in = data.duplicate();
+		Inflater inflater = new Inflater(true);
+		try {
+			boolean endOfInput = false;
+			while (!inflater.finished()) {
+				endOfInput = prepareInflater(inflater, in, input, endOfInput);
+				int count = inflater.inflate(output);
+				digest.update(output, 0, count);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * checks whether the uncompressed data of an entry starts with the signature
+	 * of a zip file. Only the first bytes are uncompressed.
+	 *
+	 * @param data compressed data as returned by getData()
+	 * @param method compression method
+	 * @return true, if the entry is a zip file; false if it is not or the data
+	 * cannot be uncompressed
+	 */
+	public static boolean hasZipSignature(ByteBuffer data, int method) {
+		byte[] header = new byte[ScanContext.SIGNATURE_LENGTH];
+		ByteBuffer in = data.duplicate();
+		if (method == STORED) {
+			int count = Math.min(header.length, in.remaining());
+			in.get(header, 0, count);
+			return ScanContext.hasZipSignature(header, count);
+		} else if (method != DEFLATED) {
+			return false;
+		}
+
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] input = new byte[(int) Math.max(1, Math.min(in.remaining(), 512))];
+			boolean endOfInput = false;
+			int count = 0;
+			while (!inflater.finished() && (count < header.length)) {
+				endOfInput = prepareInflater(inflater, in, input, endOfInput);
+				count += inflater.inflate(header, count, header.length - count);
+			}
+			return ScanContext.hasZipSignature(header, count);
+		} catch (DataFormatException e) {
+			return false;
+		} catch (ZipException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * passes the next chunk of compressed data to an inflater, if it needs input
+	 *
+	 * @param inflater nowrap Inflater
+	 * @param in remaining compressed data
+	 * @param input buffer for compressed data
+	 * @param endOfInput true, if the end of the compressed data has already been reached
+	 * @return true, if the end of the compressed data has been reached
+	 * @throws ZipException in case of invalid compressed data
+	 */
+	private static boolean prepareInflater(Inflater inflater, ByteBuffer in, byte[] input, boolean endOfInput) throws ZipException {
+		if (inflater.needsInput()) {
+			if (endOfInput) {
+				throw new ZipException("unexpected end of compressed data");
+			}
+			int n = Math.min(input.length, in.remaining());
+			in.get(input, 0, n);
+			if (n == 0) {
+				// nowrap inflaters require an extra dummy byte at the end of the input
+				input[0] = 0;
+				n = 1;
+				endOfInput = true;
+			}
+			inflater.setInput(input, 0, n);
+		} else if (inflater.needsDictionary()) {
+			throw new ZipException("invalid compressed data");
+		}
+		return endOfInput;
+	}
+
+	/**
+	 * finds and reads the end of central directory record
+	 *
+	 * @throws IOException in case of an input/output error or an invalid archive
+	 */
+	private void readEnd() throws IOException {
+		int tailLength = (int) Math.min(length, ENDHDR + MAX_COMMENT_LENGTH);
+		if (tailLength < ENDHDR) {
+			throw new ZipException("zip file is empty");
+		}
+		long tailOffset = length - tailLength;
+		ByteBuffer tail = region(tailOffset, tailLength);
+
+		int end = -1;
+		for (int i = tailLength - ENDHDR; i >= 0; i--) {
+			if ((tail.getInt(i) == ENDSIG) && (i + ENDHDR + (tail.getShort(i + 20) & 0xFFFF) == tailLength)) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new ZipException("zip END header not found");
+		}
+
+		long endPosition = tailOffset + end;
+		long count = tail.getShort(end + 10) & 0xFFFF;
+		long directorySize = tail.getInt(end + 12) & ZIP64_MAGIC;
+		long directoryOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+
+		if ((end >= ZIP64_LOCHDR) && (tail.getInt(end - ZIP64_LOCHDR) == ZIP64_LOCSIG)) {
+			long zip64EndPosition = tail.getLong(end - ZIP64_LOCHDR + 8);
+			if ((zip64EndPosition >= 0) && (zip64EndPosition + ZIP64_ENDHDR <= length)) {
+				ByteBuffer zip64End = region(zip64EndPosition, ZIP64_ENDHDR);
+				if (zip64End.getInt(0) == ZIP64_ENDSIG) {
+					endPosition = zip64EndPosition;
+					count = zip64End.getLong(32);
+					directorySize = zip64End.getLong(40);
+					directoryOffset = zip64End.getLong(48);
+				}
+			}
+		}
+
+		long directoryPosition = endPosition - directorySize;
+		base = directoryPosition - directoryOffset;
+		if ((directorySize > Integer.MAX_VALUE) || (count > Integer.MAX_VALUE) || (directoryPosition < 0) || (base < 0)) {
+			throw new ZipException("invalid END header");
+		}
+		entryCount = (int) count;
+		directory = region(directoryPosition, (int) directorySize);
+	}
+
+	/**
+	 * reads the values of the current record that do not fit into 32 bits
+	 */
+	private void readZip64Extra(int offset, int extraLength) {
+		int end = offset + extraLength;
+		while (offset + 4 <= end) {
+			int id = u16(offset);
+			int dataSize = u16(offset + 2);
+			int data = offset + 4;
+			if (id == EXTID_ZIP64) {
+				int dataEnd = Math.min(data + dataSize, end);
+				if ((size == ZIP64_MAGIC) && (data + 8 <= dataEnd)) {
+					size = directory.getLong(data);
+					data += 8;
+				}
+				if ((compressedSize == ZIP64_MAGIC) && (data + 8 <= dataEnd)) {
+					compressedSize = directory.getLong(data);
+					data += 8;
+				}
+				if ((localHeaderOffset == ZIP64_MAGIC) && (data + 8 <= dataEnd)) {
+					localHeaderOffset = directory.getLong(data);
+				}
+				return;
+			}
+			offset = data + dataSize;
+		}
+	}
+
+	/**
+	 * reads the modification time from extended timestamp or NTFS extra fields
+	 *
+	 * @return time in milliseconds or UNKNOWN
+	 */
+	private long readExtraTime(int offset, int extraLength) {
+		long time = EntryIndex.UNKNOWN;
+		int end = offset + extraLength;
+		while (offset + 4 <= end) {
+			int id = u16(offset);
+			int dataSize = u16(offset + 2);
+			int data = offset + 4;
+			if (data + dataSize > end) {
+				break;
+			}
+			if ((id == EXTID_EXTT) && (dataSize >= 5) && ((directory.get(data) & 0x1) != 0)) {
+				time = directory.getInt(data + 1) * 1000L;
+			} else if ((id == EXTID_NTFS) && (dataSize >= 32) && (u16(data + 4) == 0x0001) && (u16(data + 6) == 24)) {
+				long windowsTime = directory.getLong(data + 8);
+				if (windowsTime != Long.MIN_VALUE) {
+					// 100 nanosecond intervals since 1601
+					long micros = windowsTime / 10 - WINDOWS_EPOCH_OFFSET * 1000;
+					time = (micros >= 0) ? micros / 1000 : -((-micros + 999) / 1000);
+				}
+			}
+			offset = data + dataSize;
+		}
+		return time;
+	}
+
+	/**
+	 * converts a dos time stamp the same way ZipEntry does. Consecutive entries
+	 * usually share their time stamp, so the last conversion is cached.
+	 */
+	private long dosToJavaTime(long dosTime) {
+		if (dosTime != lastDosTime) {
+			calendar.clear();
+			calendar.set((int) (((dosTime >> 25) & 0x7f) + 1980), (int) (((dosTime >> 21) & 0x0f) - 1), (int) ((dosTime >> 16) & 0x1f),
+				(int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f), (int) ((dosTime << 1) & 0x3e));
+			lastJavaTime = calendar.getTimeInMillis();
+			lastDosTime = dosTime;
+		}
+		return lastJavaTime;
+	}
+
+	/**
+	 * decodes the UTF-8 encoded name of the current record
+	 */
+	private void decodeName(int offset, int nameLength) {
+		if (nameChars.length < nameLength) {
+			nameChars = new char[Math.max(nameLength, nameChars.length * 2)];
+			name = CharBuffer.wrap(nameChars);
+		}
+		int i = 0;
+		while (i < nameLength) {
+			byte b = directory.get(offset + i);
+			if (b < 0) {
+				decodeNonAscii(offset, nameLength, i);
+				return;
+			}
+			nameChars[i] = (char) b;
+			i++;
+		}
+		name.clear();
+		name.limit(nameLength);
+	}
+
+	private void decodeNonAscii(int offset, int nameLength, int asciiLength) {
+		if (decoder == null) {
+			decoder = Charset.forName("UTF-8").newDecoder();
+			decoder.onMalformedInput(CodingErrorAction.REPLACE);
+			decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		ByteBuffer in = directory.duplicate();
+		in.limit(offset + nameLength);
+		in.position(offset + asciiLength);
+		name.clear();
+		name.position(asciiLength);
+		decoder.reset();
+		decoder.decode(in, name, true);
+		decoder.flush(name);
+		name.flip();
+	}
+
+	private int u16(int offset) {
+		return directory.getShort(offset) & 0xFFFF;
+	}
+
+	private long u32(int offset) {
+		return directory.getInt(offset) & ZIP64_MAGIC;
+	}
+
+	/**
+	 * reads a local header from the channel instead of mapping it, because
+	 * mapping a few bytes for every entry is slow and the mappings are only
+	 * released by the garbage collector
+	 */
+	private ByteBuffer readLocalHeader(long offset) throws IOException {
+		if ((offset < 0) || (offset + LOCHDR > length)) {
+			throw new ZipException("invalid offset in zip file");
+		}
+		if (localHeader == null) {
+			localHeader = ByteBuffer.allocate(LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		localHeader.clear();
+		while (localHeader.hasRemaining()) {
+			if (channel.read(localHeader, offset + localHeader.position()) < 0) {
+				throw new ZipException("invalid offset in zip file");
+			}
+		}
+		return localHeader;
+	}
+
+	/**
+	 * returns a little endian view of a region of the archive
+	 */
+	private ByteBuffer region(long offset, int regionLength) throws IOException {
+		if ((offset < 0) || (offset + regionLength > length)) {
+			throw new ZipException("invalid offset in zip file");
+		}
+		ByteBuffer result;
+		if (channel != null) {
+			result = channel.map(FileChannel.MapMode.READ_ONLY, offset, regionLength);
+		} else {
+			ByteBuffer buffer = archive.duplicate();
+			buffer.position((int) offset);
+			buffer.limit((int) offset + regionLength);
+			result = buffer.slice();
+		}
+		result.order(ByteOrder.LITTLE_ENDIAN);
+		return result;
+	}
+}
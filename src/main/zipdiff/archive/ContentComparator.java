@@ -0,0 +1,231 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares the uncompressed content of entries of two archives. Both entries
+ * are read side by side in large buffers, which are reused for all entries,
+ * and the comparison stops at the first difference. Directories are supported
+ * as archives, their entries are the files in the directory tree. For entries
+ * without a stored crc, e.g. files in directories, the crc can be computed.
+ *
+ * @author Hendrik Brummermann
+ */
+public class ContentComparator {
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final File file1;
+
+	private final File file2;
+
+	private ZipFile zipFile1;
+
+	private ZipFile zipFile2;
+
+	private final byte[] buffer1 = new byte[BUFFER_SIZE];
+
+	private final byte[] buffer2 = new byte[BUFFER_SIZE];
+
+	/**
+	 * creates a new ContentComparator. The archives are opened on the first comparison.
+	 *
+	 * @param file1 first archive
+	 * @param file2 second archive
+	 */
+	public ContentComparator(File file1, File file2) {
+		this.file1 = file1;
+		this.file2 = file2;
+	}
+
+	/**
+	 * compares the content of two entries of the top level archives
+	 *
+	 * @param entryName1 name of the entry in the first archive
+	 * @param entryName2 name of the entry in the second archive
+	 * @return true, if the uncompressed content is identical
+	 * @throws IOException in case of an input/output error
+	 */
+	public boolean contentEquals(String entryName1, String entryName2) throws IOException {
+		if ((zipFile1 == null) && !file1.isDirectory()) {
+			zipFile1 = new ZipFile(file1);
+		}
+		if ((zipFile2 == null) && !file2.isDirectory()) {
+			zipFile2 = new ZipFile(file2);
+		}
+
+		InputStream is1 = openEntry(file1, zipFile1, entryName1);
+		try {
+			InputStream is2 = openEntry(file2, zipFile2, entryName2);
+			try {
+				return contentEquals(is1, is2);
+			} finally {
+				is2.close();
+			}
+		} finally {
+			is1.close();
+		}
+	}
+
+	/**
+	 * computes the crc of an entry of the first archive
+	 *
+	 * @param entryName name of the entry
+	 * @return crc32 of the uncompressed content
+	 * @throws IOException in case of an input/output error
+	 */
+	public long computeCrc1(String entryName) throws IOException {
+		if ((zipFile1 == null) && !file1.isDirectory()) {
+			zipFile1 = new ZipFile(file1);
+		}
+		return computeCrc(openEntry(file1, zipFile1, entryName));
+	}
+
+	/**
+	 * computes the crc of an entry of the second archive
+	 *
+	 * @param entryName name of the entry
+	 * @return crc32 of the uncompressed content
+	 * @throws IOException in case of an input/output error
+	 */
+	public long computeCrc2(String entryName) throws IOException {
+		if ((zipFile2 == null) && !file2.isDirectory()) {
+			zipFile2 = new ZipFile(file2);
+		}
+		return computeCrc(openEntry(file2, zipFile2, entryName));
+	}
+
+	/**
+	 * computes the content digest of an entry of the first archive
+	 *
+	 * @param entryName name of the entry
+	 * @return digest as stored in an EntryIndex
+	 * @throws IOException in case of an input/output error
+	 */
+	public byte[] computeDigest1(String entryName) throws IOException {
+		if ((zipFile1 == null) && !file1.isDirectory()) {
+			zipFile1 = new ZipFile(file1);
+		}
+		return computeDigest(openEntry(file1, zipFile1, entryName));
+	}
+
+	/**
+	 * computes the content digest of an entry of the second archive
+	 *
+	 * @param entryName name of the entry
+	 * @return digest as stored in an EntryIndex
+	 * @throws IOException in case of an input/output error
+	 */
+	public byte[] computeDigest2(String entryName) throws IOException {
+		if ((zipFile2 == null) && !file2.isDirectory()) {
+			zipFile2 = new ZipFile(file2);
+		}
+		return computeDigest(openEntry(file2, zipFile2, entryName));
+	}
+
+	private byte[] computeDigest(InputStream is) throws IOException {
+		try {
+			return ScanContext.digest(is, ScanContext.createDigest(), buffer1);
+		} finally {
+			is.close();
+		}
+	}
+
+	private long computeCrc(InputStream is) throws IOException {
+		try {
+			CRC32 crc = new CRC32();
+			int count = is.read(buffer1);
+			while (count > -1) {
+				crc.update(buffer1, 0, count);
+				count = is.read(buffer1);
+			}
+			return crc.getValue();
+		} finally {
+			is.close();
+		}
+	}
+
+	private boolean contentEquals(InputStream is1, InputStream is2) throws IOException {
+		while (true) {
+			int count1 = readFully(is1, buffer1);
+			int count2 = readFully(is2, buffer2);
+			if (count1 != count2) {
+				return false;
+			}
+			for (int i = 0; i < count1; i++) {
+				if (buffer1[i] != buffer2[i]) {
+					return false;
+				}
+			}
+			if (count1 < BUFFER_SIZE) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * reads until the buffer is full or the end of the stream is reached
+	 *
+	 * @return number of bytes read
+	 */
+	private int readFully(InputStream is, byte[] buffer) throws IOException {
+		int count = 0;
+		while (count < buffer.length) {
+			int n = is.read(buffer, count, buffer.length - count);
+			if (n < 0) {
+				break;
+			}
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * opens an entry of an archive or a file in a directory tree
+	 *
+	 * @param file archive or directory
+	 * @param zipFile opened archive, or null for a directory
+	 * @param entryName name of the entry
+	 * @return InputStream
+	 * @throws IOException in case of an input/output error
+	 */
+	private InputStream openEntry(File file, ZipFile zipFile, String entryName) throws IOException {
+		if (zipFile == null) {
+			return new FileInputStream(new File(file, entryName.replace('/', File.separatorChar)));
+		}
+		ZipEntry entry = zipFile.getEntry(entryName);
+		if (entry == null) {
+			throw new ZipException("entry " + entryName + " not found in " + zipFile.getName());
+		}
+		return zipFile.getInputStream(entry);
+	}
+
+	/**
+	 * closes the archives
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	public void close() throws IOException {
+		try {
+			if (zipFile1 != null) {
+				zipFile1.close();
+			}
+		} finally {
+			if (zipFile2 != null) {
+				zipFile2.close();
+			}
+		}
+	}
+}
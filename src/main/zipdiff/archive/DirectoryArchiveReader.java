@@ -0,0 +1,142 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a directory tree, e.g. an exploded web application, as if it was an
+ * archive. Files are added with their relative path as entry name, their size
+ * and modification time. Their crc is unknown, because computing it would
+ * require reading every file. Directories are not added, because most archives
+ * do not contain directory entries. Archives in the tree are scanned like
+ * embedded archives using the MappedArchiveReader.
+ *
+ * @author Hendrik Brummermann
+ */
+public class DirectoryArchiveReader implements ArchiveReader {
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final MappedArchiveReader embeddedArchiveReader = new MappedArchiveReader();
+
+	public EntryIndex read(File directory, ScanContext context) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException("not a directory: " + directory);
+		}
+		EntryIndex index = new EntryIndex();
+		scanDirectory(directory, "", index, context);
+		return index;
+	}
+
+	/**
+	 * adds the files of a directory and its subdirectories to the index
+	 *
+	 * @param directory directory to scan
+	 * @param path path of the directory relative to the root, empty or ending with "/"
+	 * @param index index to add the entries to
+	 * @param context ScanContext
+	 * @throws IOException in case of an input/output error
+	 */
+	private void scanDirectory(File directory, String path, EntryIndex index, ScanContext context) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("cannot list directory " + directory);
+		}
+		Arrays.sort(files);
+
+		List subdirectoryScans = new ArrayList();
+		List positions = new ArrayList();
+		try {
+			for (int k = 0; k < files.length; k++) {
+				File file = files[k];
+				boolean isDirectory = file.isDirectory();
+				String name = path + file.getName() + (isDirectory ? "/" : "");
+				if (context.isFiltering() && context.ignore("", name)) {
+					logger.log(Level.FINE, "ignoring file: " + name);
+					continue;
+				}
+
+				if (isDirectory) {
+					if (context.isParallel()) {
+						subdirectoryScans.add(context.fork(new SubdirectoryScan(file, name, context)));
+						positions.add(Integer.valueOf(index.size()));
+					} else {
+						scanDirectory(file, name, index, context);
+					}
+					continue;
+				}
+				int i = index.add("", name, context.getNumberOfPrefixesToSkip(), file.length(), EntryIndex.UNKNOWN, EntryIndex.UNKNOWN, file.lastModified());
+				if ((i >= 0) && isArchive(file, name, context)) {
+					embeddedArchiveReader.scanArchiveFile(file, index.getName(i) + "!", index, context);
+				}
+			}
+
+			// subdirectories are merged at the position of their entries, so the
+			// index is the same as the one built by a serial scan
+			for (int k = 0; k < subdirectoryScans.size(); k++) {
+				index.addAll((EntryIndex) ScanContext.join((FutureTask) subdirectoryScans.get(k)), ((Integer) positions.get(k)).intValue());
+			}
+		} finally {
+			Iterator iter = subdirectoryScans.iterator();
+			while (iter.hasNext()) {
+				((FutureTask) iter.next()).cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * checks whether a file is an archive by its name or, if enabled, its signature
+	 */
+	private boolean isArchive(File file, String name, ScanContext context) throws IOException {
+		if (context.isArchive("", name)) {
+			return true;
+		}
+		if (!context.isDetectingArchivesByContent() || !context.isScanningEmbeddedArchives("")) {
+			return false;
+		}
+		InputStream is = new FileInputStream(file);
+		try {
+			return ScanContext.hasZipSignature(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * scans a subdirectory into a separate index
+	 */
+	private class SubdirectoryScan implements Callable {
+		private final File directory;
+
+		private final String path;
+
+		private final ScanContext context;
+
+		SubdirectoryScan(File directory, String path, ScanContext context) {
+			this.directory = directory;
+			this.path = path;
+			this.context = context;
+		}
+
+		public Object call() throws IOException {
+			EntryIndex index = new EntryIndex();
+			scanDirectory(directory, path, index, context);
+			return index;
+		}
+	}
+}
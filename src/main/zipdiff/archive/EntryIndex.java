@@ -0,0 +1,709 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * A compact table of the entries of an archive. Names are stored in a shared
+ * character pool and the metadata in primitive arrays, so no objects are kept
+ * per entry. ZipEntry objects are only created on request, e.g. for the
+ * entries that are reported as differences.
+ * <p>
+ * Each entry has a key, which is the name used for the comparison (with embedded
+ * archive prefixes and without skipped directory prefixes), and an entry name,
+ * which is the name of the entry inside its archive. Both are suffixes of the
+ * same pooled string.
+ * <p>
+ * Entries are appended in the order they are added. sort() orders them by key,
+ * so two indexes can be compared with a single linear merge. If several entries
+ * have the same key, the one a serial scan would add last is kept: the one
+ * added last, unless entries of a separately scanned index were merged at an
+ * earlier position.
+ *
+ * @author Hendrik Brummermann
+ */
+public class EntryIndex {
+	/** value of unknown sizes, crcs and times */
+	public static final long UNKNOWN = -1;
+
+	/** length of content digests */
+	public static final int DIGEST_LENGTH = 16;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private int size;
+
+	private char[] names = new char[INITIAL_CAPACITY * 32];
+
+	private int namesLength;
+
+	private int[] keyStart = new int[INITIAL_CAPACITY];
+
+	private int[] entryNameStart = new int[INITIAL_CAPACITY];
+
+	private int[] nameEnd = new int[INITIAL_CAPACITY];
+
+	private long[] sizes = new long[INITIAL_CAPACITY];
+
+	private long[] compressedSizes = new long[INITIAL_CAPACITY];
+
+	private long[] crcs = new long[INITIAL_CAPACITY];
+
+	private long[] times = new long[INITIAL_CAPACITY];
+
+	/** content digests, DIGEST_LENGTH bytes per entry, null if no digest has been set */
+	private byte[] digests;
+
+	private boolean[] digested;
+
+	/** true, if the entries are ordered by key without duplicates */
+	private boolean sorted = true;
+
+	/**
+	 * position of the entries in the order of a serial scan: 2 * index + 1 for
+	 * entries added directly, 2 * position for entries merged at a position, so
+	 * they come before the entry added at that position. null, as long as no
+	 * entries have been merged at a position.
+	 */
+	private int[] serialOrder;
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * adds an entry
+	 *
+	 * @param prefix prefix of the key, e.g. the key of an embedded archive followed by "!"
+	 * @param entryName name of the entry inside its archive
+	 * @param numberOfPrefixesToSkip number of directory prefixes to remove from prefix + entryName
+	 * @param uncompressedSize uncompressed size or UNKNOWN
+	 * @param compressedSize compressed size or UNKNOWN
+	 * @param crc crc or UNKNOWN
+	 * @param time modification time in milliseconds or UNKNOWN
+	 * @return index of the entry until the next call of sort(), or -1 if the key is empty
+	 */
+	public int add(String prefix, CharSequence entryName, int numberOfPrefixesToSkip, long uncompressedSize, long compressedSize, long crc, long time) {
+		int start = namesLength;
+		int prefixLength = prefix.length();
+		int entryNameLength = entryName.length();
+		ensureNamesCapacity(prefixLength + entryNameLength);
+		prefix.getChars(0, prefixLength, names, start);
+		for (int i = 0; i < entryNameLength; i++) {
+			names[start + prefixLength + i] = entryName.charAt(i);
+		}
+		int end = start + prefixLength + entryNameLength;
+
+		// same semantics as StringUtil.removeDirectoryPrefix
+		int pos = 0;
+		for (int i = 0; i < numberOfPrefixesToSkip; i++) {
+			int slash = indexOfSlash(start + pos, end);
+			pos = (slash < 0) ? 0 : slash - start + 1;
+		}
+		if (start + pos == end) {
+			return -1;
+		}
+		namesLength = end;
+		return put(start + pos, start + prefixLength, end, uncompressedSize, compressedSize, crc, time);
+	}
+
+	/**
+	 * adds all entries of another index, which was scanned separately, as if
+	 * they had been added right before the entry at the position, e.g. the
+	 * entries of an embedded archive, whose scan was forked
+	 *
+	 * @param other EntryIndex, it is sorted
+	 * @param position number of entries of this index, when the scan of the other index was forked
+	 */
+	public void addAll(EntryIndex other, int position) {
+		other.sort();
+		if (serialOrder == null) {
+			serialOrder = new int[keyStart.length];
+			for (int i = 0; i < size; i++) {
+				serialOrder[i] = 2 * i + 1;
+			}
+		}
+		int first = size;
+		addAll(other);
+		for (int i = first; i < size; i++) {
+			serialOrder[i] = 2 * position;
+		}
+	}
+
+	/**
+	 * adds all entries of another index
+	 *
+	 * @param other EntryIndex
+	 */
+	public void addAll(EntryIndex other) {
+		for (int i = 0; i < other.size; i++) {
+			int otherStart = Math.min(other.keyStart[i], other.entryNameStart[i]);
+			int length = other.nameEnd[i] - otherStart;
+			ensureNamesCapacity(length);
+			System.arraycopy(other.names, otherStart, names, namesLength, length);
+			int offset = namesLength - otherStart;
+			namesLength += length;
+			int index = put(other.keyStart[i] + offset, other.entryNameStart[i] + offset, other.nameEnd[i] + offset,
+				other.sizes[i], other.compressedSizes[i], other.crcs[i], other.times[i]);
+			if (other.hasDigest(i)) {
+				setDigest(index, other.digests, i * DIGEST_LENGTH);
+			}
+		}
+	}
+
+	/**
+	 * appends an entry whose name is already in the pool
+	 *
+	 * @return index of the entry
+	 */
+	private int put(int key, int entryName, int end, long uncompressedSize, long compressedSize, long crc, long time) {
+		ensureCapacity(size + 1);
+		int index = size;
+		keyStart[index] = key;
+		entryNameStart[index] = entryName;
+		nameEnd[index] = end;
+		sizes[index] = uncompressedSize;
+		compressedSizes[index] = compressedSize;
+		crcs[index] = crc;
+		times[index] = time;
+		if (digested != null) {
+			digested[index] = false;
+		}
+		if (serialOrder != null) {
+			serialOrder[index] = 2 * index + 1;
+		}
+		if (sorted && (index > 0)) {
+			sorted = compareKeys(this, index - 1, this, index) < 0;
+		}
+		size++;
+		return index;
+	}
+
+	/**
+	 * orders the entries by key, in the same order as String.compareTo().
+	 * Of entries with the same key only the one a serial scan would add last
+	 * is kept. Indexes returned by add() are invalid afterwards.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		mergeSort(order, (int[]) order.clone(), 0, size);
+
+		// the sort is stable, so the entries of a run of equal keys are in the order they were added
+		int count = 0;
+		int next = 0;
+		while (next < size) {
+			int kept = order[next];
+			next++;
+			while ((next < size) && (compareKeys(this, kept, this, order[next]) == 0)) {
+				if ((serialOrder == null) || (serialOrder[order[next]] >= serialOrder[kept])) {
+					kept = order[next];
+				}
+				next++;
+			}
+			order[count] = kept;
+			count++;
+		}
+
+		keyStart = permute(keyStart, order, count);
+		entryNameStart = permute(entryNameStart, order, count);
+		nameEnd = permute(nameEnd, order, count);
+		sizes = permute(sizes, order, count);
+		compressedSizes = permute(compressedSizes, order, count);
+		crcs = permute(crcs, order, count);
+		times = permute(times, order, count);
+		if (digests != null) {
+			byte[] newDigests = new byte[digests.length];
+			boolean[] newDigested = new boolean[digested.length];
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(digests, order[i] * DIGEST_LENGTH, newDigests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+				newDigested[i] = digested[order[i]];
+			}
+			digests = newDigests;
+			digested = newDigested;
+		}
+		size = count;
+		sorted = true;
+		serialOrder = null;
+	}
+
+	/**
+	 * @return true, if the entries are ordered by key without duplicates
+	 */
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/**
+	 * looks up an entry by key, sorting the index if required
+	 *
+	 * @param key key of the entry
+	 * @return index of the entry or -1
+	 */
+	public int indexOf(String key) {
+		sort();
+		char[] chars = key.toCharArray();
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(names, keyStart[mid], nameEnd[mid], chars, 0, chars.length);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * compares the keys of two entries
+	 *
+	 * @param index1 first EntryIndex
+	 * @param i index of the entry in the first EntryIndex
+	 * @param index2 second EntryIndex
+	 * @param j index of the entry in the second EntryIndex
+	 * @return a negative number, zero or a positive number as the first key is
+	 * less than, equal to or greater than the second key
+	 */
+	public static int compareKeys(EntryIndex index1, int i, EntryIndex index2, int j) {
+		return compare(index1.names, index1.keyStart[i], index1.nameEnd[i], index2.names, index2.keyStart[j], index2.nameEnd[j]);
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return key of the entry
+	 */
+	public String getName(int index) {
+		return new String(names, keyStart[index], nameEnd[index] - keyStart[index]);
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return name of the entry inside its archive
+	 */
+	public String getEntryName(int index) {
+		return new String(names, entryNameStart[index], nameEnd[index] - entryNameStart[index]);
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return true, if the entry is part of an embedded archive
+	 */
+	public boolean isEmbedded(int index) {
+		// the key of embedded entries starts with the key of the embedded archive,
+		// top level keys are the entry name or a suffix of it
+		return keyStart[index] < entryNameStart[index];
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return true, if the key is the entry name, so the entry is a top level
+	 * entry without skipped directory prefixes
+	 */
+	public boolean isKeyEntryName(int index) {
+		return keyStart[index] == entryNameStart[index];
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return true, if the entry is a directory
+	 */
+	public boolean isDirectory(int index) {
+		return names[nameEnd[index] - 1] == '/';
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return uncompressed size or UNKNOWN
+	 */
+	public long getSize(int index) {
+		return sizes[index];
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return compressed size or UNKNOWN
+	 */
+	public long getCompressedSize(int index) {
+		return compressedSizes[index];
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return crc or UNKNOWN
+	 */
+	public long getCrc(int index) {
+		return crcs[index];
+	}
+
+	/**
+	 * sets the crc of an entry, e.g. after it has been computed from the content
+	 *
+	 * @param index index of the entry
+	 * @param crc crc
+	 */
+	public void setCrc(int index, long crc) {
+		crcs[index] = crc;
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return modification time in milliseconds or UNKNOWN
+	 */
+	public long getTime(int index) {
+		return times[index];
+	}
+
+	/**
+	 * sets the digest of the content of an entry
+	 *
+	 * @param index index of the entry
+	 * @param digest digest of DIGEST_LENGTH bytes
+	 */
+	public void setDigest(int index, byte[] digest) {
+		if (digest.length != DIGEST_LENGTH) {
+			throw new IllegalArgumentException("invalid digest length: " + digest.length);
+		}
+		setDigest(index, digest, 0);
+	}
+
+	private void setDigest(int index, byte[] digest, int offset) {
+		if (digests == null) {
+			digests = new byte[keyStart.length * DIGEST_LENGTH];
+			digested = new boolean[keyStart.length];
+		}
+		System.arraycopy(digest, offset, digests, index * DIGEST_LENGTH, DIGEST_LENGTH);
+		digested[index] = true;
+	}
+
+	/**
+	 * @param index index of the entry
+	 * @return true, if a digest of the content is known
+	 */
+	public boolean hasDigest(int index) {
+		return (digested != null) && digested[index];
+	}
+
+	/**
+	 * compares the content digests of two entries
+	 *
+	 * @param index1 first EntryIndex
+	 * @param i index of the entry in the first EntryIndex
+	 * @param index2 second EntryIndex
+	 * @param j index of the entry in the second EntryIndex
+	 * @return true, if both entries have a digest and the digests are equal
+	 */
+	public static boolean digestEquals(EntryIndex index1, int i, EntryIndex index2, int j) {
+		if (!index1.hasDigest(i) || !index2.hasDigest(j)) {
+			return false;
+		}
+		int offset1 = i * DIGEST_LENGTH;
+		int offset2 = j * DIGEST_LENGTH;
+		for (int k = 0; k < DIGEST_LENGTH; k++) {
+			if (index1.digests[offset1 + k] != index2.digests[offset2 + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * creates a ZipEntry for an entry
+	 *
+	 * @param index index of the entry
+	 * @return ZipEntry with the entry name and the known metadata
+	 */
+	public ZipEntry toZipEntry(int index) {
+		ZipEntry zipEntry = new ZipEntry(getEntryName(index));
+		if (sizes[index] != UNKNOWN) {
+			zipEntry.setSize(sizes[index]);
+		}
+		if (compressedSizes[index] != UNKNOWN) {
+			zipEntry.setCompressedSize(compressedSizes[index]);
+		}
+		if (crcs[index] != UNKNOWN) {
+			zipEntry.setCrc(crcs[index]);
+		}
+		if (times[index] != UNKNOWN) {
+			zipEntry.setTime(times[index]);
+		}
+		return zipEntry;
+	}
+
+	/**
+	 * creates a map of all entries
+	 *
+	 * @return map with the keys as keys and ZipEntries as values
+	 */
+	public Map toMap() {
+		Map map = new HashMap();
+		for (int i = 0; i < size; i++) {
+			map.put(getName(i), toZipEntry(i));
+		}
+		return map;
+	}
+
+	/**
+	 * computes a digest of the keys, sizes and crcs of all entries, sorting the
+	 * index if required. Indexes with the same entries have the same digest,
+	 * regardless of the order in which the entries were added.
+	 *
+	 * @param includeCompressedSizes true to include the compressed sizes
+	 * @param includeTimes true to include the times
+	 * @return digest of DIGEST_LENGTH bytes
+	 */
+	public byte[] digest(boolean includeCompressedSizes, boolean includeTimes) {
+		sort();
+		MessageDigest digest = ScanContext.createDigest();
+		byte[] buffer = new byte[256];
+		for (int i = 0; i < size; i++) {
+			int length = nameEnd[i] - keyStart[i];
+			// the length is hashed first, because update() overwrites the start of the buffer
+			update(digest, buffer, length);
+			if (buffer.length < length * 2) {
+				buffer = new byte[length * 2];
+			}
+			for (int k = 0; k < length; k++) {
+				char c = names[keyStart[i] + k];
+				buffer[k * 2] = (byte) (c >> 8);
+				buffer[k * 2 + 1] = (byte) c;
+			}
+			digest.update(buffer, 0, length * 2);
+			update(digest, buffer, sizes[i]);
+			update(digest, buffer, crcs[i]);
+			if (includeCompressedSizes) {
+				update(digest, buffer, compressedSizes[i]);
+			}
+			if (includeTimes) {
+				update(digest, buffer, times[i]);
+			}
+		}
+		return digest.digest();
+	}
+
+	private static void update(MessageDigest digest, byte[] buffer, long value) {
+		for (int i = 0; i < 8; i++) {
+			buffer[i] = (byte) (value >>> (56 - i * 8));
+		}
+		digest.update(buffer, 0, 8);
+	}
+
+	/**
+	 * writes all entries including their digests, e.g. to cache the index on disk
+	 *
+	 * @param out DataOutput
+	 * @throws IOException in case of an input/output error
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		// the positions of merged entries are not written
+		if (serialOrder != null) {
+			sort();
+		}
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			int start = Math.min(keyStart[i], entryNameStart[i]);
+			out.writeInt(nameEnd[i] - start);
+			for (int k = start; k < nameEnd[i]; k++) {
+				out.writeChar(names[k]);
+			}
+			out.writeInt(keyStart[i] - start);
+			out.writeInt(entryNameStart[i] - start);
+			out.writeLong(sizes[i]);
+			out.writeLong(compressedSizes[i]);
+			out.writeLong(crcs[i]);
+			out.writeLong(times[i]);
+			out.writeBoolean(hasDigest(i));
+			if (hasDigest(i)) {
+				out.write(digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+			}
+		}
+	}
+
+	/**
+	 * reads entries written by writeTo()
+	 *
+	 * @param in DataInput
+	 * @return EntryIndex with the entries in the order they were written
+	 * @throws IOException in case of an input/output error or invalid data
+	 */
+	public static EntryIndex readFrom(DataInput in) throws IOException {
+		EntryIndex index = new EntryIndex();
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("invalid number of entries: " + count);
+		}
+		byte[] digest = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < count; i++) {
+			int length = in.readInt();
+			if (length < 0) {
+				throw new IOException("invalid name length: " + length);
+			}
+			index.ensureNamesCapacity(length);
+			int start = index.namesLength;
+			for (int k = 0; k < length; k++) {
+				index.names[start + k] = in.readChar();
+			}
+			int key = in.readInt();
+			int entryName = in.readInt();
+			if ((key < 0) || (key > length) || (entryName < 0) || (entryName > length)) {
+				throw new IOException("invalid name offsets");
+			}
+			index.namesLength += length;
+			int j = index.put(start + key, start + entryName, start + length, in.readLong(), in.readLong(), in.readLong(), in.readLong());
+			if (in.readBoolean()) {
+				in.readFully(digest);
+				index.setDigest(j, digest, 0);
+			}
+		}
+		return index;
+	}
+
+	private int indexOfSlash(int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (names[i] == '/') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int compare(char[] chars1, int start1, int end1, char[] chars2, int start2, int end2) {
+		int length1 = end1 - start1;
+		int length2 = end2 - start2;
+		int length = Math.min(length1, length2);
+		for (int i = 0; i < length; i++) {
+			char c1 = chars1[start1 + i];
+			char c2 = chars2[start2 + i];
+			if (c1 != c2) {
+				return c1 - c2;
+			}
+		}
+		return length1 - length2;
+	}
+
+	/**
+	 * stable merge sort of entry indexes by key
+	 *
+	 * @param order entry indexes to sort, receives the result
+	 * @param buffer copy of order, used as scratch space
+	 * @param from first position (inclusive)
+	 * @param to last position (exclusive)
+	 */
+	private void mergeSort(int[] order, int[] buffer, int from, int to) {
+		if (to - from < 8) {
+			for (int i = from + 1; i < to; i++) {
+				int value = order[i];
+				int j = i;
+				while ((j > from) && (compareKeys(this, order[j - 1], this, value) > 0)) {
+					order[j] = order[j - 1];
+					j--;
+				}
+				order[j] = value;
+			}
+			return;
+		}
+
+		// sort both halves into buffer using order as scratch space, then merge them into order
+		int mid = (from + to) >>> 1;
+		mergeSort(buffer, order, from, mid);
+		mergeSort(buffer, order, mid, to);
+		if (compareKeys(this, buffer[mid - 1], this, buffer[mid]) <= 0) {
+			System.arraycopy(buffer, from, order, from, to - from);
+			return;
+		}
+		int left = from;
+		int right = mid;
+		for (int i = from; i < to; i++) {
+			if ((right >= to) || ((left < mid) && (compareKeys(this, buffer[left], this, buffer[right]) <= 0))) {
+				order[i] = buffer[left];
+				left++;
+			} else {
+				order[i] = buffer[right];
+				right++;
+			}
+		}
+	}
+
+	private static int[] permute(int[] array, int[] order, int count) {
+		int[] result = new int[Math.max(count, 1)];
+		for (int i = 0; i < count; i++) {
+			result[i] = array[order[i]];
+		}
+		return result;
+	}
+
+	private static long[] permute(long[] array, int[] order, int count) {
+		long[] result = new long[Math.max(count, 1)];
+		for (int i = 0; i < count; i++) {
+			result[i] = array[order[i]];
+		}
+		return result;
+	}
+
+	private void ensureNamesCapacity(int additional) {
+		if (namesLength + additional > names.length) {
+			char[] newNames = new char[Math.max(names.length * 2, namesLength + additional)];
+			System.arraycopy(names, 0, newNames, 0, namesLength);
+			names = newNames;
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= keyStart.length) {
+			return;
+		}
+		int newCapacity = Math.max(keyStart.length * 2, capacity);
+		keyStart = grow(keyStart, newCapacity);
+		entryNameStart = grow(entryNameStart, newCapacity);
+		nameEnd = grow(nameEnd, newCapacity);
+		sizes = grow(sizes, newCapacity);
+		compressedSizes = grow(compressedSizes, newCapacity);
+		crcs = grow(crcs, newCapacity);
+		times = grow(times, newCapacity);
+		if (digests != null) {
+			byte[] newDigests = new byte[newCapacity * DIGEST_LENGTH];
+			System.arraycopy(digests, 0, newDigests, 0, size * DIGEST_LENGTH);
+			digests = newDigests;
+			boolean[] newDigested = new boolean[newCapacity];
+			System.arraycopy(digested, 0, newDigested, 0, size);
+			digested = newDigested;
+		}
+		if (serialOrder != null) {
+			serialOrder = grow(serialOrder, newCapacity);
+		}
+	}
+
+	private int[] grow(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		System.arraycopy(array, 0, result, 0, size);
+		return result;
+	}
+
+	private long[] grow(long[] array, int capacity) {
+		long[] result = new long[capacity];
+		System.arraycopy(array, 0, result, 0, size);
+		return result;
+	}
+}
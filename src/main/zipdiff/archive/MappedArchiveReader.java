@@ -0,0 +1,261 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
+
+/**
+ * Reads archives by memory mapping their central directory. The records are
+ * parsed directly into the EntryIndex without creating ZipEntry objects.
+ * Embedded archives are uncompressed once into the SpillArea and their
+ * central directory is parsed the same way.
+ *
+ * @author Hendrik Brummermann
+ */
+public class MappedArchiveReader implements ArchiveReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	public EntryIndex read(File file, ScanContext context) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			CentralDirectory cd = CentralDirectory.open(raf.getChannel());
+			EntryIndex index = new EntryIndex();
+			scan(cd, "", context.getNumberOfPrefixesToSkip(), index, context);
+			return index;
+		} catch (ZipException e) {
+			throw new ZipException(e.getMessage() + ": " + file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * reads the entries of the central directory of an archive file without
+	 * scanning its embedded archives
+	 *
+	 * @param file archive file
+	 * @param context decides which entries to ignore
+	 * @return index of the top level entries which are not ignored
+	 * @throws IOException in case of an input/output error or an invalid archive
+	 */
+	public EntryIndex readCentralDirectory(File file, ScanContext context) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			CentralDirectory cd = CentralDirectory.open(raf.getChannel());
+			EntryIndex index = new EntryIndex();
+			while (cd.next()) {
+				CharSequence name = cd.getName();
+				if (context.isFiltering() && context.ignore("", name.toString())) {
+					continue;
+				}
+				index.add("", name, context.getNumberOfPrefixesToSkip(), cd.getSize(), cd.getCompressedSize(), cd.getCrc(), cd.getTime());
+			}
+			return index;
+		} catch (ZipException e) {
+			throw new ZipException(e.getMessage() + ": " + file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * reads the entries of an uncompressed embedded archive
+	 *
+	 * @param archive uncompressed data of the embedded archive
+	 * @param prefix key of the embedded archive followed by "!"
+	 * @param context decides which entries to ignore and which to scan recursively
+	 * @return index of all entries which are not ignored
+	 * @throws IOException in case of an input/output error
+	 */
+	public EntryIndex read(ByteBuffer archive, String prefix, ScanContext context) throws IOException {
+		EntryIndex index = new EntryIndex();
+		scanEmbeddedArchive(prefix, archive, index, context);
+		return index;
+	}
+
+	/**
+	 * adds the entries of an archive file, which is embedded in a directory tree, to the index
+	 *
+	 * @param file archive file
+	 * @param prefix key of the archive followed by "!"
+	 * @param index index to add the entries to
+	 * @param context ScanContext
+	 * @throws IOException in case of an input/output error
+	 */
+	void scanArchiveFile(File file, String prefix, EntryIndex index, ScanContext context) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			CentralDirectory cd;
+			try {
+				cd = CentralDirectory.open(raf.getChannel());
+			} catch (ZipException e) {
+				logger.log(Level.FINE, "not scanning " + prefix + ": " + e.getMessage());
+				return;
+			}
+			scan(cd, prefix, 0, index, context);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * adds the entries of an archive to the index
+	 *
+	 * @param cd central directory of the archive
+	 * @param prefix key of the embedded archive followed by "!", or ""
+	 * @param numberOfPrefixesToSkip number of directory prefixes to skip
+	 * @param index index to add the entries to
+	 * @param context ScanContext
+	 * @throws IOException in case of an input/output error
+	 */
+	private void scan(CentralDirectory cd, String prefix, int numberOfPrefixesToSkip, EntryIndex index, ScanContext context) throws IOException {
+		List embeddedScans = new ArrayList();
+		List positions = new ArrayList();
+
+		// entries of the top level archive are not digested, they can be compared directly
+		boolean digesting = (prefix.length() > 0) && context.isDigesting();
+		MessageDigest digest = null;
+		byte[] input = null;
+		byte[] output = null;
+		if (digesting) {
+			digest = ScanContext.createDigest();
+			input = new byte[BUFFER_SIZE];
+			output = new byte[BUFFER_SIZE];
+		}
+
+		try {
+			while (cd.next()) {
+				CharSequence name = cd.getName();
+				if (context.isFiltering() && context.ignore(prefix, name.toString())) {
+					logger.log(Level.FINE, "ignoring file: " + name);
+					continue;
+				}
+
+				boolean archive = !cd.isDirectory() && context.isArchive(prefix, name);
+				int i = index.add(prefix, name, numberOfPrefixesToSkip, cd.getSize(), cd.getCompressedSize(), cd.getCrc(), cd.getTime());
+				if ((i < 0) || cd.isDirectory()) {
+					continue;
+				}
+				if (!archive && context.isDetectingArchivesByContent() && context.isScanningEmbeddedArchives(prefix)) {
+					archive = CentralDirectory.hasZipSignature(cd.getData(), cd.getMethod());
+				}
+
+				if (!archive) {
+					if (digesting) {
+						byte[] entryDigest = CentralDirectory.digest(cd.getData(), cd.getMethod(), digest, input, output);
+						if (entryDigest != null) {
+							index.setDigest(i, entryDigest);
+						}
+					}
+					continue;
+				}
+
+				EmbeddedArchiveScan scan = new EmbeddedArchiveScan(index.getName(i) + "!", cd.getData(), cd.getMethod(), cd.getSize(), context);
+				if (context.isParallel()) {
+					embeddedScans.add(context.fork(scan));
+					positions.add(Integer.valueOf(index.size()));
+				} else {
+					scan.scan(index);
+				}
+			}
+
+			// embedded archives are merged at the position of their entries, so the
+			// index is the same as the one built by a serial scan
+			for (int k = 0; k < embeddedScans.size(); k++) {
+				index.addAll((EntryIndex) ScanContext.join((FutureTask) embeddedScans.get(k)), ((Integer) positions.get(k)).intValue());
+			}
+		} finally {
+			Iterator iter = embeddedScans.iterator();
+			while (iter.hasNext()) {
+				((FutureTask) iter.next()).cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * adds the entries of an uncompressed embedded archive to the index
+	 *
+	 * @param prefix key of the embedded archive followed by "!"
+	 * @param archive uncompressed data of the embedded archive
+	 * @param index index to add the entries to
+	 * @param context ScanContext
+	 * @throws IOException in case of an input/output error
+	 */
+	void scanEmbeddedArchive(String prefix, ByteBuffer archive, EntryIndex index, ScanContext context) throws IOException {
+		CentralDirectory cd;
+		try {
+			cd = CentralDirectory.open(archive);
+		} catch (ZipException e) {
+			logger.log(Level.FINE, "not scanning " + prefix + ": " + e.getMessage());
+			return;
+		}
+		scan(cd, prefix, 0, index, context);
+	}
+
+	/**
+	 * scans an embedded archive
+	 */
+	private class EmbeddedArchiveScan implements Callable {
+		private final String prefix;
+
+		private final ByteBuffer data;
+
+		private final int method;
+
+		private final long size;
+
+		private final ScanContext context;
+
+		EmbeddedArchiveScan(String prefix, ByteBuffer data, int method, long size, ScanContext context) {
+			this.prefix = prefix;
+			this.data = data;
+			this.method = method;
+			this.size = size;
+			this.context = context;
+		}
+
+		/**
+		 * adds the entries of the embedded archive to the index
+		 *
+		 * @param index EntryIndex
+		 * @throws IOException in case of an input/output error
+		 */
+		void scan(EntryIndex index) throws IOException {
+			SpillArea spillArea = context.getSpillArea();
+			ByteBuffer archive = spillArea.inflate(data, method, size);
+			if (archive == null) {
+				logger.log(Level.WARNING, "unsupported compression method " + method + ", not scanning " + prefix);
+				return;
+			}
+			try {
+				scanEmbeddedArchive(prefix, archive, index, context);
+			} finally {
+				spillArea.release(archive);
+			}
+		}
+
+		public Object call() throws IOException {
+			EntryIndex index = new EntryIndex();
+			scan(index);
+			return index;
+		}
+	}
+}
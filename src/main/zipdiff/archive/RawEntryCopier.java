@@ -0,0 +1,345 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file with entries copied from other archives without
+ * uncompressing and compressing them again. The compressed data is
+ * transferred from the FileChannel of the archive, the headers are written
+ * with the crc and sizes of its central directory, so no data descriptors
+ * are needed. Entries can get a new name, because the name is not part of
+ * the compressed data.
+ * <p>
+ * Zip64 records are not written, archives which may need them have to be
+ * written with a ZipOutputStream.
+ *
+ * @author Hendrik Brummermann
+ */
+public class RawEntryCopier {
+
+	/** general purpose flag: crc and sizes follow the data */
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+	/** general purpose flag: the name is encoded in UTF-8 */
+	private static final int FLAG_UTF8 = 0x800;
+
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** version of the zip specification needed for stored entries written by add() */
+	private static final int VERSION = 10;
+
+	/** version of the zip specification needed for deflated entries written by add() */
+	private static final int VERSION_DEFLATED = 20;
+
+	/** MS-DOS time of 1980-01-01 00:00, the earliest time which can be represented */
+	private static final long MIN_DOS_TIME = (1 << 21) | (1 << 16);
+
+	private final OutputStream out;
+
+	private final WritableByteChannel channel;
+
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+	private final Set names = new HashSet();
+
+	private long offset = 0;
+
+	private int entryCount = 0;
+
+	/** buffer to copy small entries, if the output is not a file */
+	private ByteBuffer buffer;
+
+	/**
+	 * creates a new RawEntryCopier
+	 *
+	 * @param out OutputStream of the new zip file, it is not closed
+	 */
+	public RawEntryCopier(OutputStream out) {
+		this.out = out;
+		if (out instanceof FileOutputStream) {
+			channel = ((FileOutputStream) out).getChannel();
+		} else {
+			channel = Channels.newChannel(out);
+		}
+	}
+
+	/**
+	 * checks whether entries of an archive can be copied without zip64 records
+	 *
+	 * @param archive archive file
+	 * @param numberOfEntries number of entries to copy
+	 * @return true, if the archive is a file smaller than 4 GB and there are less than 65535 entries
+	 */
+	public static boolean isSupported(File archive, int numberOfEntries) {
+		return archive.isFile() && (archive.length() < CentralDirectory.ZIP64_MAGIC) && (numberOfEntries < MAX_ENTRIES);
+	}
+
+	/**
+	 * copies entries of an archive in the order of its central directory
+	 *
+	 * @param archive archive file
+	 * @param entryNames map of the names of the entries to copy to their names in the new zip file
+	 * @return number of entries copied
+	 * @throws IOException in case of an input/output error, an invalid archive or
+	 * an entry, which requires zip64 records
+	 */
+	public int copy(File archive, Map entryNames) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(archive, "r");
+		try {
+			FileChannel source = raf.getChannel();
+			return copy(CentralDirectory.open(source), source, entryNames);
+		} catch (ZipException e) {
+			throw new ZipException(e.getMessage() + ": " + archive);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * copies entries of an uncompressed embedded archive in the order of its central directory
+	 *
+	 * @param archive complete archive from position to limit
+	 * @param entryNames map of the names of the entries to copy to their names in the new zip file
+	 * @return number of entries copied
+	 * @throws IOException in case of an input/output error, an invalid archive or
+	 * an entry, which requires zip64 records
+	 */
+	public int copy(ByteBuffer archive, Map entryNames) throws IOException {
+		return copy(CentralDirectory.open(archive), null, entryNames);
+	}
+
+	private int copy(CentralDirectory cd, FileChannel source, Map entryNames) throws IOException {
+		int count = 0;
+		while (cd.next()) {
+			String name = (String) entryNames.get(cd.getName().toString());
+			if (name != null) {
+				startEntry(name, cd.getVersionMadeBy(), cd.getVersionNeeded(), cd.getFlags(), cd.getMethod(), cd.getDosTime(), cd.getCrc(),
+					cd.getCompressedSize(), cd.getSize(), cd.getInternalAttributes(), cd.getExternalAttributes());
+				if (source != null) {
+					transfer(source, cd.getDataOffset(), cd.getCompressedSize());
+				} else {
+					ByteBuffer data = cd.getData();
+					while (data.hasRemaining()) {
+						channel.write(data);
+					}
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * adds an entry, which is stored without compression, e.g. an archive built in memory
+	 *
+	 * @param name name of the entry
+	 * @param data content of the entry
+	 * @param dosTime modification time in MS-DOS format as returned by CentralDirectory.getDosTime()
+	 * @throws IOException in case of an input/output error or if zip64 records would be required
+	 */
+	public void add(String name, byte[] data, long dosTime) throws IOException {
+		add(name, data, dosTime, false);
+	}
+
+	/**
+	 * adds an entry
+	 *
+	 * @param name name of the entry
+	 * @param data content of the entry
+	 * @param dosTime modification time in MS-DOS format
+	 * @param compress true to deflate the data, it is stored anyway if it does not get smaller
+	 * @throws IOException in case of an input/output error or if zip64 records would be required
+	 */
+	public void add(String name, byte[] data, long dosTime, boolean compress) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if (compress) {
+			byte[] compressed = deflate(data);
+			if (compressed.length < data.length) {
+				startEntry(name, VERSION_DEFLATED, VERSION_DEFLATED, 0, CentralDirectory.DEFLATED, dosTime, crc.getValue(), compressed.length, data.length, 0, 0);
+				out.write(compressed);
+				return;
+			}
+		}
+		startEntry(name, VERSION, VERSION, 0, CentralDirectory.STORED, dosTime, crc.getValue(), data.length, data.length, 0, 0);
+		out.write(data);
+	}
+
+	/**
+	 * compresses data without zlib header
+	 */
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				compressed.write(buffer, 0, count);
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * converts a time the same way java.util.zip.ZipEntry.setTime() does
+	 *
+	 * @param time time in milliseconds
+	 * @return time in MS-DOS format
+	 */
+	public static long toDosTime(long time) {
+		Calendar calendar = new GregorianCalendar();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return MIN_DOS_TIME;
+		}
+		return ((long) (year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+			| (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	/**
+	 * writes the local header of an entry, whose data has to be written next, and
+	 * remembers its central directory record
+	 */
+	private void startEntry(String name, int versionMadeBy, int versionNeeded, int flags, int method, long dosTime, long crc,
+			long compressedSize, long size, int internalAttributes, long externalAttributes) throws IOException {
+		if (!names.add(name)) {
+			throw new ZipException("duplicate entry: " + name);
+		}
+		byte[] nameBytes = name.getBytes("UTF-8");
+		if ((entryCount >= MAX_ENTRIES) || (size >= CentralDirectory.ZIP64_MAGIC)
+				|| (offset + CentralDirectory.LOCHDR + nameBytes.length + compressedSize >= CentralDirectory.ZIP64_MAGIC)) {
+			throw new ZipException("zip64 records are required for " + name);
+		}
+
+		// the crc and sizes are written to the local header, names which are not US-ASCII are marked as UTF-8
+		flags = flags & ~FLAG_DATA_DESCRIPTOR;
+		if (nameBytes.length == name.length()) {
+			flags = flags & ~FLAG_UTF8;
+		} else {
+			flags = flags | FLAG_UTF8;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(CentralDirectory.LOCHDR + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(CentralDirectory.LOCSIG);
+		header.putShort((short) versionNeeded);
+		header.putShort((short) flags);
+		header.putShort((short) method);
+		header.putInt((int) dosTime);
+		header.putInt((int) crc);
+		header.putInt((int) compressedSize);
+		header.putInt((int) size);
+		header.putShort((short) nameBytes.length);
+		header.putShort((short) 0);
+		header.put(nameBytes);
+		out.write(header.array());
+
+		ByteBuffer record = ByteBuffer.allocate(CentralDirectory.CENHDR + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(CentralDirectory.CENSIG);
+		record.putShort((short) versionMadeBy);
+		record.putShort((short) versionNeeded);
+		record.putShort((short) flags);
+		record.putShort((short) method);
+		record.putInt((int) dosTime);
+		record.putInt((int) crc);
+		record.putInt((int) compressedSize);
+		record.putInt((int) size);
+		record.putShort((short) nameBytes.length);
+		record.putShort((short) 0);
+		record.putShort((short) 0);
+		record.putShort((short) 0);
+		record.putShort((short) internalAttributes);
+		record.putInt((int) externalAttributes);
+		record.putInt((int) offset);
+		record.put(nameBytes);
+		centralDirectory.write(record.array());
+
+		offset += header.capacity() + compressedSize;
+		entryCount++;
+	}
+
+	/**
+	 * transfers compressed data from the archive to the new zip file
+	 */
+	private void transfer(FileChannel source, long position, long count) throws IOException {
+		// transferTo() maps the file for each call, if the target is not a file,
+		// which is slower than reading small entries into a buffer
+		if (!(channel instanceof FileChannel) && (count <= BUFFER_SIZE)) {
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			}
+			buffer.clear();
+			buffer.limit((int) count);
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer, position + buffer.position()) < 0) {
+					throw new ZipException("unexpected end of data");
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			return;
+		}
+		while (count > 0) {
+			long transferred = source.transferTo(position, count, channel);
+			if (transferred <= 0) {
+				throw new ZipException("unexpected end of data");
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	/**
+	 * writes the central directory and the end record. The OutputStream is not closed.
+	 *
+	 * @throws IOException in case of an input/output error
+	 */
+	public void finish() throws IOException {
+		byte[] directory = centralDirectory.toByteArray();
+		out.write(directory);
+
+		ByteBuffer end = ByteBuffer.allocate(CentralDirectory.ENDHDR).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(CentralDirectory.ENDSIG);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) entryCount);
+		end.putShort((short) entryCount);
+		end.putInt(directory.length);
+		end.putInt((int) offset);
+		end.putShort((short) 0);
+		out.write(end.array());
+		out.flush();
+	}
+}
@@ -0,0 +1,309 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Settings and callbacks used by an ArchiveReader while it scans an archive.
+ * The DifferenceCalculator provides an implementation which decides which
+ * entries are ignored.
+ *
+ * @author Hendrik Brummermann
+ */
+public abstract class ScanContext {
+
+	/** number of bytes checked by hasZipSignature() */
+	public static final int SIGNATURE_LENGTH = 4;
+
+	private final int numberOfPrefixesToSkip;
+
+	private final ExecutorService executor;
+
+	private final SpillArea spillArea;
+
+	/**
+	 * creates a new ScanContext
+	 *
+	 * @param numberOfPrefixesToSkip number of directory prefixes to skip in the top level archive
+	 * @param executor executor for parallel scanning, or null to scan on the calling thread
+	 */
+	protected ScanContext(int numberOfPrefixesToSkip, ExecutorService executor) {
+		this(numberOfPrefixesToSkip, executor, new SpillArea());
+	}
+
+	/**
+	 * creates a new ScanContext
+	 *
+	 * @param numberOfPrefixesToSkip number of directory prefixes to skip in the top level archive
+	 * @param executor executor for parallel scanning, or null to scan on the calling thread
+	 * @param spillArea holds the uncompressed data of embedded archives
+	 */
+	protected ScanContext(int numberOfPrefixesToSkip, ExecutorService executor, SpillArea spillArea) {
+		this.numberOfPrefixesToSkip = numberOfPrefixesToSkip;
+		this.executor = executor;
+		this.spillArea = spillArea;
+	}
+
+	/**
+	 * @return number of directory prefixes to skip in the top level archive
+	 */
+	public int getNumberOfPrefixesToSkip() {
+		return numberOfPrefixesToSkip;
+	}
+
+	/**
+	 * @return SpillArea which holds the uncompressed data of embedded archives
+	 */
+	public SpillArea getSpillArea() {
+		return spillArea;
+	}
+
+	/**
+	 * @return true, if embedded archives should be scanned in parallel
+	 */
+	public boolean isParallel() {
+		return executor != null;
+	}
+
+	/**
+	 * @return true, if ignore() may return true at all. Readers can skip creating
+	 * name strings for the ignore check if this returns false.
+	 */
+	public abstract boolean isFiltering();
+
+	/**
+	 * checks whether an entry should be left out
+	 *
+	 * @param prefix key of the embedded archive followed by "!", or "" for the top level archive
+	 * @param entryName name of the entry inside its archive
+	 * @return true, if the entry and its embedded entries should be ignored
+	 */
+	public abstract boolean ignore(String prefix, String entryName);
+
+	/**
+	 * @return true, if readers should compute a content digest of the entries in
+	 * embedded archives, except for archives which are scanned recursively.
+	 * Entries of the top level archive can be compared directly.
+	 */
+	public boolean isDigesting() {
+		return false;
+	}
+
+	/**
+	 * describes all settings which influence the index built from an archive, so
+	 * indexes can be cached. Implementations must change the signature whenever
+	 * ignore(), isArchive(), getMaximumDepth(), isDetectingArchivesByContent() or
+	 * isDigesting() would give different results.
+	 *
+	 * @return signature of the settings, or null if indexes must not be cached
+	 */
+	public String getSignature() {
+		return null;
+	}
+
+	/**
+	 * creates a MessageDigest for content digests of EntryIndex.DIGEST_LENGTH bytes
+	 *
+	 * @return MessageDigest
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not supported: " + e);
+		}
+	}
+
+	/**
+	 * reads the remaining data of a stream into a digest
+	 *
+	 * @param is InputStream
+	 * @param digest MessageDigest
+	 * @param buffer buffer to use for reading
+	 * @return the digest
+	 * @throws IOException in case of an input/output error
+	 */
+	public static byte[] digest(InputStream is, MessageDigest digest, byte[] buffer) throws IOException {
+		int count = is.read(buffer);
+		while (count > -1) {
+			digest.update(buffer, 0, count);
+			count = is.read(buffer);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * checks whether an entry is an archive whose entries should be scanned as well
+	 *
+	 * @param name name of the entry
+	 * @return true, if the entry is an embedded archive
+	 */
+	public boolean isArchive(CharSequence name) {
+		return hasArchiveExtension(name);
+	}
+
+	/**
+	 * checks whether an entry is an archive by name, which should be scanned at
+	 * its nesting depth
+	 *
+	 * @param prefix key of the embedded archive followed by "!", or "" for the top level archive
+	 * @param name name of the entry
+	 * @return true, if the entry is an embedded archive, which should be scanned
+	 */
+	public boolean isArchive(String prefix, CharSequence name) {
+		return isScanningEmbeddedArchives(prefix) && isArchive(name);
+	}
+
+	/**
+	 * @return maximum nesting depth of the embedded archives, which are scanned:
+	 * 0 to scan no embedded archives, 1 to scan only the archives in the top
+	 * level archive, -1 for no limit
+	 */
+	public int getMaximumDepth() {
+		return -1;
+	}
+
+	/**
+	 * checks whether embedded archives are scanned at the nesting depth of an archive
+	 *
+	 * @param prefix key of the embedded archive followed by "!", or "" for the top level archive
+	 * @return true, if the maximum depth has not been reached
+	 */
+	public boolean isScanningEmbeddedArchives(String prefix) {
+		int maximumDepth = getMaximumDepth();
+		return (maximumDepth < 0) || (getDepth(prefix) < maximumDepth);
+	}
+
+	/**
+	 * @param key key of an entry or prefix of the entries of an embedded archive
+	 * @return number of archives the entry is embedded in, 0 for top level entries
+	 */
+	public static int getDepth(CharSequence key) {
+		int depth = 0;
+		for (int i = 0; i < key.length(); i++) {
+			if (key.charAt(i) == '!') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * @return true, if readers should check entries, which are no archives by
+	 * name, for the signature of a zip file. This requires reading the first
+	 * bytes of each entry.
+	 */
+	public boolean isDetectingArchivesByContent() {
+		return false;
+	}
+
+	/**
+	 * checks the first bytes of an entry for the signature of a zip file
+	 *
+	 * @param header first bytes of the entry
+	 * @param length number of valid bytes in header
+	 * @return true, if they are the local header or the end record of a zip file
+	 */
+	public static boolean hasZipSignature(byte[] header, int length) {
+		if ((length < SIGNATURE_LENGTH) || (header[0] != 'P') || (header[1] != 'K')) {
+			return false;
+		}
+		return ((header[2] == 3) && (header[3] == 4)) || ((header[2] == 5) && (header[3] == 6));
+	}
+
+	/**
+	 * reads the first bytes of a stream and checks them for the signature of a zip file
+	 *
+	 * @param is InputStream
+	 * @return true, if the stream starts with the signature of a zip file
+	 * @throws IOException in case of an input/output error
+	 */
+	public static boolean hasZipSignature(InputStream is) throws IOException {
+		byte[] header = new byte[SIGNATURE_LENGTH];
+		int length = 0;
+		while (length < header.length) {
+			int count = is.read(header, length, header.length - length);
+			if (count < 0) {
+				break;
+			}
+			length += count;
+		}
+		return hasZipSignature(header, length);
+	}
+
+	/**
+	 * Returns true if the filename has a valid zip extension.
+	 * i.e. jar, war, ear, zip etc.
+	 *
+	 * @param name The name of the file to check.
+	 * @return true if it has a valid extension.
+	 */
+	public static boolean hasArchiveExtension(CharSequence name) {
+		int length = name.length();
+		if ((length < 4) || (name.charAt(length - 4) != '.')) {
+			return false;
+		}
+		char c1 = Character.toLowerCase(name.charAt(length - 3));
+		char c2 = Character.toLowerCase(name.charAt(length - 2));
+		char c3 = Character.toLowerCase(name.charAt(length - 1));
+		if ((c2 == 'a') && (c3 == 'r')) {
+			return (c1 == 'e') || (c1 == 'w') || (c1 == 'r') || (c1 == 'j');
+		}
+		return (c1 == 'z') && (c2 == 'i') && (c3 == 'p');
+	}
+
+	/**
+	 * starts a task on the executor. Without executor, the task is run by join().
+	 *
+	 * @param task task to start
+	 * @return FutureTask to pass to join()
+	 */
+	public FutureTask fork(Callable task) {
+		FutureTask futureTask = new FutureTask(task);
+		if (executor != null) {
+			executor.execute(futureTask);
+		}
+		return futureTask;
+	}
+
+	/**
+	 * waits for a task started by fork(). If no thread has picked up
+	 * the task yet, it is executed on the calling thread, so waiting tasks can
+	 * never starve the executor.
+	 *
+	 * @param task task to wait for
+	 * @return result of the task
+	 * @throws IOException in case the task failed with an input/output error
+	 */
+	public static Object join(FutureTask task) throws IOException {
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while scanning archives");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("unexpected exception: " + cause);
+		}
+	}
+}
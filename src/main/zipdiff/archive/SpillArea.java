@@ -0,0 +1,328 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the uncompressed data of embedded archives while they are scanned.
+ * Small archives are kept in memory, larger ones are written to temporary
+ * files and memory mapped. If the total size of the temporary files would
+ * exceed the capacity, an IOException is thrown, so the comparison fails.
+ * Each embedded archive is uncompressed exactly once, archives embedded in
+ * it are read from the uncompressed data with random access.
+ *
+ * @author Hendrik Brummermann
+ */
+public class SpillArea {
+
+	/** default size up to which embedded archives are kept in memory */
+	public static final long DEFAULT_MEMORY_THRESHOLD = 32 * 1024 * 1024;
+
+	/** default limit for the total size of temporary files */
+	public static final long DEFAULT_CAPACITY = 4L * 1024 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** arrays and mapped buffers are limited to this size */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final File directory;
+
+	private final long memoryThreshold;
+
+	private final long capacity;
+
+	private long used = 0;
+
+	/** temporary files by the buffer mapping them */
+	private final Map files = new IdentityHashMap();
+
+	/**
+	 * creates a SpillArea in the default temporary directory with default limits
+	 */
+	public SpillArea() {
+		this(null, DEFAULT_MEMORY_THRESHOLD, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * creates a new SpillArea
+	 *
+	 * @param directory directory for temporary files, or null for the default temporary directory
+	 * @param memoryThreshold size up to which embedded archives are kept in memory
+	 * @param capacity limit for the total size of temporary files
+	 */
+	public SpillArea(File directory, long memoryThreshold, long capacity) {
+		this.directory = directory;
+		this.memoryThreshold = memoryThreshold;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * uncompresses the data of an embedded archive
+	 *
+	 * @param data compressed data as returned by CentralDirectory.getData()
+	 * @param method compression method
+	 * @param size uncompressed size
+	 * @return uncompressed data, or null if the compression method is not supported
+	 * @throws IOException in case of an input/output error, or if the spill area is full
+	 */
+	public ByteBuffer inflate(ByteBuffer data, int method, long size) throws IOException {
+		if ((method == CentralDirectory.STORED) || !reserve(size)) {
+			return CentralDirectory.inflate(data, method, size);
+		}
+
+		File file = createTempFile(size);
+		boolean supported = false;
+		try {
+			OutputStream os = new FileOutputStream(file);
+			try {
+				supported = CentralDirectory.inflate(data, method, os, new byte[BUFFER_SIZE], new byte[BUFFER_SIZE]);
+			} finally {
+				os.close();
+			}
+			if (!supported) {
+				return null;
+			}
+			if (file.length() != size) {
+				supported = false;
+				throw new IOException("invalid entry size: expected " + size + " but got " + file.length());
+			}
+			return map(file, size);
+		} finally {
+			if (!supported) {
+				delete(file, size);
+			}
+		}
+	}
+
+	/**
+	 * reads the uncompressed data of an embedded archive from a stream
+	 *
+	 * @param is InputStream of the embedded archive
+	 * @param size uncompressed size, or -1 if unknown
+	 * @return uncompressed data
+	 * @throws IOException in case of an input/output error, or if the spill area is full
+	 */
+	public ByteBuffer read(InputStream is, long size) throws IOException {
+		if (size < 0) {
+			return readUnknownSize(is);
+		}
+		if (!reserve(size)) {
+			return readIntoMemory(is, size);
+		}
+		return spill(new byte[0], 0, is, size);
+	}
+
+	/**
+	 * reads data of unknown size into memory, up to the memory threshold, and
+	 * the remaining data into a temporary file
+	 */
+	private ByteBuffer readUnknownSize(InputStream is) throws IOException {
+		int limit = (int) Math.min(Math.max(memoryThreshold, BUFFER_SIZE), MAX_ARRAY_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count = 0;
+		while (true) {
+			if (count == buffer.length) {
+				if (count == limit) {
+					return spill(buffer, count, is, -1);
+				}
+				byte[] larger = new byte[(int) Math.min(buffer.length * 2L, limit)];
+				System.arraycopy(buffer, 0, larger, 0, count);
+				buffer = larger;
+			}
+			int n = is.read(buffer, count, buffer.length - count);
+			if (n < 0) {
+				break;
+			}
+			count += n;
+		}
+		return ByteBuffer.wrap(buffer, 0, count).slice();
+	}
+
+	/**
+	 * writes data to a temporary file and maps it
+	 *
+	 * @param head data, which has been read from the stream already
+	 * @param headLength length of the data in head
+	 * @param is InputStream with the remaining data
+	 * @param size total size, which has been reserved already, or -1 if unknown
+	 * @return uncompressed data
+	 * @throws IOException in case of an input/output error, or if the spill area is full
+	 */
+	private ByteBuffer spill(byte[] head, int headLength, InputStream is, long size) throws IOException {
+		long reserved = Math.max(size, 0);
+		File file = createTempFile(reserved);
+		boolean complete = false;
+		try {
+			long count = headLength;
+			OutputStream os = new FileOutputStream(file);
+			try {
+				os.write(head, 0, headLength);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n = is.read(buffer);
+				while (n > -1) {
+					os.write(buffer, 0, n);
+					count += n;
+					if ((size < 0) && (count > MAX_ARRAY_SIZE)) {
+						throw new IOException("embedded archive too large: " + count);
+					}
+					if ((size < 0) && (count > getAvailable())) {
+						throw full(count);
+					}
+					n = is.read(buffer);
+				}
+			} finally {
+				os.close();
+			}
+			if (size < 0) {
+				allocate(count);
+				reserved = count;
+			} else if (count != size) {
+				throw new IOException("invalid entry size: expected " + size + " but got " + count);
+			}
+			ByteBuffer archive = map(file, count);
+			complete = true;
+			return archive;
+		} finally {
+			if (!complete) {
+				delete(file, reserved);
+			}
+		}
+	}
+
+	/**
+	 * releases the data returned by inflate() or read(), deleting the temporary file if there is one
+	 *
+	 * @param archive uncompressed data, may be null
+	 */
+	public void release(ByteBuffer archive) {
+		File file;
+		synchronized (this) {
+			file = (File) files.remove(archive);
+		}
+		if (file != null) {
+			delete(file, archive.capacity());
+		}
+	}
+
+	/**
+	 * @return total size of the temporary files which are currently in use
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * reserves space for a temporary file
+	 *
+	 * @param size size of the file
+	 * @return true, if the data should be written to a temporary file, false if it is kept in memory
+	 * @throws IOException if the data is too large to be mapped, or if the spill area is full
+	 */
+	private synchronized boolean reserve(long size) throws IOException {
+		if (size > MAX_ARRAY_SIZE) {
+			throw new IOException("embedded archive too large: " + size);
+		}
+		if (size <= memoryThreshold) {
+			return false;
+		}
+		allocate(size);
+		return true;
+	}
+
+	/**
+	 * reserves space for a temporary file regardless of the memory threshold
+	 *
+	 * @param size size of the file
+	 * @throws IOException if the spill area is full
+	 */
+	private synchronized void allocate(long size) throws IOException {
+		if (size > capacity - used) {
+			throw full(size);
+		}
+		used += size;
+	}
+
+	/**
+	 * @return number of bytes, which can be reserved
+	 */
+	private synchronized long getAvailable() {
+		return capacity - used;
+	}
+
+	private IOException full(long size) {
+		String message = "spill area is full: " + size + " bytes are required, but only " + getAvailable() + " of " + capacity + " bytes are available";
+		logger.log(Level.WARNING, message);
+		return new IOException(message);
+	}
+
+	private File createTempFile(long size) throws IOException {
+		try {
+			return File.createTempFile("zipdiff", ".tmp", directory);
+		} catch (IOException e) {
+			unreserve(size);
+			throw e;
+		}
+	}
+
+	private ByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer archive = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			synchronized (this) {
+				files.put(archive, file);
+			}
+			return archive;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void delete(File file, long size) {
+		// mapped files cannot be deleted on all platforms
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+		unreserve(size);
+	}
+
+	private synchronized void unreserve(long size) {
+		used -= size;
+	}
+
+	/**
+	 * reads data of known size, which is below the memory threshold, into memory
+	 */
+	private ByteBuffer readIntoMemory(InputStream is, long size) throws IOException {
+		byte[] buffer = new byte[(int) size];
+		int count = 0;
+		while (count < buffer.length) {
+			int n = is.read(buffer, count, buffer.length - count);
+			if (n < 0) {
+				throw new IOException("invalid entry size: expected " + size + " but got " + count);
+			}
+			count += n;
+		}
+		if (is.read() > -1) {
+			throw new IOException("invalid entry size: expected " + size);
+		}
+		return ByteBuffer.wrap(buffer);
+	}
+}
@@ -0,0 +1,207 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads an archive sequentially from a stream, e.g. stdin or a download, by
+ * walking its local headers. Nothing is written to disk except for large
+ * embedded archives, which are read into the SpillArea and scanned like the
+ * MappedArchiveReader does. The sizes and crcs of entries with a data
+ * descriptor are taken from the descriptor after the data has been read and
+ * checked against the computed crc.
+ * <p>
+ * The stream cannot be read again, so all entries are digested if the
+ * content is compared.
+ *
+ * @author Hendrik Brummermann
+ */
+public class StreamArchiveReader implements ArchiveReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final MappedArchiveReader embeddedArchiveReader = new MappedArchiveReader();
+
+	public EntryIndex read(File file, ScanContext context) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			return read(is, context);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * reads the entries of an archive from a stream. The stream is read to the
+	 * end of the archive, but not closed.
+	 *
+	 * @param is InputStream of the archive
+	 * @param context decides which entries to ignore and which to scan recursively
+	 * @return index of all entries which are not ignored
+	 * @throws IOException in case of an input/output error
+	 */
+	public EntryIndex read(InputStream is, ScanContext context) throws IOException {
+		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+		EntryIndex index = new EntryIndex();
+		MessageDigest digest = context.isDigesting() ? ScanContext.createDigest() : null;
+		byte[] header = new byte[ScanContext.SIGNATURE_LENGTH];
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		List embeddedScans = new ArrayList();
+		List forkedScans = new ArrayList();
+		List positions = new ArrayList();
+		try {
+			ZipEntry entry = zis.getNextEntry();
+			while (entry != null) {
+				String name = entry.getName();
+				if (context.isFiltering() && context.ignore("", name)) {
+					logger.log(Level.FINE, "ignoring file: " + name);
+				} else if (entry.isDirectory()) {
+					zis.closeEntry();
+					add(index, entry, context);
+				} else {
+					// the first bytes are put back, after they have been checked for a zip signature
+					PushbackInputStream data = new PushbackInputStream(zis, header.length);
+					int count = readFully(data, header);
+					data.unread(header, 0, count);
+					boolean archive = context.isArchive("", name)
+						|| (context.isDetectingArchivesByContent() && context.isScanningEmbeddedArchives("") && ScanContext.hasZipSignature(header, count));
+					if (archive) {
+						ByteBuffer archiveData = context.getSpillArea().read(data, entry.getSize());
+						int i = add(index, entry, context);
+						if (i < 0) {
+							context.getSpillArea().release(archiveData);
+						} else {
+							scanEmbeddedArchive(index.getName(i) + "!", archiveData, index, embeddedScans, forkedScans, positions, context);
+						}
+					} else if (digest != null) {
+						byte[] entryDigest = ScanContext.digest(data, digest, buffer);
+						int i = add(index, entry, context);
+						if (i >= 0) {
+							index.setDigest(i, entryDigest);
+						}
+					} else {
+						zis.closeEntry();
+						add(index, entry, context);
+					}
+				}
+				entry = zis.getNextEntry();
+			}
+
+			// embedded archives are merged at the position of their entries, so the
+			// index is the same as the one built by a serial scan
+			for (int k = 0; k < forkedScans.size(); k++) {
+				index.addAll((EntryIndex) ScanContext.join((FutureTask) forkedScans.get(k)), ((Integer) positions.get(k)).intValue());
+			}
+		} finally {
+			// scans, which have not started, release the data of their archive here
+			for (int k = 0; k < forkedScans.size(); k++) {
+				if (((FutureTask) forkedScans.get(k)).cancel(false)) {
+					((EmbeddedArchiveScan) embeddedScans.get(k)).release();
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * scans an embedded archive, which has been read into the SpillArea, or
+	 * forks its scan
+	 */
+	private void scanEmbeddedArchive(String prefix, ByteBuffer archive, EntryIndex index, List embeddedScans, List forkedScans, List positions, ScanContext context) throws IOException {
+		EmbeddedArchiveScan scan = new EmbeddedArchiveScan(prefix, archive, context);
+		if (context.isParallel()) {
+			embeddedScans.add(scan);
+			forkedScans.add(context.fork(scan));
+			positions.add(Integer.valueOf(index.size()));
+		} else {
+			scan.scan(index);
+		}
+	}
+
+	/**
+	 * adds an entry, whose data has been read completely, so its size and crc are known
+	 */
+	private int add(EntryIndex index, ZipEntry entry, ScanContext context) {
+		return index.add("", entry.getName(), context.getNumberOfPrefixesToSkip(), entry.getSize(), entry.getCompressedSize(), entry.getCrc(), entry.getTime());
+	}
+
+	/**
+	 * reads until the buffer is full or the end of the entry is reached
+	 *
+	 * @return number of bytes read
+	 */
+	private static int readFully(InputStream is, byte[] buffer) throws IOException {
+		int count = 0;
+		while (count < buffer.length) {
+			int n = is.read(buffer, count, buffer.length - count);
+			if (n < 0) {
+				break;
+			}
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * scans an embedded archive, which has been read into the SpillArea
+	 */
+	private class EmbeddedArchiveScan implements Callable {
+		private final String prefix;
+
+		private final ByteBuffer archive;
+
+		private final ScanContext context;
+
+		EmbeddedArchiveScan(String prefix, ByteBuffer archive, ScanContext context) {
+			this.prefix = prefix;
+			this.archive = archive;
+			this.context = context;
+		}
+
+		/**
+		 * adds the entries of the embedded archive to the index and releases its data
+		 *
+		 * @param index EntryIndex
+		 * @throws IOException in case of an input/output error
+		 */
+		void scan(EntryIndex index) throws IOException {
+			try {
+				embeddedArchiveReader.scanEmbeddedArchive(prefix, archive, index, context);
+			} finally {
+				release();
+			}
+		}
+
+		void release() {
+			context.getSpillArea().release(archive);
+		}
+
+		public Object call() throws IOException {
+			EntryIndex index = new EntryIndex();
+			scan(index);
+			return index;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads archives using java.util.zip.ZipFile. Embedded archives are read
+ * once into the SpillArea and scanned through their central directory like
+ * the MappedArchiveReader does, so archives embedded in them are not
+ * uncompressed through stacked streams.
+ *
+ * @author Sean C. Sullivan, Hendrik Brummermann
+ */
+public class ZipFileArchiveReader implements ArchiveReader {
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final MappedArchiveReader embeddedArchiveReader = new MappedArchiveReader();
+
+	public EntryIndex read(File file, ScanContext context) throws IOException {
+		return read(new ZipFile(file), context);
+	}
+
+	/**
+	 * reads the entries of an open ZipFile and closes it afterwards
+	 *
+	 * @param zipFile archive to read
+	 * @param context decides which entries to ignore and which to scan recursively
+	 * @return index of all entries which are not ignored
+	 * @throws IOException in case of an input/output error
+	 */
+	public EntryIndex read(ZipFile zipFile, ScanContext context) throws IOException {
+		EntryIndex index = new EntryIndex();
+		List embeddedScans = new ArrayList();
+		List positions = new ArrayList();
+		try {
+			Enumeration entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = (ZipEntry) entries.nextElement();
+				if (context.isParallel() && !entry.isDirectory() && context.isArchive("", entry.getName())) {
+					embeddedScans.add(context.fork(new EmbeddedArchiveScan(zipFile, entry, context)));
+					positions.add(Integer.valueOf(index.size()));
+				} else {
+					scanEntry(zipFile, entry, index, context);
+				}
+			}
+
+			// embedded archives are merged at the position of their entries, so the
+			// index is the same as the one built by a serial scan
+			for (int k = 0; k < embeddedScans.size(); k++) {
+				index.addAll((EntryIndex) ScanContext.join((FutureTask) embeddedScans.get(k)), ((Integer) positions.get(k)).intValue());
+			}
+		} finally {
+			Iterator iter = embeddedScans.iterator();
+			while (iter.hasNext()) {
+				((FutureTask) iter.next()).cancel(false);
+			}
+			zipFile.close();
+		}
+		return index;
+	}
+
+	/**
+	 * adds an entry of the ZipFile to the index. The data of the entry is only read
+	 * if it is an embedded archive, all other entries are processed based on the
+	 * central directory alone.
+	 *
+	 * @param zipFile ZipFile
+	 * @param entry entry to process
+	 * @param index index to add the entries to
+	 * @param context ScanContext
+	 * @throws IOException in case of an input/output error
+	 */
+	private void scanEntry(ZipFile zipFile, ZipEntry entry, EntryIndex index, ScanContext context) throws IOException {
+		if (context.isFiltering() && context.ignore("", entry.getName())) {
+			logger.log(Level.FINE, "ignoring file: " + entry.getName());
+			return;
+		}
+
+		int i = index.add("", entry.getName(), context.getNumberOfPrefixesToSkip(), entry.getSize(), entry.getCompressedSize(), entry.getCrc(), entry.getTime());
+		if ((i < 0) || entry.isDirectory()) {
+			return;
+		}
+		if (!context.isArchive("", entry.getName()) && !(context.isDetectingArchivesByContent() && context.isScanningEmbeddedArchives("") && hasZipSignature(zipFile, entry))) {
+			return;
+		}
+
+		SpillArea spillArea = context.getSpillArea();
+		ByteBuffer archive;
+		InputStream is = zipFile.getInputStream(entry);
+		try {
+			archive = spillArea.read(is, entry.getSize());
+		} finally {
+			is.close();
+		}
+		try {
+			embeddedArchiveReader.scanEmbeddedArchive(index.getName(i) + "!", archive, index, context);
+		} finally {
+			spillArea.release(archive);
+		}
+	}
+
+	private static boolean hasZipSignature(ZipFile zipFile, ZipEntry entry) throws IOException {
+		InputStream is = zipFile.getInputStream(entry);
+		try {
+			return ScanContext.hasZipSignature(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * scans an archive embedded in a ZipFile into a separate index
+	 */
+	private class EmbeddedArchiveScan implements Callable {
+		private final ZipFile zipFile;
+
+		private final ZipEntry entry;
+
+		private final ScanContext context;
+
+		EmbeddedArchiveScan(ZipFile zipFile, ZipEntry entry, ScanContext context) {
+			this.zipFile = zipFile;
+			this.entry = entry;
+			this.context = context;
+		}
+
+		public Object call() throws IOException {
+			EntryIndex index = new EntryIndex();
+			scanEntry(zipFile, entry, index, context);
+			return index;
+		}
+	}
+}
@@ -8,7 +8,9 @@ package zipdiff.output;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
@@ -16,7 +18,7 @@ import zipdiff.Differences;
  *
  * @author Sean C. Sullivan, Hendrik Brummermann
  */
-public abstract class AbstractBuilder implements Builder {
+public abstract class AbstractBuilder implements StreamingBuilder {
 
 	/** number of directory prefixes to skip in the output file */
 	protected int numberOfOutputPrefixesToSkip;
@@ -31,14 +33,9 @@ public abstract class AbstractBuilder implements Builder {
 	 */
 	public void build(String filename, int numberOfPrefixesToSkip, Differences d) throws IOException {
 		this.numberOfOutputPrefixesToSkip = numberOfPrefixesToSkip;
-		OutputStream os = null;
-		if ((filename == null) || filename.equals("-")) {
-			os = System.out;
-		} else {
-			os = new FileOutputStream(filename);
-		}
+		OutputStream os = openOutputStream(filename);
 		build(os, d);
-		os.flush();
+		close(os);
 	}
 
 	/**
@@ -48,4 +45,83 @@ public abstract class AbstractBuilder implements Builder {
 	 * @param d differences
 	 */
 	public abstract void build(OutputStream out, Differences d);
+
+	public DifferenceListener createListener(String filename, int numberOfPrefixesToSkip) throws IOException {
+		this.numberOfOutputPrefixesToSkip = numberOfPrefixesToSkip;
+		return createListener(openOutputStream(filename));
+	}
+
+	/**
+	 * creates a listener which writes to an OutputStream. This implementation
+	 * collects all differences and calls build() on end(), subclasses may
+	 * write the differences directly. The listener has to close the stream
+	 * on end().
+	 *
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	protected DifferenceListener createListener(OutputStream out) {
+		return new CollectingListener(out);
+	}
+
+	/**
+	 * opens the output file
+	 *
+	 * @param filename name of output file, "-" or null for stdout
+	 * @return OutputStream
+	 * @throws IOException in case of an input/output error
+	 */
+	protected OutputStream openOutputStream(String filename) throws IOException {
+		if ((filename == null) || filename.equals("-")) {
+			return System.out;
+		}
+		return new FileOutputStream(filename);
+	}
+
+	/**
+	 * flushes an OutputStream opened by openOutputStream() and closes it, unless it is stdout
+	 *
+	 * @param out OutputStream
+	 * @throws IOException in case of an input/output error
+	 */
+	protected void close(OutputStream out) throws IOException {
+		out.flush();
+		if (out != System.out) {
+			out.close();
+		}
+	}
+
+	/**
+	 * collects the differences and builds the output at the end
+	 */
+	private class CollectingListener implements DifferenceListener {
+		private final Differences differences = new Differences();
+
+		private final OutputStream out;
+
+		CollectingListener(OutputStream out) {
+			this.out = out;
+		}
+
+		public void start(String filename1, String filename2) {
+			differences.start(filename1, filename2);
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) {
+			differences.fileAdded(fqn, ze);
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			differences.fileRemoved(fqn, ze);
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+			differences.fileChanged(fqn, z1, z2);
+		}
+
+		public void end() throws IOException {
+			build(out, differences);
+			close(out);
+		}
+	}
 }
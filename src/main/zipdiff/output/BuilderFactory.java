@@ -36,10 +36,24 @@ public class BuilderFactory {
 		} else if (filename.endsWith(".zip")) {
 			builder = new ZipBuilder();
 
+		} else if (filename.endsWith(".zdelta")) {
+			builder = new DeltaBuilder();
+
 		} else {
 			System.err.println("Unknown extension, using text output");
 			builder = new TextBuilder();
 		}
 		return builder;
 	}
+
+	/**
+	 * checks whether the builder for an output file reads the compared files
+	 * again, so they have to be zip files, which can be opened by name
+	 *
+	 * @param filename name of output file
+	 * @return true for .zip and .zdelta output
+	 */
+	public static boolean isReadingInputFiles(String filename) {
+		return (filename != null) && (filename.endsWith(".zip") || filename.endsWith(".zdelta"));
+	}
 }
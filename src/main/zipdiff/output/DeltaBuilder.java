@@ -0,0 +1,388 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import zipdiff.DifferenceListener;
+import zipdiff.Differences;
+import zipdiff.util.BinaryDelta;
+
+/**
+ * creates a .zdelta file, which turns the first zip file into the second one.
+ * Modified files are written as binary deltas against their version in the
+ * first zip file, added files completely. The file is applied by the
+ * DeltaApplier.
+ * <p>
+ * A .zdelta file is deflated as a whole. It starts with MAGIC and VERSION,
+ * followed by the number and the names of the entries of the first zip file,
+ * which are not part of the result, and the number of records. Then there is a record for each added or
+ * modified file, starting with its type: ADDED with name, time, size, data and
+ * crc; or CHANGED with name, the name in the first zip file, time, crc of the
+ * source, crc of the result, length of the delta and the delta. The last record
+ * is END. Files in embedded archives are part of the delta of their archive.
+ * If only files in an embedded archive are reported, e.g. because the content
+ * is compared, the archive is written as modified file. Names are written
+ * without skipping directory prefixes, because the unchanged entries of the
+ * first zip file keep their names.
+ *
+ * @author Hendrik Brummermann
+ */
+public class DeltaBuilder extends AbstractBuilder {
+
+	/** "ZDLT" */
+	public static final int MAGIC = 0x5A444C54;
+
+	public static final int VERSION = 1;
+
+	public static final int END = 0;
+
+	public static final int ADDED = 1;
+
+	public static final int CHANGED = 2;
+
+	/** modified files, which are larger, are written completely instead of a delta */
+	private static final long MAX_DELTA_SIZE = 256 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private String filename1;
+
+	private String filename2;
+
+	/** names of the added files in the second zip file */
+	private final List added = new ArrayList();
+
+	/** names of the removed files in the first zip file */
+	private final List removed = new ArrayList();
+
+	/** pairs of names of the modified files in the first and second zip file */
+	private final List changed = new ArrayList();
+
+	/** keys of the reported files, which are not in embedded archives */
+	private final Set keys = new HashSet();
+
+	/** keys of the outermost embedded archives, which contain reported files */
+	private final Set archiveKeys = new TreeSet();
+
+	/**
+	 * builds the output
+	 *
+	 * @param out OutputStream to write to
+	 * @param d differences
+	 */
+	@Override
+	public void build(OutputStream out, Differences d) {
+		filename1 = d.getFilename1();
+		filename2 = d.getFilename2();
+		try {
+			Iterator itr = d.getAdded().entrySet().iterator();
+			while (itr.hasNext()) {
+				Map.Entry mapEntry = (Map.Entry) itr.next();
+				collectAdded(mapEntry.getKey().toString(), (ZipEntry) mapEntry.getValue());
+			}
+			itr = d.getRemoved().entrySet().iterator();
+			while (itr.hasNext()) {
+				Map.Entry mapEntry = (Map.Entry) itr.next();
+				collectRemoved(mapEntry.getKey().toString(), (ZipEntry) mapEntry.getValue());
+			}
+			itr = d.getChanged().entrySet().iterator();
+			while (itr.hasNext()) {
+				Map.Entry mapEntry = (Map.Entry) itr.next();
+				ZipEntry[] entries = (ZipEntry[]) mapEntry.getValue();
+				collectChanged(mapEntry.getKey().toString(), entries[0], entries[1]);
+			}
+			writeDelta(out);
+		} catch (IOException e) {
+			System.err.println("Error while writing delta file: " + e);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * creates a listener which only remembers the names of the files and
+	 * writes the delta on end(), so the differences do not need to be collected.
+	 *
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(OutputStream out) {
+		return new DeltaListener(out);
+	}
+
+	private void collectAdded(String key, ZipEntry zipEntry) {
+		if (collectKey(key)) {
+			added.add(zipEntry.getName());
+		}
+	}
+
+	private void collectRemoved(String key, ZipEntry zipEntry) {
+		if (collectKey(key)) {
+			removed.add(zipEntry.getName());
+		}
+	}
+
+	private void collectChanged(String key, ZipEntry zipEntry1, ZipEntry zipEntry2) {
+		if (collectKey(key)) {
+			changed.add(new String[] {zipEntry1.getName(), zipEntry2.getName()});
+		}
+	}
+
+	/**
+	 * remembers a key
+	 *
+	 * @return true, if the file is not in an embedded archive
+	 */
+	private boolean collectKey(String key) {
+		int pos = key.indexOf("!");
+		if (pos > -1) {
+			archiveKeys.add(key.substring(0, pos));
+			return false;
+		}
+		keys.add(key);
+		return true;
+	}
+
+	/**
+	 * adds the embedded archives, which contain reported files but were not
+	 * reported themselves, to the modified files
+	 *
+	 * @throws ZipException if an archive is not found in both zip files
+	 */
+	private void collectChangedArchives(ZipFile zipFile1, ZipFile zipFile2) throws ZipException {
+		archiveKeys.removeAll(keys);
+		if (archiveKeys.isEmpty()) {
+			return;
+		}
+		Map names1 = findNames(zipFile1, archiveKeys);
+		Map names2 = findNames(zipFile2, archiveKeys);
+		Iterator itr = archiveKeys.iterator();
+		while (itr.hasNext()) {
+			String key = (String) itr.next();
+			String name1 = (String) names1.get(key);
+			String name2 = (String) names2.get(key);
+			if ((name1 == null) || (name2 == null)) {
+				throw new ZipException("embedded archive not found: " + key);
+			}
+			changed.add(new String[] {name1, name2});
+			keys.add(key);
+		}
+		archiveKeys.clear();
+	}
+
+	/**
+	 * finds the names of entries, whose keys are the names without directory prefixes
+	 *
+	 * @param zipFile zip file
+	 * @param keys keys to look for
+	 * @return map of keys to the names of the first matching entries
+	 */
+	private static Map findNames(ZipFile zipFile, Set keys) {
+		Map names = new HashMap();
+		Enumeration entries = zipFile.entries();
+		while (entries.hasMoreElements()) {
+			String name = ((ZipEntry) entries.nextElement()).getName();
+			String key = name;
+			while ((key != null) && !keys.contains(key)) {
+				int pos = key.indexOf('/');
+				key = ((pos < 0) || (pos == key.length() - 1)) ? null : key.substring(pos + 1);
+			}
+			if ((key != null) && !names.containsKey(key)) {
+				names.put(key, name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * writes the delta
+	 *
+	 * @param out OutputStream to write to
+	 * @throws IOException in case of an input/output error
+	 */
+	private void writeDelta(OutputStream out) throws IOException {
+		ZipFile zipFile1 = new ZipFile(filename1);
+		ZipFile zipFile2 = null;
+		Deflater deflater = new Deflater();
+		try {
+			zipFile2 = new ZipFile(filename2);
+			collectChangedArchives(zipFile1, zipFile2);
+			DeflaterOutputStream dos = new DeflaterOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), deflater, BUFFER_SIZE);
+			DataOutputStream os = new DataOutputStream(dos);
+			os.writeInt(MAGIC);
+			os.writeByte(VERSION);
+
+			// the first zip file is copied without these entries, before the records are applied
+			os.writeInt(removed.size() + changed.size());
+			for (int i = 0; i < removed.size(); i++) {
+				os.writeUTF((String) removed.get(i));
+			}
+			for (int i = 0; i < changed.size(); i++) {
+				os.writeUTF(((String[]) changed.get(i))[0]);
+			}
+			os.writeInt(changed.size() + added.size());
+
+			for (int i = 0; i < changed.size(); i++) {
+				String[] names = (String[]) changed.get(i);
+				writeChanged(os, getEntry(zipFile1, names[0]), zipFile1, getEntry(zipFile2, names[1]), zipFile2);
+			}
+			for (int i = 0; i < added.size(); i++) {
+				writeAdded(os, getEntry(zipFile2, (String) added.get(i)), zipFile2);
+			}
+			os.writeByte(END);
+			dos.finish();
+			dos.flush();
+		} finally {
+			deflater.end();
+			zipFile1.close();
+			if (zipFile2 != null) {
+				zipFile2.close();
+			}
+		}
+	}
+
+	/**
+	 * writes a modified file as delta, unless the delta is not smaller than the file
+	 */
+	private void writeChanged(DataOutputStream os, ZipEntry zipEntry1, ZipFile zipFile1, ZipEntry zipEntry2, ZipFile zipFile2) throws IOException {
+		if ((zipEntry1.getSize() > MAX_DELTA_SIZE) || (zipEntry2.getSize() > MAX_DELTA_SIZE)) {
+			writeAdded(os, zipEntry2, zipFile2);
+			return;
+		}
+		byte[] source = read(zipFile1, zipEntry1);
+		byte[] target = read(zipFile2, zipEntry2);
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		BinaryDelta.encode(source, target, delta);
+		if (delta.size() >= target.length) {
+			writeAdded(os, zipEntry2, zipFile2);
+			return;
+		}
+
+		os.writeByte(CHANGED);
+		os.writeUTF(zipEntry2.getName());
+		os.writeUTF(zipEntry1.getName());
+		os.writeLong(zipEntry2.getTime());
+		os.writeInt((int) crc(source));
+		os.writeInt((int) crc(target));
+		os.writeInt(delta.size());
+		delta.writeTo(os);
+	}
+
+	/**
+	 * writes a file completely
+	 */
+	private void writeAdded(DataOutputStream os, ZipEntry zipEntry, ZipFile zipFile) throws IOException {
+		os.writeByte(ADDED);
+		os.writeUTF(zipEntry.getName());
+		os.writeLong(zipEntry.getTime());
+		os.writeLong(zipEntry.getSize());
+		CRC32 crc = new CRC32();
+		InputStream is = zipFile.getInputStream(zipEntry);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long count = 0;
+			int n = is.read(buffer);
+			while (n > -1) {
+				os.write(buffer, 0, n);
+				crc.update(buffer, 0, n);
+				count += n;
+				n = is.read(buffer);
+			}
+			if (count != zipEntry.getSize()) {
+				throw new IOException("invalid entry size: " + zipEntry.getName());
+			}
+		} finally {
+			is.close();
+		}
+		os.writeInt((int) crc.getValue());
+	}
+
+	private static ZipEntry getEntry(ZipFile zipFile, String name) throws ZipException {
+		ZipEntry zipEntry = zipFile.getEntry(name);
+		if (zipEntry == null) {
+			throw new ZipException("entry not found: " + name + " in " + zipFile.getName());
+		}
+		return zipEntry;
+	}
+
+	private static byte[] read(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
+		byte[] data = new byte[(int) zipEntry.getSize()];
+		InputStream is = zipFile.getInputStream(zipEntry);
+		try {
+			int count = 0;
+			while (count < data.length) {
+				int n = is.read(data, count, data.length - count);
+				if (n < 0) {
+					throw new IOException("invalid entry size: " + zipEntry.getName());
+				}
+				count += n;
+			}
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+
+	private static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/**
+	 * collects the names of the files as they are reported
+	 */
+	private class DeltaListener implements DifferenceListener {
+		private final OutputStream out;
+
+		DeltaListener(OutputStream out) {
+			this.out = out;
+		}
+
+		public void start(String filename1, String filename2) {
+			DeltaBuilder.this.filename1 = filename1;
+			DeltaBuilder.this.filename2 = filename2;
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) {
+			collectAdded(fqn, ze);
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			collectRemoved(fqn, ze);
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+			collectChanged(fqn, z1, z2);
+		}
+
+		public void end() throws IOException {
+			writeDelta(out);
+			close(out);
+		}
+	}
+}
@@ -5,15 +5,21 @@
  */
 package zipdiff.output;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
- * Generates html output for a Differences instance
+ * Generates html output for a Differences instance. The number of differences
+ * precedes each section, so the differences are collected before anything is
+ * written.
  *
  * @author Sean C. Sullivan
  */
@@ -28,7 +34,32 @@ public class HtmlBuilder extends AbstractBuilder {
 	@Override
 	public void build(OutputStream out, Differences d) {
 		PrintWriter pw = new PrintWriter(out);
+		write(pw, d.getFilename1(), d.getFilename2(), d.getAdded().keySet(), d.getRemoved().keySet(), d.getChanged().keySet());
+	}
 
+	/**
+	 * creates a listener which writes the same output as build(). Only the
+	 * names of the differences are kept until end(), instead of their entries.
+	 *
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(OutputStream out) {
+		return new HtmlListener(out);
+	}
+
+	/**
+	 * writes the html page
+	 *
+	 * @param pw    write to write to
+	 * @param filename1 name of the first file or null
+	 * @param filename2 name of the second file or null
+	 * @param added set of added files
+	 * @param removed set of removed files
+	 * @param changed set of modified files
+	 */
+	private void write(PrintWriter pw, String filename1, String filename2, Set added, Set removed, Set changed) {
 		pw.println("<html>");
 		pw.println("<META http-equiv=\"Content-Type\" content=\"text/html\">");
 		pw.println("<head>");
@@ -39,7 +70,6 @@ public class HtmlBuilder extends AbstractBuilder {
 
 		pw.println(getStyleTag());
 		pw.print("<p>First file: ");
-		String filename1 = d.getFilename1();
 
 		if (filename1 == null) {
 			filename1 = "filename1.zip";
@@ -49,17 +79,15 @@ public class HtmlBuilder extends AbstractBuilder {
 
 		pw.print("Second file: ");
 
-		String filename2 = d.getFilename2();
-
 		if (filename2 == null) {
 			filename2 = "filename2.zip";
 		}
 		pw.print(filename2);
 		pw.println("</p>");
 
-		writeAdded(pw, d.getAdded().keySet());
-		writeRemoved(pw, d.getRemoved().keySet());
-		writeChanged(pw, d.getChanged().keySet());
+		writeAdded(pw, added);
+		writeRemoved(pw, removed);
+		writeChanged(pw, changed);
 		pw.println("<hr>");
 		pw.println("<p>");
 		pw.println("Generated at " + new java.util.Date());
@@ -166,4 +194,46 @@ public class HtmlBuilder extends AbstractBuilder {
 		return sb.toString();
 	}
 
+	/**
+	 * collects the names of the differences and writes the page at the end
+	 */
+	private class HtmlListener implements DifferenceListener {
+		private final OutputStream out;
+
+		private String filename1;
+
+		private String filename2;
+
+		private final Set added = new TreeSet();
+
+		private final Set removed = new TreeSet();
+
+		private final Set changed = new TreeSet();
+
+		HtmlListener(OutputStream out) {
+			this.out = out;
+		}
+
+		public void start(String filename1, String filename2) {
+			this.filename1 = filename1;
+			this.filename2 = filename2;
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) {
+			added.add(fqn);
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			removed.add(fqn);
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+			changed.add(fqn);
+		}
+
+		public void end() throws IOException {
+			write(new PrintWriter(out), filename1, filename2, added, removed, changed);
+			close(out);
+		}
+	}
 }
@@ -0,0 +1,29 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.output;
+
+import java.io.IOException;
+
+import zipdiff.DifferenceListener;
+
+/**
+ * A Builder which can write the differences while they are calculated,
+ * instead of waiting for the complete Differences.
+ *
+ * @author Hendrik Brummermann
+ */
+public interface StreamingBuilder extends Builder {
+
+	/**
+	 * creates a listener which writes the reported differences to the output file
+	 *
+	 * @param filename name of output file
+	 * @param numberOfOutputPrefixesToSkip number of directory prefixes to skip
+	 * @return DifferenceListener, which completes the output file on end()
+	 * @throws IOException in case of an input/output error
+	 */
+	public DifferenceListener createListener(String filename, int numberOfOutputPrefixesToSkip) throws IOException;
+}
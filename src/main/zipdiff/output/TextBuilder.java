@@ -5,13 +5,19 @@
  */
 package zipdiff.output;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
- * creates a list of differences.
+ * creates a list of differences. The number of differences precedes each
+ * section, so the differences are collected before anything is written.
  *
  * @author Sean C. Sullivan
  */
@@ -29,4 +35,72 @@ public class TextBuilder extends AbstractBuilder {
 		pw.println(d.toString());
 		pw.flush();
 	}
+
+	/**
+	 * creates a listener which writes the same output as build(). Only the
+	 * lines of the differences are kept until end(), instead of their entries.
+	 *
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(OutputStream out) {
+		return new TextListener(out);
+	}
+
+	/**
+	 * collects the lines of the differences and writes them with their counts at the end
+	 */
+	private class TextListener implements DifferenceListener {
+		private final OutputStream out;
+
+		private String filename2;
+
+		/** differences are reported in the order of their names, so the lines are already sorted */
+		private final List added = new ArrayList();
+
+		private final List removed = new ArrayList();
+
+		private final List changed = new ArrayList();
+
+		TextListener(OutputStream out) {
+			this.out = out;
+		}
+
+		public void start(String filename1, String filename2) {
+			this.filename2 = filename2;
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) {
+			added.add("\t[added] " + fqn + "\n");
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			removed.add("\t[removed] " + fqn + "\n");
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+			changed.add("\t[changed] " + fqn + "  ( size " + z1.getSize() + " : " + z2.getSize() + " )\n");
+		}
+
+		public void end() throws IOException {
+			// the same layout as Differences.toString()
+			PrintWriter pw = new PrintWriter(out);
+			pw.print(((added.size() == 1) ? "1 file was" : added.size() + " files were") + " added to " + filename2 + "\n");
+			writeLines(pw, added);
+			pw.print(((removed.size() == 1) ? "1 file was" : removed.size() + " files were") + " removed from " + filename2 + "\n");
+			writeLines(pw, removed);
+			pw.print(((changed.size() == 1) ? "1 file changed" : changed.size() + " files changed") + "\n");
+			writeLines(pw, changed);
+			pw.println("Total differences: " + (added.size() + removed.size() + changed.size()));
+			pw.flush();
+			close(out);
+		}
+
+		private void writeLines(PrintWriter pw, List lines) {
+			for (int i = 0; i < lines.size(); i++) {
+				pw.print((String) lines.get(i));
+			}
+		}
+	}
 }
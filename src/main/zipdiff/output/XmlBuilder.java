@@ -5,11 +5,15 @@
  */
 package zipdiff.output;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
 
 /**
@@ -31,19 +35,46 @@ public class XmlBuilder extends AbstractBuilder {
 	public void build(OutputStream out, Differences d) {
 		PrintWriter pw = new PrintWriter(out);
 
+		writeHeader(pw, d.getFilename1(), d.getFilename2());
+		writeAdded(pw, d.getAdded().keySet());
+		writeRemoved(pw, d.getRemoved().keySet());
+		writeChanged(pw, d.getChanged().keySet());
+		writeFooter(pw);
+
+		pw.flush();
+	}
+
+	/**
+	 * creates a listener which writes the same output as build(). Added
+	 * elements are written as soon as they are reported, the names of removed
+	 * and changed files are kept until end(), because their elements follow
+	 * all added elements.
+	 *
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(OutputStream out) {
+		return new XmlListener(out);
+	}
+
+	/**
+	 * writes the xml declaration and the opening tags
+	 *
+	 * @param pw    write to write to
+	 * @param filename1 name of the first file or null
+	 * @param filename2 name of the second file or null
+	 */
+	protected void writeHeader(PrintWriter pw, String filename1, String filename2) {
 		pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
 		pw.print("<zipdiff filename1=\"");
 
-		String filename1 = d.getFilename1();
-
 		if (filename1 == null) {
 			filename1 = "filename1.zip";
 		}
 		pw.print(filename1);
 		pw.print("\" filename2=\"");
 
-		String filename2 = d.getFilename2();
-
 		if (filename2 == null) {
 			filename2 = "filename2.zip";
 		}
@@ -51,13 +82,29 @@ public class XmlBuilder extends AbstractBuilder {
 		pw.println("\">");
 
 		pw.println("<differences>");
-		writeAdded(pw, d.getAdded().keySet());
-		writeRemoved(pw, d.getRemoved().keySet());
-		writeChanged(pw, d.getChanged().keySet());
+	}
+
+	/**
+	 * writes the closing tags
+	 *
+	 * @param pw    write to write to
+	 */
+	protected void writeFooter(PrintWriter pw) {
 		pw.println("</differences>");
 		pw.println("</zipdiff>");
+	}
 
-		pw.flush();
+	/**
+	 * writes one difference
+	 *
+	 * @param pw    write to write to
+	 * @param tag   name of the element
+	 * @param key   name of the file
+	 */
+	protected void writeElement(PrintWriter pw, String tag, String key) {
+		pw.print("<" + tag + ">");
+		pw.print(key);
+		pw.println("</" + tag + ">");
 	}
 
 	/**
@@ -70,9 +117,7 @@ public class XmlBuilder extends AbstractBuilder {
 		Iterator iter = added.iterator();
 		while (iter.hasNext()) {
 			String key = (String) iter.next();
-			pw.print("<added>");
-			pw.print(key);
-			pw.println("</added>");
+			writeElement(pw, "added", key);
 		}
 
 	}
@@ -87,9 +132,7 @@ public class XmlBuilder extends AbstractBuilder {
 		Iterator iter = removed.iterator();
 		while (iter.hasNext()) {
 			String key = (String) iter.next();
-			pw.print("<removed>");
-			pw.print(key);
-			pw.println("</removed>");
+			writeElement(pw, "removed", key);
 		}
 	}
 
@@ -103,10 +146,50 @@ public class XmlBuilder extends AbstractBuilder {
 		Iterator iter = changed.iterator();
 		while (iter.hasNext()) {
 			String key = (String) iter.next();
-			pw.print("<changed>");
-			pw.print(key);
-			pw.println("</changed>");
+			writeElement(pw, "changed", key);
 		}
 	}
 
+	/**
+	 * writes the added files as they are reported and the other differences at the end
+	 */
+	private class XmlListener implements DifferenceListener {
+		private final OutputStream out;
+
+		private final PrintWriter pw;
+
+		/** differences are reported in the order of their names, so the added files are already sorted */
+		private final Set removed = new TreeSet();
+
+		private final Set changed = new TreeSet();
+
+		XmlListener(OutputStream out) {
+			this.out = out;
+			this.pw = new PrintWriter(out);
+		}
+
+		public void start(String filename1, String filename2) {
+			writeHeader(pw, filename1, filename2);
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) {
+			writeElement(pw, "added", fqn);
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			removed.add(fqn);
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+			changed.add(fqn);
+		}
+
+		public void end() throws IOException {
+			writeRemoved(pw, removed);
+			writeChanged(pw, changed);
+			writeFooter(pw);
+			pw.flush();
+			close(out);
+		}
+	}
 }
@@ -5,30 +5,65 @@
  */
 package zipdiff.output;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
+import zipdiff.DifferenceListener;
 import zipdiff.Differences;
+import zipdiff.archive.CentralDirectory;
+import zipdiff.archive.RawEntryCopier;
+import zipdiff.archive.SpillArea;
 import zipdiff.util.StringUtil;
 
 /**
- * creates a zip file with the new versions of files that have been added or modified
+ * creates a zip file with the new versions of files that have been added or modified.
+ * The compressed data is copied from the second zip file as it is, unless an
+ * entry is too large for a zip file without zip64 records.
+ * <p>
+ * An embedded archive with changes is not copied completely, instead an
+ * archive of the same name is written, which contains only the added and
+ * modified entries of the embedded archive. Embedded archives inside it are
+ * treated the same way, so the output is an overlay of minimal patch archives.
  *
  * @author Hendrik Brummermann, HIS GmbH
  */
 public class ZipBuilder extends AbstractBuilder {
-	private Differences differences;
+	private String filename2;
 
 	private final Set filenames = new TreeSet();
 
+	/** keys of added and modified files in embedded archives */
+	private final Set nestedKeys = new TreeSet();
+
+	/** keys of all added files, their embedded archives are copied completely */
+	private final Set addedKeys = new HashSet();
+
+	/** names of the files in the second zip archive to their keys */
+	private final Map archiveKeys = new HashMap();
+
+	/** names of the embedded archives in the second zip archive to their patches */
+	private final Map patches = new TreeMap();
+
+	private final SpillArea spillArea = new SpillArea();
+
+	/** true, if an entry is too large to be copied without compressing it again */
+	private boolean recompressing = false;
+
 	/**
 	 * builds the output
 	 *
@@ -37,10 +72,10 @@ public class ZipBuilder extends AbstractBuilder {
 	 */
 	@Override
 	public void build(OutputStream out, Differences d) {
-		differences = d;
+		filename2 = d.getFilename2();
 		try {
-			collectAddedFiles();
-			collectModifiedFiles();
+			collectAddedFiles(d);
+			collectModifiedFiles(d);
 			copyEntries(out);
 		} catch (IOException e) {
 			System.err.println("Error while writing zip file: " + e);
@@ -48,32 +83,226 @@ public class ZipBuilder extends AbstractBuilder {
 		}
 	}
 
+	/**
+	 * creates a listener which only remembers the names of the files to copy and
+	 * copies them on end(), so the differences do not need to be collected.
+	 *
+	 * @param out OutputStream to write to
+	 * @return DifferenceListener
+	 */
+	@Override
+	protected DifferenceListener createListener(OutputStream out) {
+		return new ZipListener(out);
+	}
+
 	/**
 	 * collects all the files that have been added in the second zip archive
+	 *
+	 * @param differences Differences
 	 */
-	private void collectAddedFiles() {
+	private void collectAddedFiles(Differences differences) {
 		Set entrySet = differences.getAdded().entrySet();
 		Iterator itr = entrySet.iterator();
 		while (itr.hasNext()) {
 			Map.Entry mapEntry = (Map.Entry) itr.next();
-			if (mapEntry.getKey().toString().indexOf("!") < 0) {
-				filenames.add(((ZipEntry) mapEntry.getValue()).getName());
-			}
+			collectFile(mapEntry.getKey().toString(), (ZipEntry) mapEntry.getValue(), true);
 		}
 	}
 
 	/**
 	 * collects all the files that have been added modified in the second zip archive
+	 *
+	 * @param differences Differences
 	 */
-	private void collectModifiedFiles() {
+	private void collectModifiedFiles(Differences differences) {
 		Set entrySet = differences.getChanged().entrySet();
 		Iterator itr = entrySet.iterator();
 		while (itr.hasNext()) {
 			Map.Entry mapEntry = (Map.Entry) itr.next();
-			if (mapEntry.getKey().toString().indexOf("!") < 0) {
-				filenames.add(((ZipEntry[]) mapEntry.getValue())[1].getName());
+			collectFile(mapEntry.getKey().toString(), ((ZipEntry[]) mapEntry.getValue())[1], false);
+		}
+	}
+
+	/**
+	 * remembers a file of the second zip archive to be copied. Files in embedded
+	 * archives are remembered for the patch of their archive.
+	 *
+	 * @param key name of the difference
+	 * @param zipEntry entry of the second zip archive
+	 * @param added true, if the file has been added
+	 */
+	private void collectFile(String key, ZipEntry zipEntry, boolean added) {
+		if (added) {
+			addedKeys.add(key);
+		}
+		if (key.indexOf("!") < 0) {
+			filenames.add(zipEntry.getName());
+			archiveKeys.put(zipEntry.getName(), key);
+			if ((zipEntry.getSize() >= 0xFFFFFFFFL) || (zipEntry.getCompressedSize() >= 0xFFFFFFFFL)) {
+				recompressing = true;
+			}
+		} else {
+			nestedKeys.add(key);
+		}
+	}
+
+	/**
+	 * builds the patches of the embedded archives with changes. They replace the
+	 * complete embedded archives in the output.
+	 *
+	 * @param file second archive file
+	 * @throws IOException in case of an input/output error
+	 */
+	private void buildPatches(File file) throws IOException {
+		Map nested = groupByArchive(nestedKeys, "");
+		if (nested.isEmpty() || !file.isFile()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			CentralDirectory cd = CentralDirectory.open(raf.getChannel());
+			while (cd.next() && !nested.isEmpty()) {
+				String filename = cd.getName().toString();
+				String key = findKey(filename, nested);
+				if (key == null) {
+					continue;
+				}
+				NestedPatch patch = buildPatch(cd, key, (Set) nested.remove(key));
+				if (patch != null) {
+					patches.put(filename, patch);
+					filenames.remove(filename);
+				} else {
+					filenames.add(filename);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * finds the key of an embedded archive in the second zip archive
+	 *
+	 * @param filename name of the entry in the second zip archive
+	 * @param nested keys of embedded archives with changes
+	 * @return key or null
+	 */
+	private String findKey(String filename, Map nested) {
+		String key = (String) archiveKeys.get(filename);
+		if (key != null) {
+			return nested.containsKey(key) ? key : null;
+		}
+
+		// the archive itself was not reported, so its key is found by removing directory prefixes
+		key = filename;
+		while (!nested.containsKey(key)) {
+			int pos = key.indexOf('/');
+			if ((pos < 0) || (pos == key.length() - 1)) {
+				return null;
+			}
+			key = key.substring(pos + 1);
+		}
+		return key;
+	}
+
+	/**
+	 * groups keys of files in embedded archives by the name of the outermost archive
+	 *
+	 * @param keys keys, those without "!" are ignored
+	 * @param prefix key of the archive containing the embedded archives followed by "!", or empty
+	 * @return map of archive names to sets of the remaining keys inside them
+	 */
+	private Map groupByArchive(Set keys, String prefix) {
+		Map nested = new HashMap();
+		Iterator itr = keys.iterator();
+		while (itr.hasNext()) {
+			String key = (String) itr.next();
+			int pos = key.indexOf('!');
+			if (pos < 0) {
+				continue;
+			}
+			String archiveName = key.substring(0, pos);
+			if (addedKeys.contains(prefix + archiveName)) {
+				continue;
+			}
+			Set names = (Set) nested.get(archiveName);
+			if (names == null) {
+				names = new TreeSet();
+				nested.put(archiveName, names);
+			}
+			names.add(key.substring(pos + 1));
+		}
+		return nested;
+	}
+
+	/**
+	 * builds the patch of the current entry of a central directory
+	 *
+	 * @param cd central directory positioned at the embedded archive
+	 * @param key key of the embedded archive
+	 * @param names keys of the files to include relative to the embedded archive
+	 * @return patch or null, if the compression method of the archive is not supported
+	 * @throws IOException in case of an input/output error
+	 */
+	private NestedPatch buildPatch(CentralDirectory cd, String key, Set names) throws IOException {
+		ByteBuffer archive = spillArea.inflate(cd.getData(), cd.getMethod(), cd.getSize());
+		if (archive == null) {
+			return null;
+		}
+		try {
+			return new NestedPatch(buildPatch(archive, key + "!", names), cd.getDosTime(), cd.getTime());
+		} finally {
+			spillArea.release(archive);
+		}
+	}
+
+	/**
+	 * builds an archive with the files of an embedded archive, which have been
+	 * added or modified, and the patches of the embedded archives inside it
+	 *
+	 * @param archive uncompressed embedded archive
+	 * @param prefix key of the embedded archive followed by "!"
+	 * @param names keys of the files to include relative to the embedded archive
+	 * @return patch archive
+	 * @throws IOException in case of an input/output error
+	 */
+	private byte[] buildPatch(ByteBuffer archive, String prefix, Set names) throws IOException {
+		Map nested = groupByArchive(names, prefix);
+		Map entryNames = new HashMap();
+		Iterator itr = names.iterator();
+		while (itr.hasNext()) {
+			String name = (String) itr.next();
+			if ((name.indexOf('!') < 0) && !nested.containsKey(name)) {
+				entryNames.put(name, name);
 			}
 		}
+
+		Map nestedPatches = new TreeMap();
+		CentralDirectory cd = CentralDirectory.open(archive);
+		while (cd.next()) {
+			String name = cd.getName().toString();
+			Set remainders = (Set) nested.get(name);
+			if (remainders != null) {
+				NestedPatch patch = buildPatch(cd, prefix + name, remainders);
+				if (patch != null) {
+					nestedPatches.put(name, patch);
+				} else {
+					entryNames.put(name, name);
+				}
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RawEntryCopier copier = new RawEntryCopier(out);
+		copier.copy(archive, entryNames);
+		itr = nestedPatches.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry entry = (Map.Entry) itr.next();
+			NestedPatch patch = (NestedPatch) entry.getValue();
+			copier.add((String) entry.getKey(), patch.data, patch.dosTime);
+		}
+		copier.finish();
+		return out.toByteArray();
 	}
 
 	/**
@@ -83,8 +312,56 @@ public class ZipBuilder extends AbstractBuilder {
 	 * @throws IOException in case of an input/output error
 	 */
 	private void copyEntries(OutputStream out) throws IOException {
+		File file = new File(filename2);
+		buildPatches(file);
+		if (!recompressing && RawEntryCopier.isSupported(file, filenames.size() + patches.size())) {
+			copyRawEntries(file, out);
+		} else {
+			recompressEntries(out);
+		}
+	}
+
+	/**
+	 * copies the compressed data of the zip entries from the second archive file to the output file
+	 *
+	 * @param file second archive file
+	 * @param out output file
+	 * @throws IOException in case of an input/output error
+	 */
+	private void copyRawEntries(File file, OutputStream out) throws IOException {
+		Map entryNames = new HashMap();
+		Iterator itr = filenames.iterator();
+		while (itr.hasNext()) {
+			String filename = (String) itr.next();
+			String name = StringUtil.removeDirectoryPrefix(filename, numberOfOutputPrefixesToSkip);
+			if ((name != null) && (name.length() > 0)) {
+				entryNames.put(filename, name);
+			}
+		}
+
+		RawEntryCopier copier = new RawEntryCopier(out);
+		copier.copy(file, entryNames);
+		itr = patches.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry entry = (Map.Entry) itr.next();
+			String name = StringUtil.removeDirectoryPrefix((String) entry.getKey(), numberOfOutputPrefixesToSkip);
+			if ((name != null) && (name.length() > 0)) {
+				NestedPatch patch = (NestedPatch) entry.getValue();
+				copier.add(name, patch.data, patch.dosTime);
+			}
+		}
+		copier.finish();
+	}
+
+	/**
+	 * uncompresses the zip entries of the second archive file and compresses them into the output file
+	 *
+	 * @param out output file
+	 * @throws IOException in case of an input/output error
+	 */
+	private void recompressEntries(OutputStream out) throws IOException {
 		ZipOutputStream os = new ZipOutputStream(out);
-		ZipFile zipFile = new ZipFile(differences.getFilename2());
+		ZipFile zipFile = new ZipFile(filename2);
 		Iterator itr = filenames.iterator();
 
 		while (itr.hasNext()) {
@@ -98,6 +375,17 @@ public class ZipBuilder extends AbstractBuilder {
 			is.close();
 		}
 
+		itr = patches.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry entry = (Map.Entry) itr.next();
+			NestedPatch patch = (NestedPatch) entry.getValue();
+			ZipEntry z = new ZipEntry(StringUtil.removeDirectoryPrefix((String) entry.getKey(), numberOfOutputPrefixesToSkip));
+			z.setTime(patch.time);
+			os.putNextEntry(z);
+			os.write(patch.data);
+			os.closeEntry();
+		}
+
 		zipFile.close();
 		os.close();
 	}
@@ -110,11 +398,60 @@ public class ZipBuilder extends AbstractBuilder {
 	 * @throws IOException in case of an input/output error
 	 */
 	private void copyStream(InputStream input, OutputStream output) throws IOException {
-		byte buffer[] = new byte[4096];
+		byte buffer[] = new byte[64 * 1024];
 		int count = input.read(buffer);
 		while (count > -1) {
 			output.write(buffer, 0, count);
 			count = input.read(buffer);
 		}
 	}
+
+	/**
+	 * collects the names of the files to copy as they are reported
+	 */
+	private class ZipListener implements DifferenceListener {
+		private final OutputStream out;
+
+		ZipListener(OutputStream out) {
+			this.out = out;
+		}
+
+		public void start(String filename1, String filename2) {
+			ZipBuilder.this.filename2 = filename2;
+		}
+
+		public void fileAdded(String fqn, ZipEntry ze) {
+			collectFile(fqn, ze, true);
+		}
+
+		public void fileRemoved(String fqn, ZipEntry ze) {
+			// removed files are not part of the output
+		}
+
+		public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+			collectFile(fqn, z2, false);
+		}
+
+		public void end() throws IOException {
+			copyEntries(out);
+			close(out);
+		}
+	}
+
+	/**
+	 * an archive with the changes of an embedded archive
+	 */
+	private static class NestedPatch {
+		final byte[] data;
+
+		final long dosTime;
+
+		final long time;
+
+		NestedPatch(byte[] data, long dosTime, long time) {
+			this.data = data;
+			this.dosTime = dosTime;
+			this.time = time;
+		}
+	}
 }
@@ -0,0 +1,237 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes the difference between two byte arrays as a sequence of copy and
+ * add instructions, similar to VCDIFF. The blocks of the source at multiples
+ * of the block size are put into a hash table, the target is scanned with a
+ * rolling hash, so matches are found at any position of the target in linear
+ * time. A match is extended in both directions.
+ * <p>
+ * A delta starts with the length of the target followed by the instructions.
+ * Each instruction starts with (length &lt;&lt; 1 | type). An add instruction is
+ * followed by the bytes to add, a copy instruction by the offset in the source
+ * relative to the end of the previous copy. All numbers are variable length
+ * integers. The delta is not compressed.
+ *
+ * @author Hendrik Brummermann
+ */
+public class BinaryDelta {
+
+	private static final int BLOCK_SIZE = 16;
+
+	private static final int ADD = 0;
+
+	private static final int COPY = 1;
+
+	private static final int HASH_BASE = 31;
+
+	/** HASH_BASE ^ (BLOCK_SIZE - 1), to remove the first byte from the rolling hash */
+	private static final int HASH_REMOVE;
+
+	static {
+		int power = 1;
+		for (int i = 1; i < BLOCK_SIZE; i++) {
+			power = power * HASH_BASE;
+		}
+		HASH_REMOVE = power;
+	}
+
+	/**
+	 * writes the delta, which turns source into target
+	 *
+	 * @param source source
+	 * @param target target
+	 * @param out OutputStream to write the delta to
+	 * @throws IOException in case of an input/output error
+	 */
+	public static void encode(byte[] source, byte[] target, OutputStream out) throws IOException {
+		writeNumber(out, target.length);
+
+		int[] table = createTable(source);
+		int mask = (table == null) ? 0 : table.length - 1;
+		int addStart = 0;
+		long lastCopyEnd = 0;
+		int pos = 0;
+		int hash = (target.length >= BLOCK_SIZE) ? hash(target, 0) : 0;
+		while ((table != null) && (pos + BLOCK_SIZE <= target.length)) {
+			int candidate = table[index(hash, mask)] - 1;
+			if ((candidate >= 0) && regionMatches(source, candidate, target, pos, BLOCK_SIZE)) {
+				// the match is extended backwards into the bytes, which have not been written yet
+				int s = candidate;
+				int t = pos;
+				while ((s > 0) && (t > addStart) && (source[s - 1] == target[t - 1])) {
+					s--;
+					t--;
+				}
+				int end = pos + BLOCK_SIZE;
+				int sourceEnd = candidate + BLOCK_SIZE;
+				while ((end < target.length) && (sourceEnd < source.length) && (source[sourceEnd] == target[end])) {
+					end++;
+					sourceEnd++;
+				}
+
+				writeAdd(out, target, addStart, t - addStart);
+				writeNumber(out, ((long) (end - t) << 1) | COPY);
+				writeNumber(out, zigzag(s - lastCopyEnd));
+				lastCopyEnd = sourceEnd;
+
+				pos = end;
+				addStart = end;
+				if (pos + BLOCK_SIZE <= target.length) {
+					hash = hash(target, pos);
+				}
+			} else {
+				if (pos + BLOCK_SIZE < target.length) {
+					hash = (hash - target[pos] * HASH_REMOVE) * HASH_BASE + target[pos + BLOCK_SIZE];
+				}
+				pos++;
+			}
+		}
+		writeAdd(out, target, addStart, target.length - addStart);
+	}
+
+	/**
+	 * applies a delta
+	 *
+	 * @param source source the delta was created for
+	 * @param in InputStream positioned at the delta, it is read to the end of the delta
+	 * @return target
+	 * @throws IOException in case of an input/output error or an invalid delta
+	 */
+	public static byte[] decode(byte[] source, InputStream in) throws IOException {
+		DataInputStream dis = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(in);
+		long length = readNumber(dis);
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("invalid delta: target too large");
+		}
+		byte[] target = new byte[(int) length];
+		int pos = 0;
+		long lastCopyEnd = 0;
+		while (pos < target.length) {
+			long instruction = readNumber(dis);
+			long count = instruction >>> 1;
+			if (count > target.length - pos) {
+				throw new IOException("invalid delta: instruction exceeds the target");
+			}
+			if ((instruction & 1) == ADD) {
+				dis.readFully(target, pos, (int) count);
+			} else {
+				long offset = lastCopyEnd + unzigzag(readNumber(dis));
+				if ((offset < 0) || (offset + count > source.length)) {
+					throw new IOException("invalid delta: copy exceeds the source");
+				}
+				System.arraycopy(source, (int) offset, target, pos, (int) count);
+				lastCopyEnd = offset + count;
+			}
+			pos += (int) count;
+		}
+		return target;
+	}
+
+	/**
+	 * creates a hash table of the blocks of the source
+	 *
+	 * @return table with offset + 1 of the first block for each hash, or null if the source is too small
+	 */
+	private static int[] createTable(byte[] source) {
+		int blocks = source.length / BLOCK_SIZE;
+		if (blocks == 0) {
+			return null;
+		}
+		int size = Integer.highestOneBit(blocks) * 2;
+		int[] table = new int[size];
+		for (int i = 0; i < blocks; i++) {
+			int offset = i * BLOCK_SIZE;
+			int index = index(hash(source, offset), size - 1);
+			if (table[index] == 0) {
+				table[index] = offset + 1;
+			}
+		}
+		return table;
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int hash = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			hash = hash * HASH_BASE + data[offset + i];
+		}
+		return hash;
+	}
+
+	private static int index(int hash, int mask) {
+		int h = hash * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeAdd(OutputStream out, byte[] data, int offset, int length) throws IOException {
+		if (length > 0) {
+			writeNumber(out, ((long) length << 1) | ADD);
+			out.write(data, offset, length);
+		}
+	}
+
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * writes a non negative number with 7 bits per byte
+	 *
+	 * @param out OutputStream
+	 * @param n number
+	 * @throws IOException in case of an input/output error
+	 */
+	public static void writeNumber(OutputStream out, long n) throws IOException {
+		while ((n & ~0x7FL) != 0) {
+			out.write((int) ((n & 0x7F) | 0x80));
+			n = n >>> 7;
+		}
+		out.write((int) n);
+	}
+
+	/**
+	 * reads a number written by writeNumber()
+	 *
+	 * @param in InputStream
+	 * @return number
+	 * @throws IOException in case of an input/output error or an invalid number
+	 */
+	public static long readNumber(InputStream in) throws IOException {
+		long n = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			n = n | ((long) (b & 0x7F) << shift);
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+		throw new IOException("invalid delta: number too long");
+	}
+}
@@ -0,0 +1,204 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Ant-style include and exclude patterns. "**" matches any number of
+ * directories, "*" any characters and "?" one character of a name; a pattern
+ * ending with "/" matches everything below that directory. Embedded archives
+ * are treated like directories, so lib/a.jar!META-INF/MANIFEST.MF is matched
+ * as lib/a.jar/META-INF/MANIFEST.MF.
+ * <p>
+ * A path is included, if it matches any include pattern, or there are none,
+ * and it does not match any exclude pattern. Directories and archives can be
+ * pruned, if no path below them can be included.
+ *
+ * @author Hendrik Brummermann
+ */
+public class GlobFilter {
+
+	private static final String ANY_DIRECTORIES = "**";
+
+	/** the path and the pattern have to end at the same segment */
+	private static final int FULL = 0;
+
+	/** the pattern has to match something below the path */
+	private static final int BELOW = 1;
+
+	/** the pattern has to match everything below the path */
+	private static final int ALL_BELOW = 2;
+
+	private final List includes = new ArrayList();
+
+	private final List excludes = new ArrayList();
+
+	/**
+	 * creates a new GlobFilter
+	 *
+	 * @param includes include patterns, may be empty to include everything
+	 * @param excludes exclude patterns
+	 */
+	public GlobFilter(Collection includes, Collection excludes) {
+		compile(includes, this.includes);
+		compile(excludes, this.excludes);
+	}
+
+	private static void compile(Collection patterns, List compiled) {
+		Iterator iter = patterns.iterator();
+		while (iter.hasNext()) {
+			String pattern = ((String) iter.next()).trim();
+			if (pattern.length() > 0) {
+				compiled.add(new Glob(pattern));
+			}
+		}
+	}
+
+	/**
+	 * @return true, if there are no patterns at all
+	 */
+	public boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+
+	/**
+	 * checks whether a path is included
+	 *
+	 * @param path path of an entry
+	 * @return true, if it is included and not excluded
+	 */
+	public boolean isIncluded(String path) {
+		String[] segments = split(path);
+		return (includes.isEmpty() || matchesAny(includes, segments, FULL)) && !matchesAny(excludes, segments, FULL);
+	}
+
+	/**
+	 * checks whether a path is excluded, regardless of the include patterns
+	 *
+	 * @param path path of an entry
+	 * @return true, if it matches an exclude pattern
+	 */
+	public boolean isExcluded(String path) {
+		return matchesAny(excludes, split(path), FULL);
+	}
+
+	/**
+	 * checks whether the paths below a directory or archive can be skipped
+	 *
+	 * @param path path of a directory or archive
+	 * @return true, if no path below it can be included
+	 */
+	public boolean isPruned(String path) {
+		String[] segments = split(path);
+		if (matchesAny(excludes, segments, ALL_BELOW)) {
+			return true;
+		}
+		return !includes.isEmpty() && !matchesAny(includes, segments, BELOW);
+	}
+
+	private static boolean matchesAny(List globs, String[] segments, int mode) {
+		for (int i = 0; i < globs.size(); i++) {
+			if (((Glob) globs.get(i)).matches(segments, mode)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * splits a path into its segments, treating embedded archives as directories
+	 */
+	private static String[] split(String path) {
+		List segments = new ArrayList();
+		int start = 0;
+		for (int i = 0; i <= path.length(); i++) {
+			if ((i == path.length()) || (path.charAt(i) == '/') || (path.charAt(i) == '!')) {
+				if (i > start) {
+					segments.add(path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return (String[]) segments.toArray(new String[segments.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return "includes=" + includes + ",excludes=" + excludes;
+	}
+
+	/**
+	 * a single pattern
+	 */
+	private static class Glob {
+		private final String pattern;
+
+		private final String[] segments;
+
+		Glob(String pattern) {
+			this.pattern = pattern;
+			// like in Ant, a trailing / matches everything below the directory
+			this.segments = split(pattern.endsWith("/") ? pattern + ANY_DIRECTORIES : pattern);
+		}
+
+		boolean matches(String[] path, int mode) {
+			return matches(0, path, 0, mode);
+		}
+
+		private boolean matches(int pi, String[] path, int si, int mode) {
+			if (si == path.length) {
+				if (mode == BELOW) {
+					return pi < segments.length;
+				}
+				for (int i = pi; i < segments.length; i++) {
+					if (!segments[i].equals(ANY_DIRECTORIES)) {
+						return false;
+					}
+				}
+				return (mode == FULL) || (pi < segments.length);
+			}
+			if (pi == segments.length) {
+				return false;
+			}
+			if (segments[pi].equals(ANY_DIRECTORIES)) {
+				return matches(pi + 1, path, si, mode) || matches(pi, path, si + 1, mode);
+			}
+			return matchesSegment(segments[pi], 0, path[si], 0) && matches(pi + 1, path, si + 1, mode);
+		}
+
+		/**
+		 * matches a name against a segment with * and ? wildcards
+		 */
+		private static boolean matchesSegment(String glob, int gi, String name, int ni) {
+			while (gi < glob.length()) {
+				char c = glob.charAt(gi);
+				if (c == '*') {
+					for (int i = ni; i <= name.length(); i++) {
+						if (matchesSegment(glob, gi + 1, name, i)) {
+							return true;
+						}
+					}
+					return false;
+				}
+				if ((ni == name.length()) || ((c != '?') && (c != name.charAt(ni)))) {
+					return false;
+				}
+				gi++;
+				ni++;
+			}
+			return ni == name.length();
+		}
+
+		@Override
+		public String toString() {
+			return pattern;
+		}
+	}
+}
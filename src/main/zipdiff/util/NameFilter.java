@@ -0,0 +1,303 @@
+/* zipdiff is available under the terms of the
+ * Apache License, version 2.0
+ *
+ * Link: http://www.apache.org/licenses/
+ */
+package zipdiff.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches names against a set of regular expressions, like a single pattern
+ * "(a)|(b)|(c)" would. Patterns which are a literal, a literal followed by .*
+ * or .* followed by a literal, optionally case insensitive with (?i), are
+ * looked up in a hash set or walked in a character trie, so the time to match
+ * a name does not grow with the number of these patterns. Only the other
+ * patterns are combined into a regular expression.
+ *
+ * @author Hendrik Brummermann
+ */
+public class NameFilter {
+
+	private static final String CASE_INSENSITIVE = "(?i)";
+
+	private static final String ANY = ".*";
+
+	private static final String META_CHARACTERS = ".[]{}()*+?^$|";
+
+	private final String pattern;
+
+	private final Literals caseSensitive = new Literals(false);
+
+	private final Literals caseInsensitive = new Literals(true);
+
+	/** patterns which are not literals, or null */
+	private final Pattern regex;
+
+	/** all patterns, for names with line terminators, which are not matched by . */
+	private final Pattern fullRegex;
+
+	/**
+	 * creates a new NameFilter
+	 *
+	 * @param patterns regular expressions
+	 * @throws java.util.regex.PatternSyntaxException if a pattern is invalid
+	 */
+	public NameFilter(Collection patterns) {
+		StringBuffer all = new StringBuffer();
+		StringBuffer remaining = new StringBuffer();
+		Iterator iter = patterns.iterator();
+		while (iter.hasNext()) {
+			String p = (String) iter.next();
+			if (all.length() > 0) {
+				all.append('|');
+			}
+			all.append('(').append(p).append(')');
+
+			if (!addLiteral(p)) {
+				if (remaining.length() > 0) {
+					remaining.append('|');
+				}
+				remaining.append('(').append(p).append(')');
+			}
+		}
+		pattern = all.toString();
+		fullRegex = Pattern.compile(pattern);
+		regex = (remaining.length() > 0) ? Pattern.compile(remaining.toString()) : null;
+	}
+
+	/**
+	 * adds a pattern to the literals, if it is one
+	 *
+	 * @param p regular expression
+	 * @return true, if the pattern was added; false if it has to be matched as regular expression
+	 */
+	private boolean addLiteral(String p) {
+		Literals literals = caseSensitive;
+		if (p.startsWith(CASE_INSENSITIVE)) {
+			p = p.substring(CASE_INSENSITIVE.length());
+			literals = caseInsensitive;
+		}
+
+		String literal;
+		if (p.startsWith(ANY)) {
+			literal = unescape(p.substring(ANY.length()), literals.ignoreCase);
+			if (literal != null) {
+				literals.suffixes.add(literal, true);
+			}
+		} else if (p.endsWith(ANY) && !isEscaped(p, p.length() - ANY.length())) {
+			literal = unescape(p.substring(0, p.length() - ANY.length()), literals.ignoreCase);
+			if (literal != null) {
+				literals.prefixes.add(literal, false);
+			}
+		} else {
+			literal = unescape(p, literals.ignoreCase);
+			if (literal != null) {
+				literals.names.add(literal);
+			}
+		}
+		return literal != null;
+	}
+
+	/**
+	 * @return true, if the character at the position is preceded by an odd number of backslashes
+	 */
+	private static boolean isEscaped(String p, int position) {
+		int count = 0;
+		for (int i = position - 1; (i >= 0) && (p.charAt(i) == '\\'); i--) {
+			count++;
+		}
+		return count % 2 == 1;
+	}
+
+	/**
+	 * converts a regular expression without special constructs into the string it matches
+	 *
+	 * @param p regular expression
+	 * @param ignoreCase true to convert it to lower case
+	 * @return literal or null if the expression has special constructs
+	 */
+	private static String unescape(String p, boolean ignoreCase) {
+		StringBuffer sb = new StringBuffer(p.length());
+		for (int i = 0; i < p.length(); i++) {
+			char c = p.charAt(i);
+			if (c == '\\') {
+				i++;
+				if ((i == p.length()) || Character.isLetterOrDigit(p.charAt(i))) {
+					return null;
+				}
+				c = p.charAt(i);
+			} else if (META_CHARACTERS.indexOf(c) > -1) {
+				return null;
+			}
+
+			// (?i) only folds the case of US-ASCII characters
+			if (ignoreCase && (c > 127)) {
+				return null;
+			}
+			sb.append(ignoreCase ? toLowerCase(c) : c);
+		}
+		return sb.toString();
+	}
+
+	private static char toLowerCase(char c) {
+		if ((c >= 'A') && (c <= 'Z')) {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * checks whether a name matches any of the patterns
+	 *
+	 * @param name name
+	 * @return true, if it matches
+	 */
+	public boolean matches(String name) {
+		if (caseSensitive.matches(name) || caseInsensitive.matches(name)) {
+			return !hasLineTerminator(name) || fullRegex.matcher(name).matches();
+		}
+		return (regex != null) && regex.matcher(name).matches();
+	}
+
+	private static boolean hasLineTerminator(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return all patterns combined into one regular expression
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+
+	/**
+	 * literal names, prefixes and suffixes
+	 */
+	private static class Literals {
+		final boolean ignoreCase;
+
+		final Set names = new HashSet();
+
+		final Trie prefixes = new Trie();
+
+		final Trie suffixes = new Trie();
+
+		Literals(boolean ignoreCase) {
+			this.ignoreCase = ignoreCase;
+		}
+
+		boolean matches(String name) {
+			if (!names.isEmpty()) {
+				String key = name;
+				if (ignoreCase) {
+					char[] chars = name.toCharArray();
+					for (int i = 0; i < chars.length; i++) {
+						chars[i] = toLowerCase(chars[i]);
+					}
+					key = new String(chars);
+				}
+				if (names.contains(key)) {
+					return true;
+				}
+			}
+			return prefixes.matches(name, false, ignoreCase) || suffixes.matches(name, true, ignoreCase);
+		}
+	}
+
+	/**
+	 * a node of a character trie
+	 */
+	private static class Trie {
+		private boolean terminal = false;
+
+		private boolean empty = true;
+
+		private char[] keys = new char[0];
+
+		private Trie[] children = new Trie[0];
+
+		/**
+		 * adds a string
+		 *
+		 * @param s string
+		 * @param reverse true to add the characters from the end
+		 */
+		void add(String s, boolean reverse) {
+			Trie node = this;
+			for (int i = 0; i < s.length(); i++) {
+				node.empty = false;
+				node = node.getOrCreateChild(s.charAt(reverse ? s.length() - 1 - i : i));
+			}
+			node.empty = false;
+			node.terminal = true;
+		}
+
+		private Trie getOrCreateChild(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			char[] newKeys = new char[keys.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, keys.length);
+			Trie[] newChildren = new Trie[children.length + 1];
+			System.arraycopy(children, 0, newChildren, 0, children.length);
+			newKeys[keys.length] = c;
+			newChildren[children.length] = new Trie();
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[keys.length - 1];
+		}
+
+		/**
+		 * checks whether a string starts or ends with one of the added strings
+		 *
+		 * @param s string
+		 * @param reverse true to check the end
+		 * @param ignoreCase true to compare the string in lower case
+		 * @return true, if one of the added strings was found
+		 */
+		boolean matches(String s, boolean reverse, boolean ignoreCase) {
+			if (empty) {
+				return false;
+			}
+			Trie node = this;
+			for (int i = 0; !node.terminal; i++) {
+				if (i == s.length()) {
+					return false;
+				}
+				char c = s.charAt(reverse ? s.length() - 1 - i : i);
+				node = node.getChild(ignoreCase ? toLowerCase(c) : c);
+				if (node == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private Trie getChild(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -6,20 +6,62 @@
 package zipdiff;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import junit.framework.TestCase;
+import org.apache.commons.cli.ParseException;
+import org.apache.tools.ant.BuildException;
+import zipdiff.ant.ZipDiffTask;
+import zipdiff.archive.ArchiveReader;
+import zipdiff.archive.CachingArchiveReader;
+import zipdiff.archive.EntryIndex;
+import zipdiff.archive.MappedArchiveReader;
+import zipdiff.archive.ScanContext;
+import zipdiff.archive.SpillArea;
+import zipdiff.archive.ZipFileArchiveReader;
 import zipdiff.output.AbstractBuilder;
+import zipdiff.output.Builder;
+import zipdiff.output.BuilderFactory;
+import zipdiff.output.DeltaBuilder;
 import zipdiff.output.HtmlBuilder;
+import zipdiff.output.StreamingBuilder;
 import zipdiff.output.TextBuilder;
 import zipdiff.output.XmlBuilder;
+import zipdiff.output.ZipBuilder;
+import zipdiff.util.GlobFilter;
+import zipdiff.util.NameFilter;
 
 /**
  * tests for DifferenceCalculator
@@ -33,6 +75,8 @@ public class DifferenceCalculatorTest extends TestCase {
 
 	private static String ENTRY_CVS = "CVS/Root";
 
+	private static String ENTRY_TEXT = "text.txt";
+
 	public static final String SYSTEM_TMP_DIR_PROPERTY = "java.io.tmpdir";
 
 	public static final String TEST_DIR_POSTFIX = File.separator + "UnitTestsDifferenceCalculatorTest";
@@ -49,6 +93,14 @@ public class DifferenceCalculatorTest extends TestCase {
 
 	private static String testJarOneEntryAContentsChangedFilename;
 
+	private static String testJarEmbeddedJars1Filename;
+
+	private static String testJarEmbeddedJars2Filename;
+
+	private static String testJarText1Filename;
+
+	private static String testJarText2Filename;
+
 	{
 		testDirPathName = System.getProperty(SYSTEM_TMP_DIR_PROPERTY);
 		if (testDirPathName == null) {
@@ -58,6 +110,10 @@ public class DifferenceCalculatorTest extends TestCase {
 		testJarOneEntryA2Filename = testDirPathName + File.separator + "testJarOneEntryA2Filename.jar";
 		testJarOneEntryB1Filename = testDirPathName + File.separator + "testJarOneEntryB1Filename.jar";
 		testJarOneEntryAContentsChangedFilename = testDirPathName + File.separator + "testJarOneEntryAContentsChangedFilename.jar";
+		testJarEmbeddedJars1Filename = testDirPathName + File.separator + "testJarEmbeddedJars1Filename.jar";
+		testJarEmbeddedJars2Filename = testDirPathName + File.separator + "testJarEmbeddedJars2Filename.jar";
+		testJarText1Filename = testDirPathName + File.separator + "testJarText1Filename.jar";
+		testJarText2Filename = testDirPathName + File.separator + "testJarText2Filename.jar";
 	}
 
 	/**
@@ -166,6 +222,81 @@ public class DifferenceCalculatorTest extends TestCase {
 		testJarOS.close();
 	}
 
+	/**
+	 * Create a jar with several embedded jars, one of them containing another jar.
+	 *
+	 * @param filename name of the jar to create
+	 * @param changed the content of some embedded entries depends on this character
+	 * @throws IOException
+	 */
+	public void createJarEmbeddedJars(String filename, char changed) throws IOException {
+		createJarEmbeddedJars(filename, changed, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Create a jar with several embedded jars, one of them containing another jar.
+	 *
+	 * @param filename name of the jar to create
+	 * @param changed the content of some embedded entries depends on this character
+	 * @param level compression level
+	 * @throws IOException
+	 */
+	public void createJarEmbeddedJars(String filename, char changed, int level) throws IOException {
+		File testDir = new File(testDirPathName);
+		testDir.mkdirs();
+		JarOutputStream testJarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		testJarOS.setLevel(level);
+
+		for (int i = 0; i < 8; i++) {
+			ByteArrayOutputStream inner = new ByteArrayOutputStream();
+			JarOutputStream innerJarOS = new JarOutputStream(inner);
+			innerJarOS.setLevel(level);
+			for (int j = 0; j < 10; j++) {
+				innerJarOS.putNextEntry(new JarEntry("pkg/Class" + j + ".class"));
+				byte data[] = new byte[512];
+				for (int k = 0; k < data.length; k++) {
+					data[k] = (byte) ((j % 3 == i % 3) ? changed : 'a');
+				}
+				innerJarOS.write(data);
+			}
+			if (i == 0) {
+				innerJarOS.putNextEntry(new JarEntry("lib/nested.jar"));
+				JarOutputStream nestedJarOS = new JarOutputStream(innerJarOS);
+				nestedJarOS.putNextEntry(new JarEntry(ENTRYA));
+				nestedJarOS.write(changed);
+				nestedJarOS.finish();
+			}
+			innerJarOS.close();
+
+			testJarOS.putNextEntry(new JarEntry("lib/module" + i + ".jar"));
+			testJarOS.write(inner.toByteArray());
+		}
+		testJarOS.putNextEntry(new JarEntry(ENTRYB));
+		testJarOS.write(changed);
+
+		testJarOS.flush();
+		testJarOS.close();
+	}
+
+	/**
+	 * Create a jar with one text entry, whose compressed size depends on the compression level
+	 *
+	 * @param filename name of the jar to create
+	 * @param level compression level
+	 * @throws IOException
+	 */
+	public void createJarText(String filename, int level) throws IOException {
+		File testDir = new File(testDirPathName);
+		testDir.mkdirs();
+		JarOutputStream testJarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		testJarOS.setLevel(level);
+		testJarOS.putNextEntry(new JarEntry(ENTRY_TEXT));
+		for (int i = 0; i < 2000; i++) {
+			testJarOS.write(("line " + i + " of " + (i * 7 % 13) + "\n").getBytes("UTF-8"));
+		}
+		testJarOS.flush();
+		testJarOS.close();
+	}
 
 	/**
 	 * Test for Differences calculateDifferences(ZipFile, ZipFile)
@@ -252,6 +383,1118 @@ public class DifferenceCalculatorTest extends TestCase {
 
 	}
 
+	/**
+	 * Test that scanning with several threads finds the same differences
+	 * as scanning on the calling thread.
+	 */
+	public void testCalculateDifferencesParallel() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		Differences serial = calc.getDifferences();
+		assertTrue(serial.hasDifferences());
+		assertTrue(serial.getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+
+		calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setNumberOfThreads(4);
+		Differences parallel = calc.getDifferences();
+		assertEquals(serial.getAdded().keySet(), parallel.getAdded().keySet());
+		assertEquals(serial.getRemoved().keySet(), parallel.getRemoved().keySet());
+		assertEquals(serial.getChanged().keySet(), parallel.getChanged().keySet());
+
+		exerciseOutputBuilders(parallel);
+	}
+
+	/**
+	 * Test that reading the central directory using memory mapped i/o finds
+	 * the same differences as reading the files with ZipFile.
+	 */
+	public void testCalculateDifferencesMemoryMapped() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		Differences expected = calc.getDifferences();
+
+		calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setArchiveReader(new MappedArchiveReader());
+		Differences mapped = calc.getDifferences();
+		assertTrue(mapped.getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		assertEquals(expected.getAdded().keySet(), mapped.getAdded().keySet());
+		assertEquals(expected.getRemoved().keySet(), mapped.getRemoved().keySet());
+		assertEquals(expected.getChanged().keySet(), mapped.getChanged().keySet());
+
+		calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars1Filename);
+		calc.setArchiveReader(new MappedArchiveReader());
+		calc.setCompareCRCValues(true);
+		calc.setIgnoreTimestamps(false);
+		assertFalse(calc.getDifferences().hasDifferences());
+	}
+
+	/**
+	 * Test that embedded archives spilled to temporary files give the same
+	 * results and that the temporary files are deleted afterwards.
+	 */
+	public void testCalculateDifferencesSpillArea() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setCompareContent(true);
+		Differences expected = calc.getDifferences();
+
+		File spillDir = new File(testDirPathName, "spill");
+		spillDir.mkdirs();
+		SpillArea spillArea = new SpillArea(spillDir, 0, Long.MAX_VALUE);
+		ArchiveReader[] readers = new ArchiveReader[] {new ZipFileArchiveReader(), new MappedArchiveReader()};
+		for (int i = 0; i < readers.length; i++) {
+			calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+			calc.setCompareContent(true);
+			calc.setArchiveReader(readers[i]);
+			calc.setSpillArea(spillArea);
+			Differences spilled = calc.getDifferences();
+			assertTrue(spilled.getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+			assertEquals(expected.getAdded().keySet(), spilled.getAdded().keySet());
+			assertEquals(expected.getRemoved().keySet(), spilled.getRemoved().keySet());
+			assertEquals(expected.getChanged().keySet(), spilled.getChanged().keySet());
+			assertEquals(0, spillArea.getUsed());
+			assertEquals(0, spillDir.list().length);
+		}
+
+		// data of unknown size above the memory threshold is written to a temporary file
+		byte[] data = new byte[200000];
+		spillArea = new SpillArea(spillDir, 1024, data.length);
+		ByteBuffer archive = spillArea.read(new ByteArrayInputStream(data), -1);
+		assertEquals(data.length, archive.remaining());
+		assertEquals(data.length, spillArea.getUsed());
+
+		// the spill area is full, the data is not kept in memory instead
+		try {
+			spillArea.read(new ByteArrayInputStream(data), -1);
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().indexOf("spill area is full") > -1);
+		}
+		try {
+			spillArea.read(new ByteArrayInputStream(data), data.length);
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().indexOf("spill area is full") > -1);
+		}
+		spillArea.release(archive);
+		assertEquals(0, spillArea.getUsed());
+		assertEquals(0, spillDir.list().length);
+	}
+
+	/**
+	 * Test that cached indexes give the same results without reading the archives again
+	 */
+	public void testCachingArchiveReader() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setCompareContent(true);
+		Differences expected = calc.getDifferences();
+
+		File cacheDir = new File(testDirPathName, "cache");
+		File[] cacheFiles = cacheDir.listFiles();
+		for (int i = 0; (cacheFiles != null) && (i < cacheFiles.length); i++) {
+			cacheFiles[i].delete();
+		}
+		CountingArchiveReader counter = new CountingArchiveReader();
+		for (int i = 0; i < 2; i++) {
+			calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+			calc.setCompareContent(true);
+			calc.setArchiveReader(new CachingArchiveReader(counter, cacheDir));
+			Differences cached = calc.getDifferences();
+			assertEquals(2, counter.count);
+			assertEquals(expected.getAdded().keySet(), cached.getAdded().keySet());
+			assertEquals(expected.getRemoved().keySet(), cached.getRemoved().keySet());
+			assertEquals(expected.getChanged().keySet(), cached.getChanged().keySet());
+		}
+
+		// different settings must not use the same index
+		calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setArchiveReader(new CachingArchiveReader(counter, cacheDir));
+		calc.setIgnoreCVSFiles(true);
+		calc.getDifferences();
+		assertEquals(4, counter.count);
+	}
+
+	/**
+	 * Test that comparing with several baselines reads the second file only once
+	 * and gives the same results as comparing with each baseline separately
+	 */
+	public void testMultipleBaselines() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		createJarText(testJarText1Filename, Deflater.BEST_SPEED);
+
+		File candidate = new File(testJarEmbeddedJars2Filename);
+		File[] baselines = new File[] {new File(testJarEmbeddedJars1Filename), new File(testJarText1Filename), candidate};
+		CountingArchiveReader counter = new CountingArchiveReader();
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setArchiveReader(counter);
+		calc.setNumberOfThreads(2);
+		Differences[] differences = calc.getDifferences(baselines);
+		assertEquals(baselines.length + 1, counter.count);
+		assertEquals(baselines.length, differences.length);
+
+		for (int i = 0; i < baselines.length; i++) {
+			Differences expected = new DifferenceCalculator(baselines[i], candidate).getDifferences();
+			assertEquals(baselines[i].getPath(), differences[i].getFilename1());
+			assertEquals(expected.getAdded().keySet(), differences[i].getAdded().keySet());
+			assertEquals(expected.getRemoved().keySet(), differences[i].getRemoved().keySet());
+			assertEquals(expected.getChanged().keySet(), differences[i].getChanged().keySet());
+		}
+		assertTrue(differences[1].getAdded().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		assertFalse(differences[2].hasDifferences());
+	}
+
+	/**
+	 * Test that byte identical files are not scanned, unless the check is disabled
+	 */
+	public void testIdenticalFiles() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		File copy = new File(testDirPathName + File.separator + "testJarEmbeddedJarsCopy.jar");
+		copy(new FileInputStream(testJarEmbeddedJars1Filename), copy);
+
+		CountingArchiveReader counter = new CountingArchiveReader();
+		DifferenceCalculator calc = new DifferenceCalculator(new File(testJarEmbeddedJars1Filename), copy);
+		calc.setArchiveReader(counter);
+		calc.setCheckingCentralDirectories(false);
+		Differences d = calc.getDifferences();
+		assertFalse(d.hasDifferences());
+		assertEquals(testJarEmbeddedJars1Filename, d.getFilename1());
+		assertEquals(0, counter.count);
+
+		calc.setCheckingIdenticalFiles(false);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(2, counter.count);
+
+		// a changed byte in the time of the first local header, which is not compared
+		RandomAccessFile raf = new RandomAccessFile(copy, "rw");
+		try {
+			raf.seek(10);
+			int b = raf.read();
+			raf.seek(10);
+			raf.write(b ^ 1);
+		} finally {
+			raf.close();
+		}
+		calc.setCheckingIdenticalFiles(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(4, counter.count);
+	}
+
+	/**
+	 * Test that the NameFilter matches the same names as the combined regular expression
+	 */
+	public void testNameFilter() throws IOException {
+		String[] patterns = new String[] {"CVS/.*", ".*\\.bak", "(?i)meta-inf/.*", "(?i).*\\.SF", "readme.txt", "(?i)NOTICE",
+			"a\\.b\\\\.*", "build/[0-9]+/.*", "x.*y", "lib/.*\\.jar"};
+		String[] names = new String[] {"CVS/Entries", "src/CVS/Entries", "a.bak", "a.bak.txt", "META-INF/MANIFEST.MF", "Meta-Inf/x",
+			"meta-inf", "lib/a.jar!META-INF/a.sf", "A.sF", "readme.txt", "README.txt", "notice", "NOTICE", "notice.txt",
+			"a.b\\c", "axb\\c", "build/12/x", "build/x/y", "xay", "lib/a.jar", "lib/a.jar!b.jar", "META-INF/\nx", "\u00c4.bak", ""};
+
+		Set set = new HashSet(Arrays.asList(patterns));
+		NameFilter filter = new NameFilter(set);
+		Pattern regex = Pattern.compile(filter.getPattern());
+		for (int i = 0; i < names.length; i++) {
+			assertEquals(names[i], regex.matcher(names[i]).matches(), filter.matches(names[i]));
+		}
+		assertTrue(filter.matches("META-INF/MANIFEST.MF"));
+		assertFalse(filter.matches("META-INF/\nx"));
+
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		assertTrue(calc.getDifferences().getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		set = new HashSet();
+		set.add("A");
+		calc.setFilenameRegexToIgnore(set);
+		Iterator iter = calc.getDifferences().getChanged().keySet().iterator();
+		while (iter.hasNext()) {
+			assertFalse(((String) iter.next()).endsWith("!A"));
+		}
+	}
+
+	/**
+	 * Test that include and exclude patterns select entries and prune directories and archives
+	 */
+	public void testIncludesAndExcludes() throws IOException {
+		GlobFilter filter = new GlobFilter(Arrays.asList(new String[] {"**/*.class"}), Arrays.asList(new String[] {"WEB-INF/lib/", "**/CVS/**"}));
+		assertTrue(filter.isIncluded("a/B.class"));
+		assertTrue(filter.isIncluded("lib/a.jar!x/Y.class"));
+		assertFalse(filter.isIncluded("a.txt"));
+		assertFalse(filter.isIncluded("WEB-INF/lib/B.class"));
+		assertFalse(filter.isIncluded("x/CVS/B.class"));
+		assertTrue(filter.isPruned("WEB-INF/lib/"));
+		assertTrue(filter.isPruned("WEB-INF/lib/a.jar"));
+		assertFalse(filter.isPruned("WEB-INF/"));
+		assertFalse(filter.isPruned("lib/a.jar"));
+		filter = new GlobFilter(Arrays.asList(new String[] {"META-INF/?ANIFEST.*"}), new HashSet());
+		assertTrue(filter.isIncluded("META-INF/MANIFEST.MF"));
+		assertTrue(filter.isPruned("lib/a.jar"));
+		assertFalse(filter.isPruned("META-INF/"));
+
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setExcludes(new HashSet(Arrays.asList(new String[] {"lib/module0.jar"})));
+		Map changed = calc.getDifferences().getChanged();
+		assertTrue(changed.containsKey("lib/module1.jar!pkg/Class1.class"));
+		Iterator iter = changed.keySet().iterator();
+		while (iter.hasNext()) {
+			assertFalse(((String) iter.next()).startsWith("lib/module0.jar"));
+		}
+
+		// archives, which are not included themselves, are scanned for included entries
+		calc.setExcludes(null);
+		calc.setIncludes(new HashSet(Arrays.asList(new String[] {"**/nested.jar/**"})));
+		changed = calc.getDifferences().getChanged();
+		assertEquals(2, changed.size());
+		assertTrue(changed.containsKey("lib/module0.jar!lib/nested.jar"));
+		assertTrue(changed.containsKey("lib/module0.jar!lib/nested.jar!A"));
+
+		// excluded directories are not scanned
+		File exploded = new File(testDirPathName, "exploded");
+		extract(testJarEmbeddedJars1Filename, exploded);
+		calc = new DifferenceCalculator(new File(testJarEmbeddedJars2Filename), exploded);
+		calc.setExcludes(new HashSet(Arrays.asList(new String[] {"lib/"})));
+		Differences differences = calc.getDifferences();
+		assertTrue(differences.getAdded().isEmpty());
+		assertTrue(differences.getRemoved().isEmpty());
+		assertEquals(1, differences.getChanged().size());
+		assertTrue(differences.getChanged().containsKey(ENTRYB));
+	}
+
+	/**
+	 * Test that archives read from a stream have the same differences as files
+	 */
+	public void testStreamInput() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		Differences expected = calc.getDifferences();
+
+		calc = new DifferenceCalculator(new File("-"), new File(testJarEmbeddedJars2Filename));
+		FileInputStream is = new FileInputStream(testJarEmbeddedJars1Filename);
+		try {
+			calc.setInputStream1(is);
+			calc.setNumberOfThreads(4);
+			Differences differences = calc.getDifferences();
+			assertEquals(expected.getChanged().keySet(), differences.getChanged().keySet());
+			assertTrue(differences.getAdded().isEmpty());
+			assertTrue(differences.getRemoved().isEmpty());
+		} finally {
+			is.close();
+		}
+
+		// the content of top level entries of the file is digested to compare it with the stream
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'a', Deflater.BEST_COMPRESSION);
+		calc = new DifferenceCalculator(new File(testJarEmbeddedJars1Filename), new File("-"));
+		calc.setCompareContent(true);
+		is = new FileInputStream(testJarEmbeddedJars2Filename);
+		try {
+			calc.setInputStream2(is);
+			assertFalse(calc.getDifferences().hasDifferences());
+		} finally {
+			is.close();
+		}
+
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b', Deflater.BEST_COMPRESSION);
+		is = new FileInputStream(testJarEmbeddedJars2Filename);
+		try {
+			calc.setInputStream2(is);
+			calc.setIgnoreTimestamps(true);
+			Map changed = calc.getDifferences().getChanged();
+			assertTrue(changed.containsKey(ENTRYB));
+			assertTrue(changed.containsKey("lib/module1.jar!pkg/Class1.class"));
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Test the maximum nesting depth and the detection of embedded archives
+	 */
+	public void testEmbeddedArchiveDetection() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setMaximumNestingDepth(0);
+		Map changed = calc.getDifferences().getChanged();
+		assertTrue(changed.containsKey("lib/module0.jar"));
+		assertFalse(changed.containsKey("lib/module1.jar!pkg/Class1.class"));
+
+		calc.setMaximumNestingDepth(1);
+		calc.setArchiveReader(new MappedArchiveReader());
+		changed = calc.getDifferences().getChanged();
+		assertTrue(changed.containsKey("lib/module1.jar!pkg/Class1.class"));
+		assertTrue(changed.containsKey("lib/module0.jar!lib/nested.jar"));
+		assertFalse(changed.containsKey("lib/module0.jar!lib/nested.jar!A"));
+
+		// jar files are no archives by extension, but by their signature
+		calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setArchiveExtensions(new HashSet(Arrays.asList(new String[] {".zip", "HPI"})));
+		assertEquals(new HashSet(Arrays.asList(new String[] {"zip", "hpi"})), calc.getArchiveExtensions());
+		changed = calc.getDifferences().getChanged();
+		assertFalse(changed.containsKey("lib/module1.jar!pkg/Class1.class"));
+		calc.setDetectingArchivesByContent(true);
+		assertTrue(calc.getDifferences().getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		calc.setArchiveReader(new MappedArchiveReader());
+		assertTrue(calc.getDifferences().getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+
+		File exploded = new File(testDirPathName, "exploded");
+		extract(testJarEmbeddedJars1Filename, exploded);
+		calc = new DifferenceCalculator(new File(testJarEmbeddedJars2Filename), exploded);
+		calc.setArchiveExtensions(new HashSet(Arrays.asList(new String[] {"zip"})));
+		calc.setDetectingArchivesByContent(true);
+		assertTrue(calc.getDifferences().getChanged().containsKey("lib/module1.jar!pkg/Class1.class"));
+	}
+
+	/**
+	 * Test that archives with matching central directories are not scanned
+	 */
+	public void testCentralDirectoryDigest() throws IOException {
+		createJarText(testJarText1Filename, Deflater.BEST_SPEED);
+		createJarText(testJarText2Filename, Deflater.BEST_COMPRESSION);
+
+		CountingArchiveReader counter = new CountingArchiveReader();
+		DifferenceCalculator calc = new DifferenceCalculator(testJarText1Filename, testJarText2Filename);
+		calc.setArchiveReader(counter);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(0, counter.count);
+
+		// the compressed sizes differ
+		calc.getComparisonPolicy().setComparing(ComparisonPolicy.COMPRESSED_SIZE, true);
+		assertTrue(calc.getDifferences().hasDifferences());
+		assertEquals(2, counter.count);
+
+		// the content is compared, so the archives are read
+		calc.getComparisonPolicy().setComparing(ComparisonPolicy.COMPRESSED_SIZE, false);
+		calc.setCompareContent(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(4, counter.count);
+
+		// the digest does not depend on the order of the entries and skipped prefixes
+		EntryIndex index1 = new EntryIndex();
+		index1.add("", "a.txt", 0, 1, 1, 11, 1000);
+		index1.add("", "b/c.txt", 0, 2, 2, 22, 2000);
+		EntryIndex index2 = new EntryIndex();
+		index2.add("", "x/b/c.txt", 1, 2, 2, 22, 2000);
+		index2.add("", "x/a.txt", 1, 1, 1, 11, 3000);
+		assertTrue(Arrays.equals(index1.digest(true, false), index2.digest(true, false)));
+		assertFalse(Arrays.equals(index1.digest(true, true), index2.digest(true, true)));
+		index2.add("", "x/d.txt", 1, 0, 0, 0, 0);
+		assertFalse(Arrays.equals(index1.digest(false, false), index2.digest(false, false)));
+	}
+
+	/**
+	 * Test that the central directory digest includes the beginning of the entry names
+	 */
+	public void testCentralDirectoryDigestLeadingCharacters() throws IOException {
+		String filename1 = testDirPathName + File.separator + "testCentralDirectoryDigest1.jar";
+		String filename2 = testDirPathName + File.separator + "testCentralDirectoryDigest2.jar";
+		createJarEntry(filename1, "aaa/Foo.class");
+		createJarEntry(filename2, "bbb/Foo.class");
+
+		DifferenceCalculator calc = new DifferenceCalculator(filename1, filename2);
+		Differences d = calc.getDifferences();
+		assertTrue(d.getAdded().containsKey("bbb/Foo.class"));
+		assertTrue(d.getRemoved().containsKey("aaa/Foo.class"));
+
+		EntryIndex index1 = new EntryIndex();
+		index1.add("", "aaa/Foo.class", 0, 1, 1, 11, 1000);
+		EntryIndex index2 = new EntryIndex();
+		index2.add("", "bbb/Foo.class", 0, 1, 1, 11, 1000);
+		assertFalse(Arrays.equals(index1.digest(false, false), index2.digest(false, false)));
+	}
+
+	/**
+	 * Test that entries merged from forked scans replace duplicate keys in the
+	 * same way as a serial scan
+	 */
+	public void testEntryIndexMergePosition() {
+		EntryIndex embedded = new EntryIndex();
+		embedded.add("a.jar!", "b.txt", 0, 1, 1, 11, 1000);
+
+		// the embedded archive comes first, so the later entry is kept
+		EntryIndex index = new EntryIndex();
+		index.add("", "a.jar", 0, 5, 5, 55, 1000);
+		index.add("", "a.jar!b.txt", 0, 2, 2, 22, 2000);
+		index.addAll(embedded, 1);
+		assertEquals(22, index.getCrc(index.indexOf("a.jar!b.txt")));
+		assertEquals(2, index.size());
+
+		// the embedded archive comes last, so its entry is kept
+		index = new EntryIndex();
+		index.add("", "a.jar!b.txt", 0, 2, 2, 22, 2000);
+		index.add("", "a.jar", 0, 5, 5, 55, 1000);
+		index.addAll(embedded, 2);
+		assertEquals(11, index.getCrc(index.indexOf("a.jar!b.txt")));
+		assertEquals(2, index.size());
+	}
+
+	/**
+	 * creates a jar with a single entry
+	 *
+	 * @param filename name of the jar to create
+	 * @param name name of the entry
+	 * @throws IOException
+	 */
+	private void createJarEntry(String filename, String name) throws IOException {
+		new File(testDirPathName).mkdirs();
+		JarOutputStream testJarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		testJarOS.putNextEntry(new JarEntry(name));
+		testJarOS.write("content".getBytes("UTF-8"));
+		testJarOS.close();
+	}
+
+	/**
+	 * Test that the ZipBuilder copies the compressed entries with their crc and sizes
+	 */
+	public void testZipBuilder() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		Differences differences = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename).getDifferences();
+		String outputFilename = testDirPathName + File.separator + "testZipBuilder.zip";
+		new ZipBuilder().build(outputFilename, 1, differences);
+
+		ZipFile source = new ZipFile(testJarEmbeddedJars2Filename);
+		ZipFile output = new ZipFile(outputFilename);
+		try {
+			assertEquals(9, output.size());
+			ZipEntry entry = output.getEntry(ENTRYB);
+			assertEquals(source.getEntry(ENTRYB).getCrc(), entry.getCrc());
+			assertEquals(source.getEntry(ENTRYB).getCompressedSize(), entry.getCompressedSize());
+		} finally {
+			source.close();
+			output.close();
+		}
+
+		// the local headers contain the crc and sizes, the data is not compressed again
+		new ZipBuilder().build(outputFilename, 0, differences);
+		ZipInputStream zis = new ZipInputStream(new FileInputStream(outputFilename));
+		try {
+			int count = 0;
+			ZipEntry entry = zis.getNextEntry();
+			while (entry != null) {
+				assertTrue(entry.getCrc() != -1);
+				assertTrue(entry.getSize() != -1);
+				if (entry.getName().equals(ENTRYB)) {
+					assertEquals('b', zis.read());
+				}
+				count++;
+				entry = zis.getNextEntry();
+			}
+			assertEquals(9, count);
+		} finally {
+			zis.close();
+		}
+	}
+
+	/**
+	 * Test that changed embedded archives are written as archives with only their changed entries
+	 */
+	public void testZipBuilderNestedPatches() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		Differences differences = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename).getDifferences();
+		String outputFilename = testDirPathName + File.separator + "testZipBuilderNestedPatches.zip";
+		new ZipBuilder().build(outputFilename, 0, differences);
+
+		ZipFile output = new ZipFile(outputFilename);
+		try {
+			assertEquals(9, output.size());
+			Map module1 = readEntries(output.getInputStream(output.getEntry("lib/module1.jar")));
+			assertEquals(new TreeSet(Arrays.asList(new String[] {"pkg/Class1.class", "pkg/Class4.class", "pkg/Class7.class"})), module1.keySet());
+			assertEquals('b', ((byte[]) module1.get("pkg/Class4.class"))[0]);
+
+			Map module0 = readEntries(output.getInputStream(output.getEntry("lib/module0.jar")));
+			assertEquals(5, module0.size());
+			Map nested = readEntries(new ByteArrayInputStream((byte[]) module0.get("lib/nested.jar")));
+			assertEquals(1, nested.size());
+			assertEquals('b', ((byte[]) nested.get(ENTRYA))[0]);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Test that a .zdelta file reconstructs the second file from the first one
+	 */
+	public void testDeltaBuilder() throws IOException {
+		String filename1 = testDirPathName + File.separator + "testDelta1.jar";
+		String filename2 = testDirPathName + File.separator + "testDelta2.jar";
+		createJarDelta(filename1, false);
+		createJarDelta(filename2, true);
+
+		String deltaFilename = testDirPathName + File.separator + "testDeltaBuilder.zdelta";
+		Builder builder = BuilderFactory.create(deltaFilename);
+		assertTrue(builder instanceof DeltaBuilder);
+		new DifferenceCalculator(filename1, filename2).reportDifferences(((StreamingBuilder) builder).createListener(deltaFilename, 0));
+		assertTrue(new File(deltaFilename).length() < new File(filename2).length() / 10);
+
+		String outputFilename = testDirPathName + File.separator + "testDeltaBuilder.jar";
+		assertEquals(4, applyDelta(filename1, deltaFilename, outputFilename));
+		DifferenceCalculator calc = new DifferenceCalculator(outputFilename, filename2);
+		calc.setCompareContent(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+
+		// directory prefixes are not skipped, because the unchanged entries keep their names
+		new DifferenceCalculator(filename1, filename2).reportDifferences(new DeltaBuilder().createListener(deltaFilename, 1));
+		assertEquals(4, applyDelta(filename1, deltaFilename, outputFilename));
+		assertFalse(calc.getDifferences().hasDifferences());
+
+		// the delta does not match other files
+		try {
+			applyDelta(filename2, deltaFilename, outputFilename);
+			fail("ZipException expected");
+		} catch (ZipException e) {
+			assertTrue(e.getMessage().indexOf("does not match") > -1);
+		}
+	}
+
+	/**
+	 * Test that a .zdelta file contains the embedded archives, whose entries
+	 * differ in their content, if only the entries are reported
+	 */
+	public void testDeltaBuilderCompareContent() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setCompareContent(true);
+		Differences differences = calc.getDifferences();
+		assertTrue(differences.getChanged().containsKey("lib/module1.jar!pkg/Class1.class"));
+		assertFalse(differences.getChanged().containsKey("lib/module1.jar"));
+
+		String deltaFilename = testDirPathName + File.separator + "testDeltaBuilderCompareContent.zdelta";
+		new DeltaBuilder().build(deltaFilename, 0, differences);
+		String outputFilename = testDirPathName + File.separator + "testDeltaBuilderCompareContent.jar";
+		applyDelta(testJarEmbeddedJars1Filename, deltaFilename, outputFilename);
+
+		calc = new DifferenceCalculator(outputFilename, testJarEmbeddedJars2Filename);
+		calc.setCompareContent(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+		ZipFile source = new ZipFile(testJarEmbeddedJars2Filename);
+		ZipFile output = new ZipFile(outputFilename);
+		try {
+			assertEquals(source.getEntry("lib/module1.jar").getCrc(), output.getEntry("lib/module1.jar").getCrc());
+			assertEquals(source.getEntry("lib/module0.jar").getCrc(), output.getEntry("lib/module0.jar").getCrc());
+		} finally {
+			source.close();
+			output.close();
+		}
+	}
+
+	private int applyDelta(String filename, String deltaFilename, String outputFilename) throws IOException {
+		InputStream delta = new FileInputStream(deltaFilename);
+		OutputStream out = new FileOutputStream(outputFilename);
+		try {
+			return new DeltaApplier().apply(new File(filename), delta, out);
+		} finally {
+			delta.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Create a jar with a large text entry and a large random entry, which differ
+	 * in a few bytes, and a removed, an added and an unchanged entry.
+	 *
+	 * @param filename name of the jar to create
+	 * @param changed false for the original jar, true for the changed one
+	 * @throws IOException
+	 */
+	private void createJarDelta(String filename, boolean changed) throws IOException {
+		new File(testDirPathName).mkdirs();
+		JarOutputStream testJarOS = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		testJarOS.putNextEntry(new JarEntry("data/text.txt"));
+		for (int i = 0; i < 2000; i++) {
+			if (changed && (i == 1000)) {
+				testJarOS.write("an inserted line\n".getBytes("UTF-8"));
+			}
+			testJarOS.write(("line " + i + " of " + ((changed && (i == 1500)) ? "changed" : "text") + "\n").getBytes("UTF-8"));
+		}
+		testJarOS.putNextEntry(new JarEntry("data/random.bin"));
+		byte[] data = new byte[100000];
+		new Random(1).nextBytes(data);
+		if (changed) {
+			data[50000] = (byte) ~data[50000];
+		}
+		testJarOS.write(data);
+		testJarOS.putNextEntry(new JarEntry(changed ? "added.txt" : "removed.txt"));
+		testJarOS.write('x');
+		testJarOS.putNextEntry(new JarEntry(ENTRYA));
+		testJarOS.write('a');
+		testJarOS.close();
+	}
+
+	/**
+	 * reads all entries of an archive
+	 *
+	 * @param is InputStream of the archive
+	 * @return map of entry names to their content
+	 * @throws IOException
+	 */
+	private Map readEntries(InputStream is) throws IOException {
+		Map entries = new TreeMap();
+		ZipInputStream zis = new ZipInputStream(is);
+		try {
+			ZipEntry entry = zis.getNextEntry();
+			while (entry != null) {
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				byte[] buffer = new byte[1024];
+				int count = zis.read(buffer);
+				while (count > -1) {
+					data.write(buffer, 0, count);
+					count = zis.read(buffer);
+				}
+				entries.put(entry.getName(), data.toByteArray());
+				entry = zis.getNextEntry();
+			}
+		} finally {
+			zis.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Test that the quick check stops at the first difference without scanning embedded archives
+	 */
+	public void testQuickCheck() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		CountingArchiveReader counter = new CountingArchiveReader();
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setArchiveReader(counter);
+		calc.setStoppingAtFirstDifference(true);
+		Differences differences = calc.getDifferences();
+		assertTrue(differences.hasDifferences());
+		assertEquals(1, differences.getChanged().size() + differences.getAdded().size() + differences.getRemoved().size());
+		assertEquals(0, counter.count);
+
+		// the top level entries match, so the embedded archives are compared one pair at a time
+		CountingSpillArea spillArea = new CountingSpillArea();
+		calc.setSpillArea(spillArea);
+		calc.setFilenameRegexToIgnore(Collections.singleton("^" + ENTRYB + "$"));
+		calc.setCompareContent(true);
+		differences = calc.getDifferences();
+		assertEquals(1, differences.getChanged().size());
+		assertTrue(((String) differences.getChanged().keySet().iterator().next()).startsWith("lib/module0.jar!"));
+		assertEquals(2, spillArea.count);
+		assertEquals(0, counter.count);
+
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a', Deflater.BEST_SPEED);
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'a', Deflater.BEST_COMPRESSION);
+		spillArea.count = 0;
+		assertFalse(calc.getDifferences().hasDifferences());
+		assertEquals(16, spillArea.count);
+		assertEquals(0, counter.count);
+	}
+
+	/**
+	 * Test that a batch manifest is parsed and its pairs are compared
+	 */
+	public void testBatch() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		String manifest = "# nightly\n"
+			+ testJarEmbeddedJars1Filename + "\t" + testJarEmbeddedJars2Filename + "\t" + testDirPathName + File.separator + "batch.txt\n"
+			+ "\n"
+			+ "  " + testJarEmbeddedJars1Filename + " " + testJarEmbeddedJars1Filename + "\n";
+		List pairs = Main.readBatchManifest(new BufferedReader(new StringReader(manifest)));
+		assertEquals(2, pairs.size());
+		assertEquals(3, ((String[]) pairs.get(0)).length);
+		assertEquals(2, ((String[]) pairs.get(1)).length);
+		assertEquals(testJarEmbeddedJars1Filename, ((String[]) pairs.get(1))[1]);
+
+		String[] pair = (String[]) pairs.get(0);
+		File output = new File(pair[2]);
+		output.delete();
+		Differences d = new DifferenceCalculator(pair[0], pair[1]).getDifferences();
+		int expected = d.getAdded().size() + d.getRemoved().size() + d.getChanged().size();
+		assertTrue(expected > 0);
+		assertEquals(expected, Main.compare(new DifferenceCalculator(pair[0], pair[1]), pair[2], 0));
+		assertTrue(output.length() > 0);
+		pair = (String[]) pairs.get(1);
+		assertEquals(0, Main.compare(new DifferenceCalculator(pair[0], pair[1]), null, 0));
+
+		try {
+			Main.readBatchManifest(new BufferedReader(new StringReader("a.jar\n")));
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test that zip and zdelta output is rejected for files read from stdin
+	 * and directories
+	 */
+	public void testOutputFileCheck() throws ParseException {
+		Main.checkOutputFile(null, "a.jar", "-");
+		Main.checkOutputFile("diff.xml", "-", "b.jar");
+		Main.checkOutputFile("patch.zip", "a.jar", "b.jar");
+		String[] outputFilenames = new String[] {"patch.zip", "patch.zdelta"};
+		for (int i = 0; i < outputFilenames.length; i++) {
+			try {
+				Main.checkOutputFile(outputFilenames[i], "a.jar", "-");
+				fail("ParseException expected");
+			} catch (ParseException e) {
+				// expected
+			}
+			try {
+				Main.checkOutputFile(outputFilenames[i], "-", "b.jar");
+				fail("ParseException expected");
+			} catch (ParseException e) {
+				// expected
+			}
+		}
+
+		File directory = new File(testDirPathName);
+		directory.mkdirs();
+		Main.checkOutputFile("diff.txt", "a.jar", directory.getPath());
+		try {
+			Main.checkOutputFile("patch.zip", "a.jar", directory.getPath());
+			fail("ParseException expected");
+		} catch (ParseException e) {
+			// expected
+		}
+
+		File output = new File(testDirPathName, "testOutputFileCheck.zdelta");
+		output.delete();
+		ZipDiffTask task = new ZipDiffTask();
+		task.setFilename1(directory.getPath());
+		task.setFilename2("b.jar");
+		task.setDestFile(output.getPath());
+		try {
+			task.execute();
+			fail("BuildException expected");
+		} catch (BuildException e) {
+			// expected
+		}
+		assertFalse(output.exists());
+	}
+
+	/**
+	 * Test that an exploded directory is compared with an archive
+	 */
+	public void testCalculateDifferencesDirectory() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+		File exploded = new File(testDirPathName, "exploded");
+		extract(testJarEmbeddedJars1Filename, exploded);
+
+		// directories are not reported, because the jar has no directory entries
+		DifferenceCalculator calc = new DifferenceCalculator(new File(testJarEmbeddedJars1Filename), exploded);
+		calc.setNumberOfThreads(2);
+		Differences differences = calc.getDifferences();
+		assertTrue(differences.getAdded().isEmpty());
+		assertTrue(differences.getRemoved().isEmpty());
+		assertTrue(differences.getChanged().isEmpty());
+
+		// the compressed size of files in the directory is unknown, so it is not compared
+		calc = new DifferenceCalculator(new File(testJarEmbeddedJars1Filename), exploded);
+		calc.getComparisonPolicy().setComparing(ComparisonPolicy.COMPRESSED_SIZE, true);
+		assertFalse(calc.getDifferences().hasDifferences());
+
+		// the crc of files in the directory is unknown, so it is computed if the sizes match
+		FileOutputStream os = new FileOutputStream(new File(exploded, "lib/module7.jar"), true);
+		os.write('x');
+		os.close();
+		calc = new DifferenceCalculator(new File(testJarEmbeddedJars2Filename), exploded);
+		differences = calc.getDifferences();
+		assertTrue(differences.getChanged().containsKey(ENTRYB));
+		ZipEntry[] entries = (ZipEntry[]) differences.getChanged().get(ENTRYB);
+		ZipFile zipFile = new ZipFile(testJarEmbeddedJars1Filename);
+		assertEquals(zipFile.getEntry(ENTRYB).getCrc(), entries[1].getCrc());
+		zipFile.close();
+		entries = (ZipEntry[]) differences.getChanged().get("lib/module7.jar");
+		assertEquals(-1, entries[1].getCrc());
+		assertTrue(differences.getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		assertTrue(differences.getChanged().containsKey("lib/module1.jar!pkg/Class1.class"));
+		assertFalse(differences.getChanged().containsKey("lib/module1.jar!pkg/Class0.class"));
+
+		calc = new DifferenceCalculator(new File(testJarEmbeddedJars2Filename), exploded);
+		calc.setArchiveReader(new MappedArchiveReader());
+		calc.setCompareContent(true);
+		Differences content = calc.getDifferences();
+		assertTrue(content.getChanged().containsKey(ENTRYB));
+		assertTrue(content.getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		assertFalse(content.getChanged().containsKey("lib/module1.jar!pkg/Class0.class"));
+	}
+
+	/**
+	 * extracts an archive into a directory
+	 *
+	 * @param filename name of the archive
+	 * @param directory target directory
+	 * @throws IOException
+	 */
+	private void extract(String filename, File directory) throws IOException {
+		ZipFile zipFile = new ZipFile(filename);
+		try {
+			Enumeration entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = (ZipEntry) entries.nextElement();
+				File file = new File(directory, entry.getName());
+				file.getParentFile().mkdirs();
+				copy(zipFile.getInputStream(entry), file);
+			}
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	/**
+	 * writes a stream to a file and closes it
+	 */
+	private void copy(InputStream is, File file) throws IOException {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[4096];
+			int count = is.read(buffer);
+			while (count > -1) {
+				os.write(buffer, 0, count);
+				count = is.read(buffer);
+			}
+		} finally {
+			os.close();
+			is.close();
+		}
+	}
+
+	/**
+	 * SpillArea which counts the embedded archives read from streams
+	 */
+	private static class CountingSpillArea extends SpillArea {
+		int count = 0;
+
+		@Override
+		public ByteBuffer read(InputStream is, long size) throws IOException {
+			synchronized (this) {
+				count++;
+			}
+			return super.read(is, size);
+		}
+	}
+
+	/**
+	 * ZipFileArchiveReader which counts the archives read
+	 */
+	private static class CountingArchiveReader extends ZipFileArchiveReader {
+		int count = 0;
+
+		@Override
+		public EntryIndex read(File file, ScanContext context) throws IOException {
+			synchronized (this) {
+				count++;
+			}
+			return super.read(file, context);
+		}
+	}
+
+	/**
+	 * Test that comparing the content ignores the compression level, but finds
+	 * changed content in embedded archives.
+	 */
+	public void testCalculateDifferencesCompareContent() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a', Deflater.BEST_SPEED);
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'a', Deflater.BEST_COMPRESSION);
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setComparisonPolicy(ComparisonPolicy.parse("size,compressedsize,crc"));
+		assertTrue(calc.getDifferences().hasDifferences());
+		calc.setCompareContent(true);
+		assertFalse(calc.getDifferences().hasDifferences());
+		calc.setArchiveReader(new MappedArchiveReader());
+		assertFalse(calc.getDifferences().hasDifferences());
+
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b', Deflater.BEST_COMPRESSION);
+		calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		calc.setIgnoreTimestamps(true);
+		calc.setCompareContent(true);
+		Differences differences = calc.getDifferences();
+		assertTrue(differences.getChanged().containsKey(ENTRYB));
+		assertTrue(differences.getChanged().containsKey("lib/module0.jar!lib/nested.jar!A"));
+		assertTrue(differences.getChanged().containsKey("lib/module1.jar!pkg/Class1.class"));
+		assertFalse(differences.getChanged().containsKey("lib/module1.jar!pkg/Class0.class"));
+
+		calc.setArchiveReader(new MappedArchiveReader());
+		calc.setNumberOfThreads(4);
+		assertEquals(differences.getChanged().keySet(), calc.getDifferences().getChanged().keySet());
+	}
+
+	/**
+	 * Test that the comparison policy selects the compared properties
+	 */
+	public void testComparisonPolicy() throws IOException {
+		assertEquals("size,crc", new ComparisonPolicy().toString());
+		assertEquals("compressedsize,time", ComparisonPolicy.parse("time, CompressedSize").toString());
+		try {
+			ComparisonPolicy.parse("size,color");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		createJarText(testJarText1Filename, Deflater.BEST_SPEED);
+		createJarText(testJarText2Filename, Deflater.BEST_COMPRESSION);
+		DifferenceCalculator calc = new DifferenceCalculator(testJarText1Filename, testJarText2Filename);
+		assertFalse(calc.getDifferences().hasDifferences());
+		calc.getComparisonPolicy().setComparing(ComparisonPolicy.COMPRESSED_SIZE, true);
+		assertTrue(calc.getDifferences().getChanged().containsKey(ENTRY_TEXT));
+
+		calc.setComparisonPolicy(ComparisonPolicy.parse("size"));
+		calc.setCompareCRCValues(true);
+		assertTrue(calc.getCompareCRCValues());
+		calc.setIgnoreTimestamps(false);
+		assertEquals("size,crc,time", calc.getComparisonPolicy().toString());
+
+		// the ant task has the same default, its attributes change the compare list
+		PolicyTask task = new PolicyTask();
+		task.setFilename1(testJarText1Filename);
+		task.setFilename2(testJarText2Filename);
+		assertEquals("size,crc", task.getCalculatorPolicy().toString());
+		task.setCompare("size,time");
+		assertEquals("size,time", task.getCalculatorPolicy().toString());
+		task.setCompareCRCValues(true);
+		task.setIgnoreTimestamps(true);
+		assertEquals("size,crc", task.getCalculatorPolicy().toString());
+	}
+
+	/**
+	 * ZipDiffTask which exposes the ComparisonPolicy of its DifferenceCalculator
+	 */
+	private static class PolicyTask extends ZipDiffTask {
+		ComparisonPolicy getCalculatorPolicy() throws IOException {
+			return createCalculator().getComparisonPolicy();
+		}
+	}
+
+	/**
+	 * Test that comparing the maps built by buildZipEntryMap() finds the same
+	 * differences as comparing the entry indexes.
+	 */
+	public void testCalculateDifferencesMaps() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		Differences expected = calc.getDifferences();
+
+		Map m1 = calc.buildZipEntryMap(new ZipFile(testJarEmbeddedJars1Filename));
+		Map m2 = calc.buildZipEntryMap(new ZipFile(testJarEmbeddedJars2Filename));
+		Differences differences = calc.calculateDifferences(m1, m2);
+		assertEquals(expected.getAdded().keySet(), differences.getAdded().keySet());
+		assertEquals(expected.getRemoved().keySet(), differences.getRemoved().keySet());
+		assertEquals(expected.getChanged().keySet(), differences.getChanged().keySet());
+
+		m2.remove(ENTRYB);
+		m2.put("C", new ZipEntry("C"));
+		differences = calc.calculateDifferences(m1, m2);
+		assertTrue(differences.getRemoved().containsKey(ENTRYB));
+		assertTrue(differences.getAdded().containsKey("C"));
+	}
+
+	/**
+	 * Test that entries of embedded archives written with data descriptors have
+	 * complete metadata, so changed content of the same size is detected.
+	 */
+	public void testProcessEmbeddedZipFile() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		Map m1 = new HashMap();
+		Map m2 = new HashMap();
+		FileInputStream is = new FileInputStream(testJarEmbeddedJars1Filename);
+		try {
+			calc.processEmbeddedZipFile("x.jar!", is, m1);
+		} finally {
+			is.close();
+		}
+		is = new FileInputStream(testJarEmbeddedJars2Filename);
+		try {
+			calc.processEmbeddedZipFile("x.jar!", is, m2);
+		} finally {
+			is.close();
+		}
+
+		ZipEntry entry = (ZipEntry) m1.get("x.jar!lib/module0.jar!pkg/Class0.class");
+		assertEquals(512, entry.getSize());
+		assertTrue(entry.getCrc() != -1);
+		Differences differences = calc.calculateDifferences(m1, m2);
+		assertTrue(differences.getChanged().containsKey("x.jar!lib/module0.jar!pkg/Class0.class"));
+		assertTrue(differences.getChanged().containsKey("x.jar!lib/module0.jar!lib/nested.jar!A"));
+		assertFalse(differences.getChanged().containsKey("x.jar!lib/module0.jar!pkg/Class1.class"));
+
+		m2.put("x.jar!C", new ZipEntry("C"));
+		m1.put("x.jar!C", new ZipEntry("C"));
+		differences = calc.calculateDifferences(m1, m2);
+		assertTrue(differences.getChanged().containsKey("x.jar!C"));
+	}
+
+	/**
+	 * Test that differences streamed to a builder are the same as the collected differences
+	 */
+	public void testReportDifferences() throws IOException {
+		createJarEmbeddedJars(testJarEmbeddedJars1Filename, 'a');
+		createJarEmbeddedJars(testJarEmbeddedJars2Filename, 'b');
+
+		DifferenceCalculator calc = new DifferenceCalculator(testJarEmbeddedJars1Filename, testJarEmbeddedJars2Filename);
+		Differences expected = calc.getDifferences();
+
+		String outputFilename = testDirPathName + File.separator + "testReportDifferences.xml";
+		DifferenceListener listener = new XmlBuilder().createListener(outputFilename, 0);
+		int count = calc.reportDifferences(listener);
+		assertEquals(expected.getAdded().size() + expected.getRemoved().size() + expected.getChanged().size(), count);
+
+		String xml = new String(readFile(outputFilename), "UTF-8");
+		assertTrue(xml.endsWith("</zipdiff>" + System.getProperty("line.separator")));
+		Iterator iter = expected.getChanged().keySet().iterator();
+		while (iter.hasNext()) {
+			assertTrue(xml.indexOf("<changed>" + iter.next() + "</changed>") > -1);
+		}
+
+		// the streamed output is the same as the output built from the collected differences
+		String filename1 = testDirPathName + File.separator + "testReportDifferences1.jar";
+		String filename2 = testDirPathName + File.separator + "testReportDifferences2.jar";
+		createJarDelta(filename1, false);
+		createJarDelta(filename2, true);
+		calc = new DifferenceCalculator(filename1, filename2);
+		expected = calc.getDifferences();
+		assertTrue(expected.getChanged().size() > 0);
+		AbstractBuilder[] builders = {new XmlBuilder(), new TextBuilder(), new HtmlBuilder()};
+		for (int i = 0; i < builders.length; i++) {
+			ByteArrayOutputStream built = new ByteArrayOutputStream();
+			builders[i].build(built, expected);
+			calc.reportDifferences(builders[i].createListener(outputFilename, 0));
+			// the html page contains the time it was generated at
+			String generated = "Generated at .*";
+			assertEquals(new String(built.toByteArray(), "UTF-8").replaceAll(generated, ""), new String(readFile(outputFilename), "UTF-8").replaceAll(generated, ""));
+		}
+	}
+
+	private byte[] readFile(String filename) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FileInputStream is = new FileInputStream(filename);
+		byte[] buffer = new byte[4096];
+		int count = is.read(buffer);
+		while (count > -1) {
+			baos.write(buffer, 0, count);
+			count = is.read(buffer);
+		}
+		is.close();
+		return baos.toByteArray();
+	}
+
 	private void exerciseHtmlBuilder(Differences differences) {
 		assertNotNull(differences);
 